@@ -0,0 +1,29 @@
+package com.github.processors.sketch.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Entry point of benchmarks.jar. Takes the usual JMH command line, e.g.
+ * "java -jar target/benchmarks.jar CountMinSketch -p width=1000000", but writes
+ * the results as JSON to jmh-result.json unless -rf/-rff say otherwise, so that
+ * runs of different releases can be compared.
+ * */
+public class BenchmarkMain {
+	public static final String RESULT_FILE = "jmh-result.json";
+
+	public static void main(String[] args) throws Exception {
+		final CommandLineOptions cli = new CommandLineOptions(args);
+		final ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+		if (!cli.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if (!cli.getResult().hasValue()) {
+			options.result(RESULT_FILE);
+		}
+		new Runner(options.build()).run();
+	}
+}
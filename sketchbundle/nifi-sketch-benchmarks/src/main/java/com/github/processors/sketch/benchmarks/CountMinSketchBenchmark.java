@@ -0,0 +1,105 @@
+package com.github.processors.sketch.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.processors.sketch.CountMinSketch;
+
+/*
+ * Cost of CountMinSketch.update and getEstimatedCount, including hashing, across
+ * sketch dimensions and key lengths. The sketch is shared by all benchmark
+ * threads; the *Threads variants measure contention on it.
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CountMinSketchBenchmark {
+	private static final int KEYS = 1 << 16;
+
+	@Param({ "100000", "1000000", "10000000" })
+	int width;
+
+	@Param({ "3", "5", "8" })
+	int depth;
+
+	@Param({ "8", "32", "128" })
+	int keyLength;
+
+	CountMinSketch cms;
+	String[] keys;
+
+	@Setup
+	public void setup() {
+		cms = new CountMinSketch.Builder().dimensions(width, depth).build();
+		keys = randomKeys(KEYS, keyLength, new Random(42));
+		for (String key : keys) {
+			cms.update(key);
+		}
+	}
+
+	// each thread walks the keys from its own offset
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next = (int) (Thread.currentThread().getId() * 7919);
+
+		String next(final String[] keys) {
+			return keys[next++ & (keys.length - 1)];
+		}
+	}
+
+	@Benchmark
+	public void update(final Cursor cursor) {
+		cms.update(cursor.next(keys));
+	}
+
+	@Benchmark
+	@Threads(2)
+	public void update2Threads(final Cursor cursor) {
+		cms.update(cursor.next(keys));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void update4Threads(final Cursor cursor) {
+		cms.update(cursor.next(keys));
+	}
+
+	@Benchmark
+	public long getEstimatedCount(final Cursor cursor) {
+		return cms.getEstimatedCount(cursor.next(keys));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public long getEstimatedCount4Threads(final Cursor cursor) {
+		return cms.getEstimatedCount(cursor.next(keys));
+	}
+
+	static String[] randomKeys(final int count, final int length, final Random random) {
+		final String[] keys = new String[count];
+		final char[] chars = new char[length];
+		for (int i = 0; i < count; i++) {
+			for (int j = 0; j < length; j++) {
+				chars[j] = (char) ('!' + random.nextInt(94));
+			}
+			keys[i] = new String(chars);
+		}
+		return keys;
+	}
+}
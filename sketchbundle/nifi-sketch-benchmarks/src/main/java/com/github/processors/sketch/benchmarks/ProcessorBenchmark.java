@@ -0,0 +1,114 @@
+package com.github.processors.sketch.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.processor.Processor;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.processors.sketch.CountMinSketch;
+import com.github.processors.sketch.CountMinSketchService;
+import com.github.processors.sketch.GetCMS;
+import com.github.processors.sketch.SketchConstants;
+import com.github.processors.sketch.StandardCountMinSketchService;
+import com.github.processors.sketch.UpdateCMS;
+
+/*
+ * One onTrigger of UpdateCMS and GetCMS through the nifi-mock TestRunner for
+ * several batch sizes, with a queue holding exactly one batch of FlowFiles
+ * keyed by an ip attribute. The score is the time per batch; divide by
+ * batchSize for the time per FlowFile. The mock framework dominates the
+ * absolute numbers, so compare them between releases rather than with the
+ * sketch benchmarks. No results of it are recorded yet, see the README.
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessorBenchmark {
+	private static final int KEYS = 1024;
+
+	@Param({ "1", "10", "100", "1000" })
+	int batchSize;
+
+	TestRunner update;
+	TestRunner get;
+	Map<String, String>[] attributes;
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() throws InitializationException {
+		final Random random = new Random(42);
+		attributes = new Map[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			attributes[i] = new HashMap<String, String>();
+			attributes[i].put("ip", "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256));
+		}
+
+		update = newRunner(UpdateCMS.class);
+		update.setProperty(UpdateCMS.SKETCH_SERVICE, "cms");
+		update.setProperty(UpdateCMS.KEY, "${ip}");
+		update.setProperty(UpdateCMS.BATCH_SIZE, String.valueOf(batchSize));
+
+		get = newRunner(GetCMS.class);
+		get.setProperty(GetCMS.SKETCH_SERVICE, "cms");
+		get.setProperty(GetCMS.KEY, "${ip}");
+		get.setProperty(GetCMS.BATCH_SIZE, String.valueOf(batchSize));
+		// GetCMS answers 0 without touching a sketch that does not exist
+		final CountMinSketch cms = get.getControllerService("cms", CountMinSketchService.class).getOrCreateSketch(
+				SketchConstants.DEFAULT_SKETCH_NAME, new CountMinSketch.Builder()
+						.accuracy(SketchConstants.DEFAULT_DELTA, SketchConstants.DEFAULT_EPSILON));
+		for (Map<String, String> attribute : attributes) {
+			cms.update(attribute.get("ip"));
+		}
+
+		// runs @OnScheduled once, the benchmarks then only trigger
+		update.run(1, false, true);
+		get.run(1, false, true);
+	}
+
+	@Setup(Level.Invocation)
+	public void enqueue() {
+		update.clearTransferState();
+		get.clearTransferState();
+		for (int i = 0; i < batchSize; i++) {
+			update.enqueue(new byte[0], attributes[i & (KEYS - 1)]);
+			get.enqueue(new byte[0], attributes[i & (KEYS - 1)]);
+		}
+	}
+
+	@Benchmark
+	public void updateCMS() {
+		update.run(1, false, false);
+	}
+
+	@Benchmark
+	public void getCMS() {
+		get.run(1, false, false);
+	}
+
+	private static TestRunner newRunner(final Class<? extends Processor> processor) throws InitializationException {
+		final TestRunner runner = TestRunners.newTestRunner(processor);
+		runner.addControllerService("cms", new StandardCountMinSketchService());
+		runner.enableControllerService(runner.getControllerService("cms"));
+		return runner;
+	}
+}
@@ -0,0 +1,212 @@
+package com.github.processors.sketch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.nifi.logging.ComponentLog;
+
+/*
+ * Asynchronous sketch updates for UpdateCMS: any number of threads publish
+ * hashed keys into a pre-allocated ring buffer and a single writer thread
+ * applies them in order. Hot keys then only ever touch their counters from one
+ * core, instead of every NiFi thread pulling the same cache lines back and
+ * forth, and the publishing threads only hash and copy.
+ *
+ * The ring is lock-free: a producer claims a run of slots with one CAS on the
+ * claim sequence, fills them and publishes each slot by storing its sequence
+ * number, which the writer polls. The writer frees slots by advancing the
+ * consumed sequence. A producer that finds the ring full parks until the writer
+ * catches up, so a slow sketch holds back the NiFi threads rather than growing
+ * memory. The writer spins briefly and then parks while the ring is empty.
+ *
+ * Updates are applied in publication order, but a reader sees them only once
+ * the writer got to them; flush() waits for that.
+ * */
+final class AsyncUpdater {
+	private static final int MIN_CAPACITY = 1024;
+	private static final int MAX_CAPACITY = 1 << 24;
+	// claimed and consumed are 128 bytes apart, so producers and writer do not share a cache line
+	private static final int CLAIMED = 15;
+	private static final int CONSUMED = 31;
+	private static final long PRODUCER_PARK_NANOS = 10000;
+	private static final long WRITER_PARK_NANOS = 100000;
+	private static final int WRITER_SPINS = 64;
+	// the writer advances the consumed sequence at least this often while busy
+	private static final int WRITER_BATCH = 256;
+
+	private final CountMinSketch[] sketches;
+	private final ComponentLog logger;
+	private final int mask;
+	private final int[] targets;
+	private final long[] hashes;
+	private final long[] values;
+	// only set for sketches that track heavy hitters
+	private final String[] keys;
+	// sequence number of the update in each slot, once it is published
+	private final AtomicLongArray published;
+	private final AtomicLongArray sequences = new AtomicLongArray(CONSUMED + 16);
+	private final Thread writer;
+	private volatile boolean running = true;
+	private volatile long failed;
+
+	/*
+	 * @param capacity the number of updates the ring holds, rounded up to a power
+	 *            of two
+	 */
+	AsyncUpdater(final CountMinSketch[] sketches, final int capacity, final ComponentLog logger, final String name) {
+		if (capacity < 1 || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("Capacity must be in [1, " + MAX_CAPACITY + "], got " + capacity);
+		}
+		final int size = Math.max(MIN_CAPACITY, Integer.highestOneBit(capacity - 1) << 1);
+		this.sketches = sketches;
+		this.logger = logger;
+		this.mask = size - 1;
+		this.targets = new int[size];
+		this.hashes = new long[size];
+		this.values = new long[size];
+		this.keys = new String[size];
+		this.published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			published.set(i, -1);
+		}
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, name);
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	int getCapacity() {
+		return mask + 1;
+	}
+
+	// updates published but not applied yet
+	long getPending() {
+		return sequences.get(CLAIMED) - sequences.get(CONSUMED);
+	}
+
+	// updates that failed to apply since this updater was created
+	long getFailed() {
+		return failed;
+	}
+
+	/*
+	 * Queues the first count updates of a batch for sketch number target. If the
+	 * ring is full, waits for the writer to make room.
+	 *
+	 * @param keys the keys to offer to the heavy hitters, or null
+	 * @throws IllegalStateException if the updater was closed or the thread is
+	 *             interrupted while waiting; updates queued before are kept
+	 */
+	void publish(final int target, final long[] hashes, final String[] keys, final long[] values, final int count) {
+		int done = 0;
+		while (done < count) {
+			if (!running) {
+				throw new IllegalStateException("The async updater is closed");
+			}
+			final long claimed = sequences.get(CLAIMED);
+			final long free = getCapacity() - (claimed - sequences.get(CONSUMED));
+			if (free <= 0) {
+				await();
+				continue;
+			}
+			final int n = (int) Math.min(count - done, free);
+			if (!sequences.compareAndSet(CLAIMED, claimed, claimed + n)) {
+				continue;
+			}
+			for (int i = 0; i < n; i++) {
+				final long sequence = claimed + i;
+				final int slot = (int) sequence & mask;
+				this.targets[slot] = target;
+				this.hashes[slot] = hashes[done + i];
+				this.values[slot] = values[done + i];
+				this.keys[slot] = keys == null ? null : keys[done + i];
+				published.lazySet(slot, sequence);
+			}
+			done += n;
+		}
+	}
+
+	/*
+	 * Waits until every update published before the call is applied.
+	 *
+	 * @throws IllegalStateException if interrupted while waiting
+	 */
+	void flush() {
+		final long target = sequences.get(CLAIMED);
+		while (sequences.get(CONSUMED) < target) {
+			if (!writer.isAlive()) {
+				throw new IllegalStateException("The async writer stopped with " + getPending() + " updates pending");
+			}
+			LockSupport.unpark(writer);
+			await();
+		}
+	}
+
+	// applies the pending updates and stops the writer; nothing may be published concurrently
+	void close() {
+		try {
+			flush();
+		} finally {
+			running = false;
+			LockSupport.unpark(writer);
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void await() {
+		if (Thread.interrupted()) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the async writer");
+		}
+		LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+	}
+
+	// the writer thread: applies published updates in order until closed and drained
+	private void write() {
+		long next = sequences.get(CONSUMED);
+		int idle = 0;
+		while (true) {
+			final long first = next;
+			int slot = (int) next & mask;
+			while (published.get(slot) == next && next - first < WRITER_BATCH) {
+				apply(slot);
+				next++;
+				slot = (int) next & mask;
+			}
+			if (next > first) {
+				sequences.lazySet(CONSUMED, next);
+				idle = 0;
+			} else if (!running) {
+				return;
+			} else if (++idle < WRITER_SPINS) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(this, WRITER_PARK_NANOS);
+			}
+		}
+	}
+
+	private void apply(final int slot) {
+		final String key = keys[slot];
+		try {
+			if (key != null) {
+				keys[slot] = null;
+				sketches[targets[slot]].update(hashes[slot], key, values[slot]);
+			} else {
+				sketches[targets[slot]].update(hashes[slot], values[slot]);
+			}
+		} catch (RuntimeException e) {
+			if (failed++ == 0) {
+				logger.error("Could not apply a queued update; further failures are only counted.", e);
+			}
+		}
+	}
+}
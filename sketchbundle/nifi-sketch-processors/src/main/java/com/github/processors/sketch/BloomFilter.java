@@ -0,0 +1,232 @@
+package com.github.processors.sketch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Blocked Bloom filter for duplicate detection: all bits of a key are in one
+ * 512 bit block, a single cache line, so a lookup costs one cache miss
+ * whatever the number of hash functions. Sized for an expected number of
+ * items and false positive probability; memory is fixed at creation.
+ *
+ * With a rotation interval the filter keeps two generations. Keys are looked
+ * up in both and added to the current one, and every interval the current
+ * generation becomes the previous one and a cleared one takes its place. A key
+ * is thus remembered for at least one and at most two intervals after it was
+ * last seen, and each generation only needs to hold one interval of items.
+ *
+ * Keys are hashed with the same Murmur3 as CountMinSketch.
+ * */
+public final class BloomFilter {
+	private static final int BLOCK_BITS = 512;
+	private static final int BLOCK_WORDS = BLOCK_BITS / 64;
+	private static final int MAX_HASHES = 16;
+	private static final int KEY_LOCKS = 64;
+
+	private final long expectedItems;
+	private final double falsePositiveRate;
+	private final long rotationMillis;
+	private final int blocks;
+	private final int hashes;
+	private final Object[] keyLocks = new Object[KEY_LOCKS];
+	private volatile AtomicLongArray current;
+	// null unless rotating
+	private volatile AtomicLongArray previous;
+	private volatile long rotatedAt;
+
+	/*
+	 * @param rotationMillis how often the filter rotates, 0 to keep keys forever
+	 */
+	public BloomFilter(final long expectedItems, final double falsePositiveRate, final long rotationMillis) {
+		if (expectedItems < 1) {
+			throw new IllegalArgumentException("Expected items must be positive, got " + expectedItems);
+		}
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("False positive rate must be in (0, 1), got " + falsePositiveRate);
+		}
+		if (rotationMillis < 0) {
+			throw new IllegalArgumentException("Rotation interval must not be negative, got " + rotationMillis);
+		}
+		this.expectedItems = expectedItems;
+		this.falsePositiveRate = falsePositiveRate;
+		this.rotationMillis = rotationMillis;
+		final long blocks = optimalBlocks(expectedItems, falsePositiveRate);
+		if (blocks * BLOCK_WORDS > Integer.MAX_VALUE - BLOCK_WORDS) {
+			throw new IllegalArgumentException(
+					expectedItems + " items at a false positive rate of " + falsePositiveRate + " need too many bits");
+		}
+		this.blocks = (int) blocks;
+		this.hashes = optimalHashes(blocks, expectedItems);
+		for (int i = 0; i < KEY_LOCKS; i++) {
+			keyLocks[i] = new Object();
+		}
+		this.current = new AtomicLongArray(this.blocks * BLOCK_WORDS);
+		this.previous = rotationMillis > 0 ? new AtomicLongArray(this.blocks * BLOCK_WORDS) : null;
+		this.rotatedAt = System.currentTimeMillis();
+	}
+
+	/*
+	 * Blocks for n items at rate p. A standard Bloom filter needs
+	 * -n ln p / (ln 2)^2 bits, but blocks get a Poisson distributed share of the
+	 * keys and the fuller ones dominate the rate, so the size is raised in 5%
+	 * steps until the rate of the blocked filter is low enough.
+	 *
+	 * Ref: Putze, Sanders, Singler: Cache-, Hash- and Space-Efficient Bloom Filters
+	 */
+	static long optimalBlocks(final long n, final double p) {
+		double bits = -n * Math.log(p) / (Math.log(2) * Math.log(2));
+		while (true) {
+			final long blocks = (long) Math.ceil(bits / BLOCK_BITS);
+			if (falsePositiveRate(n, blocks, optimalHashes(blocks, n)) <= p || blocks > Integer.MAX_VALUE) {
+				return blocks;
+			}
+			bits *= 1.05;
+		}
+	}
+
+	private static int optimalHashes(final long blocks, final long n) {
+		return (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) blocks * BLOCK_BITS / n * Math.log(2))));
+	}
+
+	// false positive rate of n keys in blocks, summed over the Poisson distributed block loads
+	static double falsePositiveRate(final long n, final long blocks, final int hashes) {
+		final double load = (double) n / blocks;
+		final int last = (int) (load + 10 * Math.sqrt(load) + 10);
+		double rate = 0;
+		for (int i = 0; i <= last; i++) {
+			final double probability = Math.exp(i * Math.log(load) - load - logFactorial(i));
+			final double inner = Math.pow(1 - Math.pow(1 - 1.0 / BLOCK_BITS, (double) hashes * i), hashes);
+			rate += probability * inner;
+		}
+		return rate;
+	}
+
+	private static double logFactorial(final int n) {
+		double sum = 0;
+		for (int i = 2; i <= n; i++) {
+			sum += Math.log(i);
+		}
+		return sum;
+	}
+
+	public long getExpectedItems() {
+		return expectedItems;
+	}
+
+	public double getFalsePositiveRate() {
+		return falsePositiveRate;
+	}
+
+	public long getRotationMillis() {
+		return rotationMillis;
+	}
+
+	public int getHashes() {
+		return hashes;
+	}
+
+	public long getMemoryBytes() {
+		return (previous != null ? 2L : 1L) * blocks * BLOCK_BITS / 8;
+	}
+
+	// memory of a filter built with these parameters
+	public static long getMemoryBytes(final long expectedItems, final double falsePositiveRate,
+			final long rotationMillis) {
+		final long blocks = optimalBlocks(expectedItems, falsePositiveRate);
+		return (rotationMillis > 0 ? 2L : 1L) * blocks * BLOCK_BITS / 8;
+	}
+
+	public boolean matches(final long expectedItems, final double falsePositiveRate, final long rotationMillis) {
+		return this.expectedItems == expectedItems && this.falsePositiveRate == falsePositiveRate
+				&& this.rotationMillis == rotationMillis;
+	}
+
+	public long hash(final CharSequence key) {
+		return Murmur3.hash64(key, 0);
+	}
+
+	public boolean mightContain(final long hash64) {
+		rotateIfDue();
+		final AtomicLongArray previous = this.previous;
+		return contains(current, hash64) || (previous != null && contains(previous, hash64));
+	}
+
+	/*
+	 * Adds a key and returns whether it was new, i.e. false for a (possibly false
+	 * positive) duplicate. Of two threads adding the same key at once exactly one
+	 * sees it as new.
+	 */
+	public boolean put(final long hash64) {
+		rotateIfDue();
+		final AtomicLongArray previous = this.previous;
+		synchronized (keyLocks[(int) hash64 & (KEY_LOCKS - 1)]) {
+			final boolean added = add(current, hash64);
+			return added && (previous == null || !contains(previous, hash64));
+		}
+	}
+
+	// starts a new generation if the rotation interval has passed
+	private void rotateIfDue() {
+		if (rotationMillis == 0 || System.currentTimeMillis() - rotatedAt < rotationMillis) {
+			return;
+		}
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			if (now - rotatedAt < rotationMillis) {
+				return;
+			}
+			// two intervals without a rotation leave nothing worth keeping
+			final boolean stale = now - rotatedAt >= 2 * rotationMillis;
+			previous = stale ? new AtomicLongArray(blocks * BLOCK_WORDS) : current;
+			current = new AtomicLongArray(blocks * BLOCK_WORDS);
+			rotatedAt = now;
+		}
+	}
+
+	private boolean contains(final AtomicLongArray bits, final long hash64) {
+		final int block = block(hash64);
+		long probe = hash64;
+		for (int i = 0; i < hashes; i++) {
+			probe = next(probe);
+			final int bit = (int) (probe >>> 55);
+			if ((bits.get(block + (bit >>> 6)) & 1L << bit) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// sets the bits of a key, returns whether any was clear
+	private boolean add(final AtomicLongArray bits, final long hash64) {
+		final int block = block(hash64);
+		long probe = hash64;
+		boolean added = false;
+		for (int i = 0; i < hashes; i++) {
+			probe = next(probe);
+			final int bit = (int) (probe >>> 55);
+			final int index = block + (bit >>> 6);
+			final long mask = 1L << bit;
+			long word;
+			while (((word = bits.get(index)) & mask) == 0) {
+				if (bits.compareAndSet(index, word, word | mask)) {
+					added = true;
+					break;
+				}
+			}
+		}
+		return added;
+	}
+
+	// first word of the block of a key, from the high bits
+	private int block(final long hash64) {
+		return (int) (((hash64 >>> 32) * blocks) >>> 32) * BLOCK_WORDS;
+	}
+
+	/*
+	 * Next bit position of a key, in the top 9 bits: a 64 bit LCG, whose high
+	 * bits are close to independent. Double hashing within a block repeats
+	 * positions too often and costs up to 5x the false positive rate at 1e-4.
+	 */
+	private static long next(final long probe) {
+		return probe * 0x5851F42D4C957F2DL + 0x14057B7EF767814FL;
+	}
+}
@@ -0,0 +1,78 @@
+package com.github.processors.sketch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Cells in a ByteBuffer, normally a direct one, so large sketches live outside
+ * the Java heap and are not scanned by the garbage collector. ByteBuffer has no
+ * atomic add, so writes take one of a fixed set of striped locks; reads are
+ * plain absolute gets.
+ * */
+final class BufferCounters implements Counters {
+	// must be a power of two
+	private static final int LOCK_STRIPES = 256;
+
+	private final ByteBuffer buffer;
+	private final int size;
+	private final Object[] locks;
+
+	BufferCounters(final int size) {
+		this(ByteBuffer.allocateDirect(size * 8).order(ByteOrder.nativeOrder()), size);
+	}
+
+	BufferCounters(final ByteBuffer buffer, final int size) {
+		this.buffer = buffer;
+		this.size = size;
+		this.locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long get(final int index) {
+		return buffer.getLong(index << 3);
+	}
+
+	@Override
+	public long add(final int index, final long value) {
+		synchronized (locks[index & (LOCK_STRIPES - 1)]) {
+			final int offset = index << 3;
+			final long updated = buffer.getLong(offset) + value;
+			buffer.putLong(offset, updated);
+			return updated;
+		}
+	}
+
+	@Override
+	public long raise(final int index, final long value) {
+		synchronized (locks[index & (LOCK_STRIPES - 1)]) {
+			final int offset = index << 3;
+			final long updated = Math.max(buffer.getLong(offset), value);
+			buffer.putLong(offset, updated);
+			return updated;
+		}
+	}
+
+	@Override
+	public long getMemoryBytes() {
+		return 8L * size;
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			buffer.putLong(i << 3, 0);
+		}
+	}
+
+	@Override
+	public void checkpoint() {
+	}
+}
@@ -0,0 +1,191 @@
+package com.github.processors.sketch;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Seeds a sketch from a file of lines in the format of LineCounter, in
+ * parallel: the file is split at line boundaries into blocks of up to
+ * BLOCK_SIZE bytes, which fork-join tasks memory-map and parse in place with a
+ * LineCounter of their worker thread. Keys are hashed straight out of the
+ * mapping: no block is copied to the heap and no String is created per line.
+ *
+ * A plain sketch is counted into one private long[] per worker thread, so the
+ * hot loop touches no shared cache line, and the arrays are merged into the
+ * sketch once at the end. The per-thread state belongs to the loader and the
+ * loader runs on a pool of its own, so nothing outlives load(). Sketches with heavy hitters, ranges, windows or
+ * conservative update need the keys in order and are updated directly by the
+ * workers instead, through the thread safe update(byte[], ...).
+ * */
+final class BulkLoader {
+	static final int BLOCK_SIZE = 16 * 1024 * 1024;
+	// bytes read at a time while looking for the end of a line
+	private static final int SCAN_SIZE = 8 * 1024;
+
+	private final CountMinSketch cms;
+	private final int delimiter;
+	private final FileChannel channel;
+	private final boolean local;
+	private final ConcurrentMap<Thread, Worker> workers = new ConcurrentHashMap<Thread, Worker>();
+
+	private BulkLoader(final CountMinSketch cms, final int delimiter, final FileChannel channel) {
+		this.cms = cms;
+		this.delimiter = delimiter;
+		this.channel = channel;
+		this.local = cms.isMergeable();
+	}
+
+	/*
+	 * Loads file into cms and returns the number of lines counted.
+	 *
+	 * @param delimiter the key/value separator, or -1 if lines hold only a key
+	 * @param parallelism the number of worker threads, 0 for one per core
+	 */
+	static long load(final CountMinSketch cms, final Path file, final int delimiter, final int parallelism)
+			throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			final BulkLoader loader = new BulkLoader(cms, delimiter, channel);
+			final Block root = loader.new Block(0, channel.size());
+			final ForkJoinPool pool = new ForkJoinPool(
+					parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+			final long lines;
+			try {
+				lines = pool.invoke(root);
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} catch (NumberFormatException e) {
+				// a failure on another thread is rethrown as a copy without the message
+				throw e.getCause() instanceof NumberFormatException ? (NumberFormatException) e.getCause() : e;
+			} finally {
+				pool.shutdown();
+			}
+			loader.merge();
+			return lines;
+		}
+	}
+
+	// sums the private arrays into the first one and merges that into the sketch
+	private void merge() {
+		if (!local || workers.isEmpty()) {
+			return;
+		}
+		long[] sum = null;
+		for (Worker worker : workers.values()) {
+			final long[] cells = worker.cells;
+			if (sum == null) {
+				sum = cells;
+			} else {
+				for (int i = 0; i < sum.length; i++) {
+					sum[i] += cells[i];
+				}
+			}
+		}
+		workers.clear();
+		cms.merge(sum);
+	}
+
+	private Worker worker() {
+		final Thread thread = Thread.currentThread();
+		Worker worker = workers.get(thread);
+		if (worker == null) {
+			// only this thread adds its own worker
+			worker = new Worker();
+			workers.put(thread, worker);
+		}
+		return worker;
+	}
+
+	// first position after the '\n' at or after position, or the end of the file
+	private long lineEnd(long position, final long end) throws IOException {
+		final ByteBuffer scan = ByteBuffer.allocate(SCAN_SIZE);
+		while (position < end) {
+			scan.clear();
+			final int n = channel.read(scan, position);
+			if (n <= 0) {
+				break;
+			}
+			for (int i = 0; i < n; i++) {
+				if (scan.get(i) == '\n') {
+					return Math.min(position + i + 1, end);
+				}
+			}
+			position += n;
+		}
+		return end;
+	}
+
+	// the lines of [from, to), where from starts a line and to ends one
+	private final class Block extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+
+		private final long from;
+		private final long to;
+
+		Block(final long from, final long to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Long compute() {
+			try {
+				if (to - from > BLOCK_SIZE) {
+					final long middle = lineEnd(from + (to - from) / 2, to);
+					if (middle < to) {
+						final Block right = new Block(middle, to);
+						right.fork();
+						final long left = new Block(from, middle).compute();
+						return left + right.join();
+					}
+					// a single line, count it as one block
+				}
+				return worker().count(from, to);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	// the parsing state of one thread
+	private final class Worker extends LineCounter {
+		private final long[] cells;
+
+		Worker() {
+			super(cms, delimiter);
+			this.cells = local ? new long[cms.getCellCount()] : null;
+			reset(1);
+		}
+
+		long count(final long from, final long to) throws IOException {
+			if (to - from > Integer.MAX_VALUE) {
+				throw new IOException("Line at " + from + " is longer than " + Integer.MAX_VALUE + " bytes");
+			}
+			final int length = (int) (to - from);
+			final MappedByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+			// Murmur3 reads the key blocks as little-endian longs
+			block.order(ByteOrder.LITTLE_ENDIAN);
+			final long before = getLines();
+			lines(block, 0, length);
+			return getLines() - before;
+		}
+
+		@Override
+		void count(final ByteBuffer key, final int offset, final int length, final long value) {
+			if (cells != null) {
+				cms.addTo(cells, cms.hash(key, offset, length), value);
+			} else {
+				super.count(key, offset, length, value);
+			}
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package com.github.processors.sketch;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.nifi.processor.io.StreamCallback;
+
+/*
+ * Answers the keys listed in FlowFile content, one per line, and replaces the
+ * content with one row per key and its estimate, in input order: CSV with a
+ * key,count header, or JSON such as
+ * {"sketch":"default","counts":[{"key":"10.0.0.1","count":42}]}.
+ *
+ * Lines are split as by LineCounter and keys are hashed straight out of the
+ * read buffer, so no String is created per key. Up to BATCH keys are collected
+ * and resolved with one CountMinSketch.getEstimatedCounts call, which locates
+ * the cells of the whole batch before reading any, then written out while
+ * their bytes are still in the buffer.
+ * */
+final class ContentQuery implements StreamCallback {
+	static final int BATCH = 1024;
+	private static final byte[] CSV_HEADER = "key,count\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] JSON_KEY = "{\"key\":".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] JSON_COUNT = ",\"count\":".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	// null if the sketch does not exist yet, every estimate is 0 then
+	private final CountMinSketch cms;
+	private final String name;
+	private final int recentWindows;
+	private final boolean json;
+	private byte[] buffer = new byte[LineCounter.BUFFER_SIZE];
+	private final int[] starts = new int[BATCH];
+	private final int[] ends = new int[BATCH];
+	private final long[] hashes = new long[BATCH];
+	private final long[] counts = new long[BATCH];
+	private final byte[] digits = new byte[20];
+	private OutputStream out;
+	private int pending;
+	private long keys;
+
+	ContentQuery(final CountMinSketch cms, final String name, final int recentWindows, final boolean json) {
+		this.cms = cms;
+		this.name = name;
+		this.recentWindows = recentWindows;
+		this.json = json;
+	}
+
+	// number of keys answered for the last FlowFile
+	long getKeys() {
+		return keys;
+	}
+
+	@Override
+	public void process(final InputStream in, final OutputStream out) throws IOException {
+		this.out = new BufferedOutputStream(out, LineCounter.BUFFER_SIZE);
+		this.pending = 0;
+		this.keys = 0;
+		if (json) {
+			final StringBuilder header = new StringBuilder("{\"sketch\":");
+			Json.appendString(header, name);
+			this.out.write(header.append(",\"counts\":[").toString().getBytes(StandardCharsets.UTF_8));
+		} else {
+			this.out.write(CSV_HEADER);
+		}
+
+		// unconsumed bytes are buffer[start, end); bytes before scan hold no '\n'
+		int start = 0;
+		int end = 0;
+		int scan = 0;
+		int n;
+		while ((n = in.read(buffer, end, buffer.length - end)) != -1) {
+			end += n;
+			for (; scan < end; scan++) {
+				if (buffer[scan] == '\n') {
+					line(start, scan);
+					start = scan + 1;
+				}
+			}
+
+			// pending keys point into the buffer, answer them before it moves
+			flush();
+			if (start > 0) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				scan -= start;
+				start = 0;
+			} else if (end == buffer.length) {
+				final byte[] grown = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, grown, 0, end);
+				buffer = grown;
+			}
+		}
+		if (start < end) {
+			line(start, end);
+		}
+		flush();
+
+		if (json) {
+			this.out.write(']');
+			this.out.write('}');
+		}
+		this.out.flush();
+	}
+
+	private void line(final int from, int to) throws IOException {
+		if (to > from && buffer[to - 1] == '\r') {
+			to--;
+		}
+		if (to == from) {
+			return;
+		}
+		starts[pending] = from;
+		ends[pending] = to;
+		hashes[pending] = cms == null ? 0 : cms.hash(buffer, from, to - from);
+		if (++pending == BATCH) {
+			flush();
+		}
+	}
+
+	// resolves the pending keys and writes their rows
+	private void flush() throws IOException {
+		if (pending == 0) {
+			return;
+		}
+		if (cms != null) {
+			cms.getEstimatedCounts(hashes, pending, recentWindows, counts);
+		}
+		for (int i = 0; i < pending; i++) {
+			if (json) {
+				if (keys + i > 0) {
+					out.write(',');
+				}
+				out.write(JSON_KEY);
+				writeJsonString(starts[i], ends[i]);
+				out.write(JSON_COUNT);
+				writeLong(cms == null ? 0 : counts[i]);
+				out.write('}');
+			} else {
+				writeCsvField(starts[i], ends[i]);
+				out.write(',');
+				writeLong(cms == null ? 0 : counts[i]);
+				out.write('\n');
+			}
+		}
+		keys += pending;
+		pending = 0;
+	}
+
+	// quoted, with quotes doubled, if the key holds a comma or quote
+	private void writeCsvField(final int from, final int to) throws IOException {
+		boolean quote = false;
+		for (int i = from; i < to && !quote; i++) {
+			quote = buffer[i] == ',' || buffer[i] == '"';
+		}
+		if (!quote) {
+			out.write(buffer, from, to - from);
+			return;
+		}
+		out.write('"');
+		int run = from;
+		for (int i = from; i < to; i++) {
+			if (buffer[i] == '"') {
+				out.write(buffer, run, i + 1 - run);
+				out.write('"');
+				run = i + 1;
+			}
+		}
+		out.write(buffer, run, to - run);
+		out.write('"');
+	}
+
+	// as Json.appendString, on UTF-8 bytes, which pass through unchanged above 0x7f
+	private void writeJsonString(final int from, final int to) throws IOException {
+		out.write('"');
+		for (int i = from; i < to; i++) {
+			final int c = buffer[i] & 0xff;
+			if (c == '"' || c == '\\') {
+				out.write('\\');
+				out.write(c);
+			} else if (c == '\t' || c == '\n' || c == '\r') {
+				out.write('\\');
+				out.write(c == '\t' ? 't' : c == '\n' ? 'n' : 'r');
+			} else if (c < 0x20) {
+				out.write('\\');
+				out.write('u');
+				out.write('0');
+				out.write('0');
+				out.write(HEX[c >>> 4]);
+				out.write(HEX[c & 0xf]);
+			} else {
+				out.write(c);
+			}
+		}
+		out.write('"');
+	}
+
+	private void writeLong(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			out.write(String.valueOf(value).getBytes(StandardCharsets.US_ASCII));
+			return;
+		}
+		if (value < 0) {
+			out.write('-');
+			value = -value;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		out.write(digits, i, digits.length - i);
+	}
+}
@@ -1,97 +1,818 @@
 package com.github.processors.sketch;
 
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
 /*
  * This Class implements probabilistic data structure 'Count-Min Sketch'
  * Ref: http://dimacs.rutgers.edu/~graham/pubs/papers/cmencyc.pdf
  * Ref: https://github.com/prasanthj/count-min-sketch
  * 
+ * Sketches are created with a Builder; processors share them by name through a
+ * CountMinSketchService.
+ * 
+ * Counters are kept in one flat array of atomic cells (see Storage and Layout
+ * for the alternatives), so update and getEstimatedCount may be
+ * called from any number of threads (e.g. UpdateCMS with several concurrent
+ * tasks) without losing counts.
+ * 
+ * A sketch can also be split into a ring of time windows (Builder.windows) so
+ * that old traffic ages out, optionally with exponential decay across windows.
+ * 
+ * Builder.ranges adds dyadic counters for numeric and IPv4 keys so that range
+ * and CIDR prefix counts (getRangeCount) take O(log U) lookups.
+ * 
+ * Builder.conservative only raises the counters of a key that are below its
+ * new estimate, and Builder.counterBits selects saturating 32 or 16 bit
+ * counters; see test.AccuracyComparison for the error and memory trade-off.
+ * 
+ * Builder.volume sizes a sketch from the expected stream volume and the
+ * largest acceptable error, and fold() halves the width of a live sketch in
+ * place when the traffic turns out lower than planned.
+ * 
+ * Builder.preAggregate puts a small table in front of the counters that sums
+ * the updates of the hottest keys exactly and writes them in one update each
+ * (see HotKeys). Estimates include the buffered deltas.
+ * 
+ * Keys are hashed with Murmur3 (see Murmur3) over their UTF-8 bytes without
+ * any intermediate allocation. Callers that hash once and reuse the result can
+ * use hash(...) together with update(long, long) and getEstimatedCount(long).
+ * Migration: earlier versions hashed key.getBytes() in the platform default
+ * charset through Guava's murmur3_128. Row positions are unchanged for
+ * ASCII keys and on platforms whose default charset is UTF-8 (the NiFi default);
+ * sketches built elsewhere with non-ASCII keys must be rebuilt.
+ * 
  * @author prashanth
  * */
 public final class CountMinSketch {
-	private static CountMinSketch instance = null;
-	private final int width;
+	// cells per block in the BLOCKED layout: 128 bytes, i.e. two cache lines
+	static final int BLOCK_CELLS = 16;
+	// a ByteBuffer is int addressed, so off-heap sketches are capped at 2^31 bytes
+	static final int MAX_OFF_HEAP_CELLS = Integer.MAX_VALUE / 8;
+	// conservative updates of the same key are serialized on one of these, must be a power of two
+	private static final int KEY_LOCKS = 64;
+
+	/*
+	 * Where the counters live. HEAP is a single flat on-heap array; OFF_HEAP is a
+	 * direct buffer outside the garbage collected heap; MAPPED is a memory-mapped
+	 * file that survives restarts (see Builder.persistTo).
+	 */
+	public enum Storage {
+		HEAP, OFF_HEAP, MAPPED
+	}
+
+	/*
+	 * How (row, column) maps to a cell. ROWS stores row after row, so one update
+	 * touches depth cache lines. BLOCKED picks one 128-byte block per key and
+	 * places all depth counters of that key inside it, so an update touches at most
+	 * two or three cache lines. Rows of a key then share a block, which weakens
+	 * their independence: use it when throughput matters more than the tightest
+	 * error bound, and prefer a larger width to compensate.
+	 */
+	public enum Layout {
+		ROWS, BLOCKED
+	}
+
+	// the width the sketch was built with, see matches; fold() halves the current one
+	private final int plannedWidth;
 	private final int depth;
-	private final long[][] sketch;
-	private final HashFunction murmur_;
+	private final int seed;
+	private final Storage storage;
+	private final Layout layout;
+	private final File file;
+	// BLOCKED layout only
+	private final int blocks;
+	private final int slotsPerRow;
+	// null unless the sketch tracks heavy hitters
+	private final HeavyHitters heavyHitters;
+	// exactly one of table.counters and windows is set
+	private volatile Table table;
+	// writers of table, null unless fold() may replace it
+	private final Writers writers;
+	private final Windows windows;
+	// weight of a window relative to the next newer one, 1 means no decay
+	private final double decay;
+	private final int counterBits;
+	// null unless updates are conservative
+	private final Object[] keyLocks;
+	// null unless the sketch supports range queries
+	private final DyadicSketch ranges;
+	// null unless updates are pre-aggregated
+	private final HotKeys hotKeys;
+	// total weight of a sketch that is not windowed
+	private final LongAdder weight = new LongAdder();
+	private final SketchMetrics metrics = new SketchMetrics();
 
 	public int getWidth() {
-		return width;
+		return table.width;
 	}
 
 	public int getDepth() {
 		return depth;
 	}
 
+	public int getSeed() {
+		return seed;
+	}
+
+	public Storage getStorage() {
+		return storage;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	// the file backing a MAPPED sketch, null for the other storages
+	public File getFile() {
+		return file;
+	}
+
+	public int getCounterBits() {
+		return counterBits;
+	}
+
+	public boolean isConservative() {
+		return keyLocks != null;
+	}
+
+	/*
+	 * Number of distinct cells in a row. Equal to the width, except for the
+	 * BLOCKED layout where it is the number of slots a row owns across all blocks.
+	 */
+	public int getRowWidth() {
+		return rowWidth(table);
+	}
+
+	private int rowWidth(final Table t) {
+		return layout == Layout.BLOCKED ? blocks * slotsPerRow : t.width;
+	}
+
+	public long getMemoryBytes() {
+		if (windows != null) {
+			// including the spare window, see Windows
+			return (windows.size() + 1L) * windows.get(0).getMemoryBytes();
+		}
+		return table.counters.getMemoryBytes() + (ranges == null ? 0 : ranges.getMemoryBytes())
+				+ (hotKeys == null ? 0 : HotKeys.getMemoryBytes(hotKeys.getKeys()));
+	}
+
+	// number of keys the pre-aggregation table holds, 0 without pre-aggregation
+	public int getPreAggregatedKeys() {
+		return hotKeys == null ? 0 : hotKeys.getKeys();
+	}
+
+	// number of bits of the numeric keys range queries cover, 0 without range support
+	public int getRangeBits() {
+		return ranges == null ? 0 : ranges.getBits();
+	}
+
+	/*
+	 * Estimated total count of the numeric keys in [lo, hi], e.g. of the IPv4
+	 * addresses of a CIDR prefix, in O(range bits) lookups. Only keys updated as
+	 * text (IPv4 addresses or non-negative integers) are counted. The additive
+	 * error is at most 2 * range bits times that of a point estimate.
+	 *
+	 * @throws IllegalStateException if the sketch was not built with ranges
+	 */
+	public long getRangeCount(final long lo, final long hi) {
+		if (ranges == null) {
+			throw new IllegalStateException("The sketch was not built with range support");
+		}
+		return ranges.rangeCount(lo, hi);
+	}
+
+	// number of time windows, 1 for a sketch that is not windowed
+	public int getWindows() {
+		return windows == null ? 1 : windows.size();
+	}
+
+	// duration of a window, 0 for a sketch that is not windowed
+	public long getWindowMillis() {
+		return windows == null ? 0 : windows.getDurationMillis();
+	}
+
+	/*
+	 * Whether this sketch has the shape the builder describes, i.e. whether
+	 * building it again would only lose the counts.
+	 */
+	public boolean matches(final Builder builder) {
+		return plannedWidth == builder.width && depth == builder.depth && seed == builder.seed
+				&& storage == builder.storage && layout == builder.layout
+				&& (heavyHitters == null ? 0 : heavyHitters.getCapacity()) == builder.topK
+				&& getWindowMillis() == builder.windowMillis
+				&& (builder.windowMillis == 0 || getWindows() == builder.windows) && decay == builder.decay
+				&& counterBits == builder.counterBits && isConservative() == builder.conservative
+				&& getRangeBits() == builder.rangeBits && getPreAggregatedKeys() == builder.hotKeys
+				&& (hotKeys == null || hotKeys.getFlushUpdates() == builder.flushUpdates
+						&& hotKeys.getFlushMillis() == builder.flushMillis)
+				&& (file == null ? builder.file == null : file.equals(builder.file))
+				&& (writers != null) == builder.foldable;
+	}
+
+	/*
+	 * Writes the deltas buffered by pre-aggregation to the counters. Raw reads
+	 * such as getCounts and checkpoint do so themselves; estimates never need it.
+	 */
+	public void flush() {
+		if (hotKeys != null) {
+			hotKeys.flush();
+		}
+	}
+
+	/*
+	 * Forces the counters and the total count of a MAPPED sketch to disk, after
+	 * flushing; does nothing for the other storages.
+	 */
+	public void checkpoint() {
+		flush();
+		final Counters c = table.counters;
+		if (c instanceof MappedCounters) {
+			((MappedCounters) c).checkpoint(weight.sum());
+		} else if (c != null) {
+			c.checkpoint();
+		}
+	}
+
+	// null unless the sketch was built with topK
+	public HeavyHitters getHeavyHitters() {
+		return heavyHitters;
+	}
+
+	/*
+	 * Returns a point-in-time copy of the counters, one array per row. Rows are
+	 * copied one cell at a time, so concurrent updates may be partially reflected.
+	 * A windowed sketch returns the sum of all its windows, without decay.
+	 */
 	public long[][] getSketch() {
-		return sketch;
+		flush();
+		final Table t = table;
+		final int rowWidth = rowWidth(t);
+		final long[][] copy = new long[depth][rowWidth];
+		for (int w = 0; w < getWindows(); w++) {
+			final Counters c = windows == null ? t.counters : windows.get(w);
+			for (int i = 0; i < depth; i++) {
+				for (int j = 0; j < rowWidth; j++) {
+					copy[i][j] += c.get(cell(t.width, i, j));
+				}
+			}
+		}
+		return copy;
+	}
+
+	/*
+	 * Whether fold() is supported: a sketch built foldable (Builder.foldable)
+	 * whose width is still even.
+	 */
+	public boolean isFoldable() {
+		return writers != null && table.width % 2 == 0;
+	}
+
+	/*
+	 * Halves the width in place: column j + width/2 of every row is added to
+	 * column j, which is where every key lands at half the width since
+	 * (h % w) % (w/2) == h % (w/2) for an even w. Memory halves and the error
+	 * bound e / width * N doubles; no count is lost and estimates only grow.
+	 * Returns the new error bound.
+	 *
+	 * Updates may go on meanwhile: the folded counts are copied before the new
+	 * counters replace the old ones, then fold waits for the updates still
+	 * writing to the old counters and adds whatever they received since the copy.
+	 * No update is lost, but until fold returns an estimate may miss updates made
+	 * during the copy.
+	 *
+	 * @throws IllegalStateException if the sketch is not foldable
+	 */
+	public synchronized double fold() {
+		if (!isFoldable()) {
+			throw new IllegalStateException("Only sketches built foldable can be folded, and only at an even width; "
+					+ "width is " + table.width);
+		}
+		final Table old = table;
+		final int half = old.width / 2;
+		final Counters counters = newCounters(new Builder().dimensions(half, depth).storage(storage)
+				.counterBits(counterBits), half * depth);
+		final long[] copied = new long[half * depth];
+		for (int i = 0, k = 0; i < depth; i++) {
+			for (int j = 0; j < half; j++, k++) {
+				final int from = i * old.width + j;
+				copied[k] = old.counters.get(from) + old.counters.get(from + half);
+				counters.add(k, copied[k]);
+			}
+		}
+		table = new Table(half, counters);
+		writers.drain();
+		for (int i = 0, k = 0; i < depth; i++) {
+			for (int j = 0; j < half; j++, k++) {
+				final int from = i * old.width + j;
+				final long missed = old.counters.get(from) + old.counters.get(from + half) - copied[k];
+				if (missed != 0) {
+					counters.add(k, missed);
+				}
+			}
+		}
+		return getErrorBound();
+	}
+
+	public SketchMetrics getMetrics() {
+		return metrics;
 	}
 
-	private CountMinSketch(final float delta, final float epsilon) {
-		this.width = (int) Math.ceil(Math.exp(1.0) / epsilon);
-		this.depth = (int) Math.ceil(Math.log(1.0 / delta));
-		this.sketch = new long[depth][width];
-		this.murmur_ = Hashing.murmur3_128();
+	/*
+	 * Total weight N of the stream the sketch summarizes, i.e. the sum of all
+	 * update values (of all windows), including merged sketches.
+	 */
+	public long getTotalCount() {
+		if (windows == null) {
+			return weight.sum();
+		}
+		windows.current();
+		long total = 0;
+		for (int age = 0; age < windows.size(); age++) {
+			total += windows.weight(age).sum();
+		}
+		return total;
 	}
 
-	private CountMinSketch(final int width, final int depth) {
-		this.width = width;
-		this.depth = depth;
-		this.sketch = new long[depth][width];
-		this.murmur_ = Hashing.murmur3_128();
+	/*
+	 * The additive error bound eps * N with eps = e / width: an estimate exceeds the
+	 * true count by at most this much with probability 1 - e^-depth. The BLOCKED
+	 * layout trades some of that guarantee for speed, so there it is nominal.
+	 */
+	public double getErrorBound() {
+		return Math.E / table.width * getTotalCount();
 	}
 
-	private CountMinSketch(final float delta, final float epsilon, final int seed) {
-		this.width = (int) Math.ceil(Math.exp(1.0) / epsilon);
-		this.depth = (int) Math.ceil(Math.log(1.0 / delta));
-		this.sketch = new long[depth][width];
-		this.murmur_ = Hashing.murmur3_128(seed);
+	/*
+	 * Fraction of non-zero counters per row (over all windows). Estimates degrade as
+	 * it approaches 1. Scans the whole sketch, so call it for reporting only.
+	 */
+	public double[] getFillRatios() {
+		flush();
+		final Table t = table;
+		final int rowWidth = rowWidth(t);
+		final double[] ratios = new double[depth];
+		for (int i = 0; i < depth; i++) {
+			int filled = 0;
+			for (int j = 0; j < rowWidth; j++) {
+				for (int w = 0; w < getWindows(); w++) {
+					if ((windows == null ? t.counters : windows.get(w)).get(cell(t.width, i, j)) != 0) {
+						filled++;
+						break;
+					}
+				}
+			}
+			ratios[i] = (double) filled / rowWidth;
+		}
+		return ratios;
 	}
 
-	private CountMinSketch(final int width, final int depth, final int seed) {
-		this.width = width;
-		this.depth = depth;
-		this.sketch = new long[depth][width];
-		this.murmur_ = Hashing.murmur3_128(seed);
+	// number of counters in storage order, including the padding of the BLOCKED layout
+	public int getCellCount() {
+		return windows == null ? table.counters.size() : windows.get(0).size();
 	}
 
-	public final static void createInstance(final float delta, final float epsilon) {
-		if (null == instance) {
-			synchronized (CountMinSketch.class) {
-				instance = new CountMinSketch(delta, epsilon);
+	/*
+	 * Returns a point-in-time copy of all counters in storage order, as consumed by
+	 * merge and SketchCodec. A windowed sketch returns the sum of its windows.
+	 */
+	public long[] getCounts() {
+		flush();
+		final Counters counters = table.counters;
+		final long[] copy = new long[windows == null ? counters.size() : windows.get(0).size()];
+		for (int w = 0; w < getWindows(); w++) {
+			final Counters c = windows == null ? counters : windows.get(w);
+			for (int i = 0; i < copy.length; i++) {
+				copy[i] += c.get(i);
 			}
 		}
+		return copy;
+	}
+
+	/*
+	 * Whether counts of a sketch with these parameters can be merged into this one,
+	 * i.e. every key maps to the same cells.
+	 */
+	public boolean isCompatible(final int width, final int depth, final int seed, final Layout layout) {
+		return getWidth() == width && this.depth == depth && this.seed == seed && this.layout == layout;
 	}
 
-	public final static void createInstance(final int width, final int depth) {
-		if (null == instance) {
-			synchronized (CountMinSketch.class) {
-				instance = new CountMinSketch(width, depth);
+	/*
+	 * Adds counts taken from a compatible sketch (see getCounts) cell by cell, into
+	 * the current window of a windowed sketch. Heavy hitters and range counters
+	 * are not updated since the keys behind the counts are unknown.
+	 */
+	public void merge(final long[] counts) {
+		final int stripe = writers == null ? -1 : writers.stripe();
+		final Table t = enter(stripe);
+		long sum = 0;
+		try {
+			final Counters c = windows == null ? t.counters : windows.current();
+			if (counts.length != c.size()) {
+				throw new IllegalArgumentException(
+						"Cannot merge " + counts.length + " counters into a sketch of " + c.size());
+			}
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] != 0) {
+					c.add(i, counts[i]);
+					sum += counts[i];
+				}
 			}
+		} finally {
+			exit(stripe);
 		}
+		// every row holds the full weight, except for sketches built with conservative update
+		addWeight(sum / depth);
+	}
+
+	/*
+	 * Counts the lines of a file, one key per line, using all cores; see
+	 * bulkLoad(Path, int, int). Returns the number of lines counted.
+	 */
+	public long bulkLoad(final Path file) throws IOException {
+		return bulkLoad(file, -1, 0);
+	}
+
+	/*
+	 * Counts the lines of a file as UpdateCMS counts FlowFile content in LINES
+	 * mode: with a delimiter (-1 for none) the text after its last occurrence is
+	 * the value to add. The file is memory-mapped and parsed by parallelism
+	 * threads (0 for one per core) of a pool that is shut down afterwards, so a
+	 * large file loads at about the speed of the disk. Returns the number of lines counted.
+	 */
+	public long bulkLoad(final Path file, final int delimiter, final int parallelism) throws IOException {
+		return BulkLoader.load(this, file, delimiter, parallelism);
 	}
 
-	public final static void createInstance(final float delta, final float epsilon, final int seed) {
-		if (null == instance) {
-			synchronized (CountMinSketch.class) {
-				instance = new CountMinSketch(delta, epsilon, seed);
+	/*
+	 * Whether updates may be summed elsewhere and merged later without losing
+	 * anything, i.e. the sketch has no heavy hitters, ranges, windows or
+	 * conservative update.
+	 */
+	boolean isMergeable() {
+		return heavyHitters == null && ranges == null && windows == null && keyLocks == null;
+	}
+
+	// adds a hashed key to cells laid out as getCounts, without touching the sketch
+	void addTo(final long[] cells, final long murmur_128, final long value) {
+		int hash1 = (int) murmur_128;
+		int hash2 = (int) (murmur_128 >>> 32);
+		final int width = table.width;
+		final int block = blockOffset(hash1);
+		for (int i = 1; i <= depth; i++) {
+			cells[index(width, block, i, hash1, hash2)] += value;
+		}
+	}
+
+	private void addWeight(final long value) {
+		(windows == null ? weight : windows.weight(0)).add(value);
+	}
+
+	private CountMinSketch(final Builder builder) {
+		final int width = builder.width;
+		this.plannedWidth = width;
+		this.depth = builder.depth;
+		this.seed = builder.seed;
+		this.storage = builder.storage;
+		this.layout = builder.layout;
+		this.file = builder.file;
+		this.heavyHitters = builder.topK > 0 ? new HeavyHitters(builder.topK) : null;
+
+		final long cells = cellCount(width, depth, layout);
+		if (layout == Layout.BLOCKED) {
+			if (depth > BLOCK_CELLS) {
+				throw new IllegalArgumentException(
+						"The BLOCKED layout supports a depth of at most " + BLOCK_CELLS + ", got " + depth);
 			}
+			this.slotsPerRow = BLOCK_CELLS / depth;
+			this.blocks = (int) (cells / BLOCK_CELLS);
+		} else {
+			this.slotsPerRow = 0;
+			this.blocks = 0;
+		}
+
+		final long maxCells = storage == Storage.HEAP ? Integer.MAX_VALUE - 8 : MAX_OFF_HEAP_CELLS;
+		if (cells > maxCells) {
+			throw new IllegalArgumentException("A " + storage + " sketch holds at most " + maxCells
+					+ " counters, " + width + " x " + depth + " needs " + cells);
+		}
+		this.decay = builder.decay;
+		this.counterBits = builder.counterBits;
+		if (builder.rangeBits > 0) {
+			this.ranges = new DyadicSketch(builder.rangeBits, new Builder().dimensions(width, depth).seed(seed)
+					.storage(storage).layout(layout).counterBits(counterBits).conservative(builder.conservative),
+					cells);
+		} else {
+			this.ranges = null;
+		}
+		if (builder.conservative) {
+			this.keyLocks = new Object[KEY_LOCKS];
+			for (int i = 0; i < KEY_LOCKS; i++) {
+				keyLocks[i] = new Object();
+			}
+		} else {
+			this.keyLocks = null;
+		}
+		this.hotKeys = builder.hotKeys > 0 ? new HotKeys(this, builder.hotKeys, builder.flushUpdates, builder.flushMillis)
+				: null;
+		// see isFoldable; other sketches skip tracking their writers on every update
+		this.writers = builder.foldable ? new Writers() : null;
+		if (builder.windowMillis > 0) {
+			final Counters[] slots = new Counters[builder.windows + 1];
+			for (int i = 0; i < slots.length; i++) {
+				slots[i] = newCounters(builder, (int) cells);
+			}
+			this.windows = new Windows(slots, builder.windowMillis, heavyHitters == null ? null : new Runnable() {
+				@Override
+				public void run() {
+					// keys that went quiet drop out, the others keep the counts of the remaining windows
+					heavyHitters.refresh(CountMinSketch.this);
+				}
+			}, builder.clock);
+			this.table = new Table(width, null);
+		} else {
+			this.windows = null;
+			this.table = new Table(width, newCounters(builder, (int) cells));
+			if (table.counters instanceof MappedCounters) {
+				// a reopened file brings its counts, so the total must come back with them
+				weight.add(((MappedCounters) table.counters).getWeight());
+			}
+		}
+	}
+
+	// the width of a sketch and the counters laid out for it, replaced together by fold()
+	private static final class Table {
+		private final int width;
+		// null for a windowed sketch
+		private final Counters counters;
+
+		Table(final int width, final Counters counters) {
+			this.width = width;
+			this.counters = counters;
 		}
 	}
 
-	public final static void createInstance(final int width, final int depth, final int seed) {
-		if (null == instance) {
-			synchronized (CountMinSketch.class) {
-				instance = new CountMinSketch(width, depth, seed);
+	private static Counters newCounters(final Builder builder, final int cells) {
+		switch (builder.storage) {
+		case OFF_HEAP:
+			return new BufferCounters(cells);
+		case MAPPED:
+			try {
+				return MappedCounters.open(builder.file, builder.width, builder.depth, builder.seed, builder.layout,
+						cells);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
 			}
+		default:
+			if (builder.counterBits == 16) {
+				return new ShortCounters(cells);
+			} else if (builder.counterBits == 32) {
+				return new IntCounters(cells);
+			}
+			return new HeapCounters(cells);
 		}
 	}
 
-	public final static CountMinSketch getInstance() {
-		assert null != instance : "Null Instane Found";
-		return instance;
+	private static long cellCount(final int width, final int depth, final Layout layout) {
+		if (layout == Layout.BLOCKED) {
+			return Math.max(1, ((long) width * depth + BLOCK_CELLS - 1) / BLOCK_CELLS) * BLOCK_CELLS;
+		}
+		return (long) width * depth;
+	}
+
+	/*
+	 * Builds a sketch either from its accuracy (delta, epsilon) or from explicit
+	 * dimensions (width, depth). Whichever is set last wins.
+	 */
+	public static final class Builder {
+		private int width;
+		private int depth;
+		private int seed = 0;
+		private Storage storage = Storage.HEAP;
+		private Layout layout = Layout.ROWS;
+		private File file;
+		private int topK = 0;
+		private int windows = 1;
+		private long windowMillis = 0;
+		private double decay = 1.0;
+		private int counterBits = 64;
+		private boolean conservative = false;
+		private int rangeBits = 0;
+		private int hotKeys = 0;
+		private int flushUpdates = 0;
+		private long flushMillis = 0;
+		private boolean foldable = false;
+		private LongSupplier clock = Windows.SYSTEM_CLOCK;
+
+		public Builder() {
+			accuracy(SketchConstants.DEFAULT_DELTA, SketchConstants.DEFAULT_EPSILON);
+		}
+
+		public Builder accuracy(final float delta, final float epsilon) {
+			this.width = (int) Math.ceil(Math.exp(1.0) / epsilon);
+			this.depth = (int) Math.ceil(Math.log(1.0 / delta));
+			return this;
+		}
+
+		/*
+		 * Sizes the sketch for a stream of about expectedCount total weight so that
+		 * estimates exceed true counts by at most maxError with probability
+		 * 1 - delta, i.e. epsilon = maxError / expectedCount. The width is rounded up
+		 * to a power of two, so the sketch can be folded repeatedly if the stream
+		 * turns out smaller.
+		 */
+		public Builder volume(final long expectedCount, final long maxError, final float delta) {
+			if (expectedCount < 1 || maxError < 1) {
+				throw new IllegalArgumentException(
+						"Expected count and error must be positive, got " + expectedCount + " and " + maxError);
+			}
+			final double width = Math.ceil(Math.E * expectedCount / maxError);
+			this.width = width >= 1 << 30 ? 1 << 30 : Integer.highestOneBit((int) width - 1 | 1) << 1;
+			this.depth = (int) Math.ceil(Math.log(1.0 / delta));
+			return this;
+		}
+
+		public Builder dimensions(final int width, final int depth) {
+			this.width = width;
+			this.depth = depth;
+			return this;
+		}
+
+		public Builder seed(final int seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		public Builder storage(final Storage storage) {
+			this.storage = storage;
+			return this;
+		}
+
+		public Builder layout(final Layout layout) {
+			this.layout = layout;
+			return this;
+		}
+
+		/*
+		 * Backs the counters with a memory-mapped file. An existing file is remapped
+		 * as is if its header matches this sketch, otherwise build() fails; a missing
+		 * file is created empty.
+		 */
+		public Builder persistTo(final File file) {
+			this.file = file;
+			this.storage = Storage.MAPPED;
+			return this;
+		}
+
+		/*
+		 * Tracks the k keys with the highest estimates, see HeavyHitters. Only keys
+		 * passed as String or byte[] are tracked, not pre-hashed updates. 0 disables it.
+		 */
+		public Builder topK(final int k) {
+			this.topK = k;
+			return this;
+		}
+
+		/*
+		 * Allows fold() while updates go on. Every update then registers as a
+		 * writer, two more atomic operations, so only set it if the sketch will be
+		 * folded. Needs the ROWS layout and no windows, ranges or MAPPED storage.
+		 */
+		public Builder foldable(final boolean foldable) {
+			this.foldable = foldable;
+			return this;
+		}
+
+		/*
+		 * Splits the sketch into a ring of count windows of the given duration.
+		 * Estimates cover the most recent count windows (a sliding window with one
+		 * window of granularity) or fewer, see getEstimatedCount(String, int); a
+		 * single window gives tumbling counts that reset every duration. One more
+		 * window is allocated as a spare, see Windows.
+		 */
+		public Builder windows(final int count, final long durationMillis) {
+			this.windows = count;
+			this.windowMillis = durationMillis;
+			return this;
+		}
+
+		// the time windows rotate by, in milliseconds; tests set their own
+		Builder clock(final LongSupplier clock) {
+			this.clock = clock;
+			return this;
+		}
+
+		/*
+		 * Weighs each window by factor relative to the next newer one, so a count
+		 * from age windows ago contributes factor^age. Needs windows.
+		 */
+		public Builder decay(final double factor) {
+			this.decay = factor;
+			return this;
+		}
+
+		/*
+		 * Bits per counter: 64 (default), or 32 and 16 for saturating counters that
+		 * cut memory by 2x and 4x. Narrow counters are HEAP only and never go
+		 * below 0.
+		 */
+		public Builder counterBits(final int bits) {
+			this.counterBits = bits;
+			return this;
+		}
+
+		/*
+		 * Conservative update only raises the counters of a key that are below its new
+		 * estimate instead of adding to all of them. Estimates stay upper bounds
+		 * but are much tighter on skewed streams. Values must not be negative.
+		 */
+		public Builder conservative(final boolean conservative) {
+			this.conservative = conservative;
+			return this;
+		}
+
+		/*
+		 * Adds range support for numeric keys below 2^bits (32 for IPv4 addresses):
+		 * every such key also updates one counter set per dyadic level, see
+		 * getRangeCount. Costs up to bits + 1 times the updates and memory.
+		 */
+		public Builder ranges(final int bits) {
+			this.rangeBits = bits;
+			return this;
+		}
+
+		/*
+		 * Sums the updates of up to keys hot keys exactly before they reach the
+		 * counters, see HotKeys. Pending deltas are written when a key is evicted,
+		 * and all of them after about flushUpdates buffered updates or flushMillis.
+		 * Not supported with topK or windows. 0 keys disables it.
+		 */
+		public Builder preAggregate(final int keys, final int flushUpdates, final long flushMillis) {
+			this.hotKeys = keys;
+			this.flushUpdates = flushUpdates;
+			this.flushMillis = flushMillis;
+			return this;
+		}
+
+		// counter memory the built sketch will use, including its pre-aggregation table
+		public long getMemoryBytes() {
+			final long cells = cellCount(width, depth, layout);
+			final long point = counterBits / 8L * cells;
+			final long table = hotKeys > 0 ? HotKeys.getMemoryBytes(hotKeys) : 0;
+			if (rangeBits > 0) {
+				return point * (1 + DyadicSketch.sketchLevels(rangeBits, cells))
+						+ DyadicSketch.exactBytes(rangeBits, cells) + table;
+			}
+			return point * (windowMillis > 0 ? windows + 1 : 1) + table;
+		}
+
+		/*
+		 * @throws UncheckedIOException if a persistent sketch file cannot be mapped
+		 *             or belongs to an incompatible sketch
+		 */
+		public CountMinSketch build() {
+			if (width < 1 || depth < 1) {
+				throw new IllegalArgumentException("Width and depth must be positive, got " + width + " x " + depth);
+			}
+			if (storage == Storage.MAPPED && file == null) {
+				throw new IllegalArgumentException("MAPPED storage needs a file, see persistTo");
+			}
+			if (windowMillis > 0 && (windows < 1 || storage == Storage.MAPPED)) {
+				throw new IllegalArgumentException("Windowed sketches need at least one window and cannot be persisted");
+			}
+			if (counterBits != 64 && counterBits != 32 && counterBits != 16) {
+				throw new IllegalArgumentException("Counters have 64, 32 or 16 bits, got " + counterBits);
+			}
+			if (counterBits != 64 && storage != Storage.HEAP) {
+				throw new IllegalArgumentException(counterBits + " bit counters are only supported on the HEAP");
+			}
+			if (rangeBits < 0 || rangeBits > 62) {
+				throw new IllegalArgumentException("Range keys have 1 to 62 bits, got " + rangeBits);
+			}
+			if (rangeBits > 0 && (windowMillis > 0 || storage == Storage.MAPPED)) {
+				throw new IllegalArgumentException("Range support is not available for windowed or persistent sketches");
+			}
+			if (decay <= 0 || decay > 1 || (decay < 1 && windowMillis == 0)) {
+				throw new IllegalArgumentException("Decay must be in (0, 1] and needs windows, got " + decay);
+			}
+			if (hotKeys < 0 || (hotKeys > 0 && (flushUpdates < 1 || flushMillis < 1))) {
+				throw new IllegalArgumentException("Pre-aggregation needs a positive number of keys, updates and "
+						+ "milliseconds between flushes, got " + hotKeys + ", " + flushUpdates + ", " + flushMillis);
+			}
+			if (hotKeys > 0 && (topK > 0 || windowMillis > 0)) {
+				throw new IllegalArgumentException("Pre-aggregation is not available with heavy hitters or windows");
+			}
+			if (foldable && (layout != Layout.ROWS || windowMillis > 0 || rangeBits > 0 || storage == Storage.MAPPED)) {
+				throw new IllegalArgumentException("Only ROWS sketches that are not windowed, ranged or persistent can "
+						+ "be foldable");
+			}
+			return new CountMinSketch(this);
+		}
 	}
 
 	public void update(final String key) {
@@ -99,34 +820,296 @@ public final class CountMinSketch {
 	}
 
 	public void update(final String key, final long value) {
-		final long murmur_128 = murmur_.newHasher().putBytes(key.getBytes()).hash().asLong();
+		final long hash64 = hash(key);
+		final long estimate = add(hash64, value);
+		if (heavyHitters != null) {
+			heavyHitters.offer(key, hash64, estimate);
+		}
+		if (ranges != null) {
+			ranges.add(DyadicSketch.parseKey(key), value);
+		}
+	}
+
+	public void update(final byte[] key, final int offset, final int length, final long value) {
+		final long hash64 = hash(key, offset, length);
+		final long estimate = add(hash64, value);
+		if (heavyHitters != null) {
+			heavyHitters.offer(key, offset, length, hash64, estimate);
+		}
+		if (ranges != null) {
+			ranges.add(DyadicSketch.parseKey(key, offset, length), value);
+		}
+	}
+
+	/*
+	 * Updates the counters of a key hashed earlier with one of the hash methods
+	 * of a sketch using the same seed.
+	 */
+	public void update(final long hash64, final long value) {
+		add(hash64, value);
+	}
+
+	/*
+	 * As update(long, long), also offering key to the heavy hitters. key is only
+	 * reported, it is not hashed, so it may be any text naming the hashed key.
+	 */
+	public void update(final long hash64, final String key, final long value) {
+		final long estimate = add(hash64, value);
+		if (heavyHitters != null) {
+			heavyHitters.offer(key, hash64, estimate);
+		}
+	}
+
+	/*
+	 * Applies the first count keys of a batch, one key after the other: hashing
+	 * the whole batch first measured slower than update(String, long) per key.
+	 */
+	public void update(final String[] keys, final long[] values, final int count) {
+		for (int k = 0; k < count; k++) {
+			update(keys[k], values[k]);
+		}
+	}
+
+	public long getEstimatedCount(final String key) {
+		return estimate(hash(key));
+	}
+
+	public long getEstimatedCount(final byte[] key, final int offset, final int length) {
+		return estimate(hash(key, offset, length));
+	}
+
+	public long getEstimatedCount(final long hash64) {
+		return estimate(hash64);
+	}
+
+	/*
+	 * Estimate over the most recent windows only (including the current one). Same
+	 * as getEstimatedCount(key) for a sketch that is not windowed.
+	 */
+	public long getEstimatedCount(final long hash64, final int recentWindows) {
+		return estimate(hash64, recentWindows);
+	}
+
+	public long getEstimatedCount(final String key, final int recentWindows) {
+		return estimate(hash(key), recentWindows);
+	}
+
+	public long[] getEstimatedCounts(final String[] keys, final int count) {
+		return getEstimatedCounts(keys, count, getWindows());
+	}
+
+	// batch form of getEstimatedCount(String, int)
+	public long[] getEstimatedCounts(final String[] keys, final int count, final int recentWindows) {
+		final long[] hashes = new long[count];
+		for (int k = 0; k < count; k++) {
+			hashes[k] = hash(keys[k]);
+		}
+		final long[] counts = new long[count];
+		getEstimatedCounts(hashes, count, recentWindows, counts);
+		return counts;
+	}
+
+	/*
+	 * Writes the estimates of the first count hashed keys to counts. The cells of
+	 * the whole batch are located before any is read, so the counter reads do
+	 * not depend on each other and their cache misses overlap.
+	 */
+	public void getEstimatedCounts(final long[] hashes, final int count, final int recentWindows,
+			final long[] counts) {
+		if (windows != null) {
+			for (int k = 0; k < count; k++) {
+				counts[k] = estimate(hashes[k], recentWindows);
+			}
+			return;
+		}
+		for (int k = 0; k < count; k++) {
+			counts[k] = hotKeys == null ? 0 : hotKeys.pending(hashes[k]);
+		}
+		final Table t = table;
+		final int[] cells = new int[count * depth];
+		for (int k = 0, c = 0; k < count; k++) {
+			int hash1 = (int) hashes[k];
+			int hash2 = (int) (hashes[k] >>> 32);
+			final int block = blockOffset(hash1);
+			for (int i = 1; i <= depth; i++) {
+				cells[c++] = index(t.width, block, i, hash1, hash2);
+			}
+		}
+		for (int k = 0, c = 0; k < count; k++) {
+			long min = Long.MAX_VALUE;
+			for (int i = 0; i < depth; i++) {
+				min = Math.min(min, t.counters.get(cells[c++]));
+			}
+			counts[k] += min;
+		}
+	}
+
+	public long hash(final CharSequence key) {
+		return Murmur3.hash64(key, seed);
+	}
+
+	public long hash(final byte[] key, final int offset, final int length) {
+		return Murmur3.hash64(key, offset, length, seed);
+	}
+
+	public long hash(final ByteBuffer key, final int offset, final int length) {
+		return Murmur3.hash64(key, offset, length, seed);
+	}
+
+	/*
+	 * Returns the estimate of the key after the update, or -1 if pre-aggregation
+	 * buffered it; the estimate only feeds heavy hitters, which pre-aggregation
+	 * excludes.
+	 */
+	private long add(final long murmur_128, final long value) {
+		if (hotKeys != null && hotKeys.add(murmur_128, value)) {
+			addWeight(value);
+			return -1;
+		}
+		final long min = write(murmur_128, value);
+		addWeight(value);
+		if (windows != null && heavyHitters != null) {
+			// the current window alone would understate keys that were hot before
+			return estimate(murmur_128);
+		}
+		return min;
+	}
+
+	// adds to the counters of a key only, returns its new minimum
+	long write(final long murmur_128, final long value) {
 		int hash1 = (int) murmur_128;
 		int hash2 = (int) (murmur_128 >>> 32);
-		for (int i = 1; i <= depth; i++) {
-			int uniqueHash = hash1 + (i * hash2);
-			// hashcode should be positive, flip all the bits if it's negative
-			if (uniqueHash < 0) {
-				uniqueHash = ~uniqueHash;
+		final int block = blockOffset(hash1);
+		final int stripe = writers == null ? -1 : writers.stripe();
+		final Table t = enter(stripe);
+		try {
+			return write(t, windows == null ? t.counters : windows.current(), block, hash1, hash2, value);
+		} finally {
+			exit(stripe);
+		}
+	}
+
+	private long write(final Table t, final Counters c, final int block, final int hash1, final int hash2,
+			final long value) {
+		final int width = t.width;
+		long min = Long.MAX_VALUE;
+		if (keyLocks != null) {
+			if (value < 0) {
+				throw new IllegalArgumentException("Conservative update does not support negative values: " + value);
+			}
+			// two concurrent updates of one key must not both raise to the same target
+			synchronized (keyLocks[hash1 & (KEY_LOCKS - 1)]) {
+				long estimate = Long.MAX_VALUE;
+				for (int i = 1; i <= depth; i++) {
+					estimate = Math.min(estimate, c.get(index(width, block, i, hash1, hash2)));
+				}
+				for (int i = 1; i <= depth; i++) {
+					min = Math.min(min, c.raise(index(width, block, i, hash1, hash2), estimate + value));
+				}
+			}
+		} else {
+			for (int i = 1; i <= depth; i++) {
+				min = Math.min(min, c.add(index(width, block, i, hash1, hash2), value));
 			}
-			int pos = uniqueHash % width;
-			sketch[i - 1][pos] += value;
 		}
+		return min;
 	}
 
-	public long getEstimatedCount(final String key) {
-		final long murmur_128 = murmur_.newHasher().putBytes(key.getBytes()).hash().asLong();
+	/*
+	 * The table to write to. With a stripe (>= 0) the caller is registered as its
+	 * writer until exit(stripe), so fold() waits for it before reconciling.
+	 */
+	private Table enter(final int stripe) {
+		while (true) {
+			final Table t = table;
+			if (stripe < 0) {
+				return t;
+			}
+			writers.enter(stripe);
+			if (t == table) {
+				return t;
+			}
+			// fold() replaced the table and may already be draining its writers
+			writers.exit(stripe);
+		}
+	}
+
+	private void exit(final int stripe) {
+		if (stripe >= 0) {
+			writers.exit(stripe);
+		}
+	}
+
+	private long estimate(final long murmur_128) {
+		if (windows != null) {
+			return estimate(murmur_128, windows.size());
+		}
+		// pending first: a flush in between then counts twice rather than not at all
+		final long pending = hotKeys == null ? 0 : hotKeys.pending(murmur_128);
 		int hash1 = (int) murmur_128;
 		int hash2 = (int) (murmur_128 >>> 32);
+		final int block = blockOffset(hash1);
+		final Table t = table;
 		long min = Long.MAX_VALUE;
 		for (int i = 1; i <= depth; i++) {
-			int uniqueHash = hash1 + (i * hash2);
-			// hashcode should be positive, flip all the bits if it's negative
-			if (uniqueHash < 0) {
-				uniqueHash = ~uniqueHash;
+			min = Math.min(min, t.counters.get(index(t.width, block, i, hash1, hash2)));
+		}
+		return min + pending;
+	}
+
+	// per row, sums (decayed) cells of the most recent windows, then takes the minimum
+	private long estimate(final long murmur_128, final int recentWindows) {
+		if (windows == null) {
+			return estimate(murmur_128);
+		}
+		int hash1 = (int) murmur_128;
+		int hash2 = (int) (murmur_128 >>> 32);
+		final int block = blockOffset(hash1);
+		windows.current();
+		final int n = Math.max(1, Math.min(recentWindows, windows.size()));
+		double min = Double.MAX_VALUE;
+		for (int i = 1; i <= depth; i++) {
+			final int index = index(table.width, block, i, hash1, hash2);
+			double sum = 0;
+			double weight = 1;
+			for (int age = 0; age < n; age++) {
+				sum += weight * windows.get(age).get(index);
+				weight *= decay;
 			}
-			int pos = uniqueHash % width;
-			min = Math.min(min, sketch[i - 1][pos]);
+			min = Math.min(min, sum);
 		}
-		return min;
+		return Math.round(min);
+	}
+
+	// first cell of the block a key maps to, 0 for the ROWS layout
+	private int blockOffset(final int hash1) {
+		if (layout != Layout.BLOCKED) {
+			return 0;
+		}
+		// hashcode should be positive, flip all the bits if it's negative
+		final int positive = hash1 < 0 ? ~hash1 : hash1;
+		return (positive % blocks) * BLOCK_CELLS;
+	}
+
+	// cell of row i (1 based) for a key
+	private int index(final int width, final int block, final int i, final int hash1, final int hash2) {
+		int uniqueHash = hash1 + (i * hash2);
+		// hashcode should be positive, flip all the bits if it's negative
+		if (uniqueHash < 0) {
+			uniqueHash = ~uniqueHash;
+		}
+		if (layout == Layout.BLOCKED) {
+			// the low bits of hash1 already chose the block, use the high bits here
+			return block + (i - 1) * slotsPerRow + (uniqueHash >>> 16) % slotsPerRow;
+		}
+		return (i - 1) * width + uniqueHash % width;
+	}
+
+	// cell of column j in row i (0 based) as seen by getSketch
+	private int cell(final int width, final int i, final int j) {
+		if (layout == Layout.BLOCKED) {
+			return (j / slotsPerRow) * BLOCK_CELLS + i * slotsPerRow + j % slotsPerRow;
+		}
+		return i * width + j;
 	}
 }
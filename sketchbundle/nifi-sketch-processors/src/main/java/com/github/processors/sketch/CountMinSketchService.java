@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.util.Set;
+
+import org.apache.nifi.controller.ControllerService;
+
+/*
+ * Registry of named Count-Min sketches, HyperLogLogs, quantile sketches and
+ * Bloom filters shared by the processors of a flow. Each kind has its own
+ * namespace.
+ * */
+public interface CountMinSketchService extends ControllerService {
+	/*
+	 * Returns the sketch registered under name, or null if there is none.
+	 */
+	CountMinSketch getSketch(String name);
+
+	/*
+	 * Returns the sketch registered under name if it matches the builder. Otherwise
+	 * a new sketch is built and registered in its place, dropping the old counts.
+	 */
+	CountMinSketch getOrCreateSketch(String name, CountMinSketch.Builder builder);
+
+	boolean removeSketch(String name);
+
+	Set<String> getSketchNames();
+
+	/*
+	 * Returns the HyperLogLog registered under name, or null if there is none.
+	 */
+	HyperLogLog getHyperLogLog(String name);
+
+	/*
+	 * Returns the HyperLogLog registered under name if it has this precision and
+	 * seed. Otherwise a new one is registered in its place, dropping the old keys.
+	 */
+	HyperLogLog getOrCreateHyperLogLog(String name, int precision, int seed);
+
+	/*
+	 * Returns the quantile sketches registered under name, or null if there are none.
+	 */
+	QuantileGroups getQuantiles(String name);
+
+	/*
+	 * Returns the quantile sketches registered under name if they have this k and
+	 * maxGroups. Otherwise new ones are registered in their place, dropping the
+	 * old values.
+	 */
+	QuantileGroups getOrCreateQuantiles(String name, int k, int maxGroups);
+
+	/*
+	 * Returns the Bloom filter registered under name if it has these parameters.
+	 * Otherwise a new one is registered in its place, forgetting the old keys.
+	 */
+	BloomFilter getOrCreateBloomFilter(String name, long expectedItems, double falsePositiveRate, long rotationMillis);
+
+	// counter memory of everything registered
+	long getMemoryBytes();
+}
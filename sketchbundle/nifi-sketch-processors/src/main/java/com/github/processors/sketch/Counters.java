@@ -0,0 +1,26 @@
+package com.github.processors.sketch;
+
+/*
+ * Flat array of sketch cells. CountMinSketch decides which index a (row, key)
+ * pair maps to; implementations only decide where the cells live. All methods
+ * must be safe to call from concurrent threads.
+ * */
+interface Counters {
+	int size();
+
+	long get(int index);
+
+	// returns the new value of the cell
+	long add(int index, long value);
+
+	// sets the cell to value unless it is already larger, returns the new value
+	long raise(int index, long value);
+
+	long getMemoryBytes();
+
+	// resets every cell to 0; concurrent adds may survive the reset
+	void clear();
+
+	// makes the counters durable, a no-op for volatile storage
+	void checkpoint();
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({ "Attribute Expression Language", "dedupe", "duplicate", "bloom filter", "sketch" })
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Detects FlowFiles whose KEY was seen before with an in-memory blocked Bloom filter, without "
+		+ "a distributed cache or network round trip. Memory is fixed by EXPECTED_ITEMS and FALSE_POSITIVE_RATE: "
+		+ "a key is never missed, but a new key is taken for a duplicate at about that rate, more once more keys "
+		+ "than expected were added. With ROTATION_INTERVAL keys are forgotten one to two intervals after they were "
+		+ "last seen.")
+public class DetectDuplicateSketch extends AbstractProcessor {
+	private volatile BloomFilter filter;
+
+	// Properties
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the Bloom filters")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	public static final PropertyDescriptor SKETCH_NAME = new PropertyDescriptor.Builder().name("SKETCH_NAME")
+			.displayName("SKETCH_NAME")
+			.description("The name of the Bloom filter. Processors using the same name detect duplicates among each "
+					+ "other's FlowFiles. It is rebuilt, forgetting all keys, if its parameters change")
+			.required(true).defaultValue(SketchConstants.DEFAULT_SKETCH_NAME)
+			.addValidator(StandardValidators.createRegexMatchingValidator(SketchConstants.SKETCH_NAME_PATTERN)).build();
+
+	public static final PropertyDescriptor KEY = new PropertyDescriptor.Builder().name("KEY").displayName("KEY")
+			.description("The key identifying duplicates, e.g. ${event.id}").required(true)
+			.expressionLanguageSupported(true)
+			.addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR).build();
+
+	public static final PropertyDescriptor EXPECTED_ITEMS = new PropertyDescriptor.Builder().name("EXPECTED_ITEMS")
+			.displayName("EXPECTED_ITEMS")
+			.description("The number of distinct keys the filter is sized for, per ROTATION_INTERVAL if set")
+			.required(true).defaultValue("1000000").addValidator(StandardValidators.POSITIVE_LONG_VALIDATOR).build();
+
+	public static final PropertyDescriptor FALSE_POSITIVE_RATE = new PropertyDescriptor.Builder()
+			.name("FALSE_POSITIVE_RATE").displayName("FALSE_POSITIVE_RATE")
+			.description("The probability that a new key is routed to duplicate once EXPECTED_ITEMS keys were added. "
+					+ "Memory is about 1.3 bytes per expected item at 0.01, 2 at 0.001 and 2.9 at 0.0001")
+			.required(true).defaultValue("0.001").addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	public static final PropertyDescriptor ROTATION_INTERVAL = new PropertyDescriptor.Builder()
+			.name("ROTATION_INTERVAL").displayName("ROTATION_INTERVAL")
+			.description("If set, keys not seen for this long are gradually forgotten: two filters are kept and the "
+					+ "older one is cleared every interval, which doubles the memory. Keys are kept forever if not set")
+			.required(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("BATCH_SIZE")
+			.displayName("BATCH_SIZE")
+			.description("The maximum number of FlowFiles pulled from the queue and checked in one trigger")
+			.required(true).defaultValue(String.valueOf(SketchConstants.DEFAULT_BATCH_SIZE))
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	// relationships
+	public static final Relationship REL_DUPLICATE = new Relationship.Builder().name("duplicate")
+			.description("FlowFiles whose key was seen before, or a false positive").build();
+	public static final Relationship REL_NON_DUPLICATE = new Relationship.Builder().name("non-duplicate")
+			.description("FlowFiles whose key was not seen before").build();
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("When a FlowFile fails for a some reason").build();
+
+	private List<PropertyDescriptor> descriptors;
+
+	private Set<Relationship> relationships;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		descriptors.add(SKETCH_NAME);
+		descriptors.add(KEY);
+		descriptors.add(EXPECTED_ITEMS);
+		descriptors.add(FALSE_POSITIVE_RATE);
+		descriptors.add(ROTATION_INTERVAL);
+		descriptors.add(BATCH_SIZE);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		relationships.add(REL_DUPLICATE);
+		relationships.add(REL_NON_DUPLICATE);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		final List<ValidationResult> results = new ArrayList<ValidationResult>();
+		try {
+			final double rate = context.getProperty(FALSE_POSITIVE_RATE).asDouble();
+			if (rate <= 0 || rate >= 1) {
+				results.add(new ValidationResult.Builder().subject(FALSE_POSITIVE_RATE.getDisplayName()).valid(false)
+						.explanation("FALSE_POSITIVE_RATE must be in (0, 1)").build());
+			}
+		} catch (NumberFormatException e) {
+			// already reported by the property validator
+		}
+		return results;
+	}
+
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) {
+		final long rotation = context.getProperty(ROTATION_INTERVAL).isSet()
+				? context.getProperty(ROTATION_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS) : 0;
+		try {
+			filter = context.getProperty(SKETCH_SERVICE).asControllerService(CountMinSketchService.class)
+					.getOrCreateBloomFilter(context.getProperty(SKETCH_NAME).getValue(),
+							context.getProperty(EXPECTED_ITEMS).asLong(),
+							context.getProperty(FALSE_POSITIVE_RATE).asDouble(), rotation);
+		} catch (IllegalStateException | IllegalArgumentException e) {
+			throw new ProcessException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			return;
+		}
+
+		final BloomFilter filter = this.filter;
+		final List<FlowFile> duplicate = new ArrayList<FlowFile>();
+		final List<FlowFile> nonDuplicate = new ArrayList<FlowFile>(flowFiles.size());
+		final List<FlowFile> failure = new ArrayList<FlowFile>();
+		for (final FlowFile flowFile : flowFiles) {
+			try {
+				final String key = context.getProperty(KEY).evaluateAttributeExpressions(flowFile).getValue();
+				if (filter.put(filter.hash(key == null ? "" : key))) {
+					nonDuplicate.add(flowFile);
+				} else {
+					duplicate.add(flowFile);
+				}
+			} catch (Throwable e) {
+				getLogger().error("Ran into an error while processing {}.", new Object[] { flowFile }, e);
+				failure.add(flowFile);
+			}
+		}
+
+		session.transfer(duplicate, REL_DUPLICATE);
+		session.transfer(nonDuplicate, REL_NON_DUPLICATE);
+		session.transfer(failure, REL_FAILURE);
+		session.adjustCounter("Duplicates", duplicate.size(), false);
+	}
+}
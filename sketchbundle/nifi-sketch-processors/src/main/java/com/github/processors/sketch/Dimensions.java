@@ -0,0 +1,161 @@
+package com.github.processors.sketch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+
+/*
+ * The extra dimensions of UpdateCMS and GetCMS, one per dynamic property: the
+ * property name is the sketch the dimension counts in, the value one or more
+ * key expressions separated by commas (outside of ${...}), e.g. "${src}" and
+ * "${src}, ${dst}" for the pair.
+ *
+ * Every distinct component expression is evaluated once per FlowFile and
+ * hashed once per seed, however many dimensions use it. A composite key is
+ * hashed by combining the hashes of its components (Murmur3.combine), so the
+ * pair above costs one combine on top of the src and dst hashes. Composite
+ * keys are therefore only found through a dimension, not by querying the
+ * joined text.
+ * */
+final class Dimensions {
+	private final String[] names;
+	// indexes into expressions, per dimension
+	private final int[][] components;
+	private final PropertyValue[] expressions;
+
+	private Dimensions(final String[] names, final int[][] components, final PropertyValue[] expressions) {
+		this.names = names;
+		this.components = components;
+		this.expressions = expressions;
+	}
+
+	static Dimensions of(final ProcessContext context) {
+		final List<String> names = new ArrayList<String>();
+		final List<int[]> components = new ArrayList<int[]>();
+		final Map<String, Integer> indexes = new HashMap<String, Integer>();
+		final List<PropertyValue> expressions = new ArrayList<PropertyValue>();
+		for (Map.Entry<PropertyDescriptor, String> property : context.getProperties().entrySet()) {
+			if (!property.getKey().isDynamic() || property.getValue() == null) {
+				continue;
+			}
+			final List<String> parts = split(property.getValue());
+			final int[] dimension = new int[parts.size()];
+			for (int i = 0; i < dimension.length; i++) {
+				Integer index = indexes.get(parts.get(i));
+				if (index == null) {
+					index = expressions.size();
+					indexes.put(parts.get(i), index);
+					expressions.add(context.newPropertyValue(parts.get(i)));
+				}
+				dimension[i] = index;
+			}
+			names.add(property.getKey().getName());
+			components.add(dimension);
+		}
+		return new Dimensions(names.toArray(new String[names.size()]), components.toArray(new int[components.size()][]),
+				expressions.toArray(new PropertyValue[expressions.size()]));
+	}
+
+	// splits on commas outside of ${...}, trimming the parts
+	static List<String> split(final String value) {
+		final List<String> parts = new ArrayList<String>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '$' && i + 1 < value.length() && value.charAt(i + 1) == '{') {
+				depth++;
+				i++;
+			} else if (c == '}' && depth > 0) {
+				depth--;
+			} else if (c == ',' && depth == 0) {
+				parts.add(value.substring(start, i).trim());
+				start = i + 1;
+			}
+		}
+		parts.add(value.substring(start).trim());
+		return parts;
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	String getName(final int dimension) {
+		return names[dimension];
+	}
+
+	// evaluates every component for a FlowFile
+	Hashes evaluate(final FlowFile flowFile) {
+		final String[] values = new String[expressions.length];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = expressions[i].evaluateAttributeExpressions(flowFile).getValue();
+			if (values[i] == null) {
+				values[i] = "";
+			}
+		}
+		return new Hashes(values);
+	}
+
+	// the key of a dimension as text, for heavy hitters
+	String key(final int dimension, final String[] values) {
+		final int[] parts = components[dimension];
+		if (parts.length == 1) {
+			return values[parts[0]];
+		}
+		final StringBuilder key = new StringBuilder();
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0) {
+				key.append(',');
+			}
+			key.append(values[parts[i]]);
+		}
+		return key.toString();
+	}
+
+	/*
+	 * Hashes of one FlowFile's components, computed on first use for the seed
+	 * of the sketch asking.
+	 */
+	final class Hashes {
+		private final String[] values;
+		private final long[] hashes;
+		private final int[] seeds;
+		private final boolean[] hashed;
+
+		Hashes(final String[] values) {
+			this.values = values;
+			this.hashes = new long[values.length];
+			this.seeds = new int[values.length];
+			this.hashed = new boolean[values.length];
+		}
+
+		String[] getValues() {
+			return values;
+		}
+
+		long hash(final int dimension, final CountMinSketch cms) {
+			final int[] parts = components[dimension];
+			long hash = component(parts[0], cms);
+			for (int i = 1; i < parts.length; i++) {
+				hash = Murmur3.combine(hash, component(parts[i], cms));
+			}
+			return hash;
+		}
+
+		private long component(final int index, final CountMinSketch cms) {
+			if (!hashed[index] || seeds[index] != cms.getSeed()) {
+				hashes[index] = cms.hash(values[index]);
+				seeds[index] = cms.getSeed();
+				hashed[index] = true;
+			}
+			return hashes[index];
+		}
+	}
+}
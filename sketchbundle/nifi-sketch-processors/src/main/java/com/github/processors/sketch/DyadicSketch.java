@@ -0,0 +1,188 @@
+package com.github.processors.sketch;
+
+/*
+ * Counts of numeric keys at every dyadic level, for range queries: level l
+ * counts key >>> l, so any range [lo, hi] of a universe of 2^bits keys is the
+ * union of at most 2 intervals per level and is answered with O(bits) lookups
+ * instead of one per key. IPv4 addresses are keys of a 32 bit universe, a CIDR
+ * prefix is a single interval.
+ *
+ * Levels with more nodes than the sketch has counters are Count-Min sketches of
+ * the same shape as the point sketch; the upper levels are small enough to be
+ * counted exactly. A range estimate sums up to 2 * bits sketch estimates, so
+ * its additive error is at most 2 * bits * eps * N.
+ * */
+final class DyadicSketch {
+	private final int bits;
+	// first level counted exactly, levels below it are sketches
+	private final int exactFrom;
+	private final CountMinSketch[] sketches;
+	private final Counters[] exact;
+
+	DyadicSketch(final int bits, final CountMinSketch.Builder level, final long cells) {
+		this.bits = bits;
+		this.exactFrom = sketchLevels(bits, cells);
+		this.sketches = new CountMinSketch[exactFrom];
+		for (int l = 0; l < exactFrom; l++) {
+			sketches[l] = level.build();
+		}
+		this.exact = new Counters[bits + 1 - exactFrom];
+		for (int l = exactFrom; l <= bits; l++) {
+			exact[l - exactFrom] = new HeapCounters(1 << (bits - l));
+		}
+	}
+
+	// number of levels that need a sketch, i.e. have more nodes than cells
+	static int sketchLevels(final int bits, final long cells) {
+		int levels = 0;
+		while (levels < bits && (1L << (bits - levels)) > cells) {
+			levels++;
+		}
+		return levels;
+	}
+
+	// bytes of the exactly counted levels
+	static long exactBytes(final int bits, final long cells) {
+		return 8L * ((2L << (bits - sketchLevels(bits, cells))) - 1);
+	}
+
+	int getBits() {
+		return bits;
+	}
+
+	long getMemoryBytes() {
+		long bytes = 0;
+		for (CountMinSketch sketch : sketches) {
+			bytes += sketch.getMemoryBytes();
+		}
+		for (Counters counters : exact) {
+			bytes += counters.getMemoryBytes();
+		}
+		return bytes;
+	}
+
+	// keys outside of the universe are ignored
+	void add(final long key, final long value) {
+		if (key < 0 || key >= 1L << bits) {
+			return;
+		}
+		for (int l = 0; l < exactFrom; l++) {
+			final CountMinSketch sketch = sketches[l];
+			sketch.update(Murmur3.hash64(key >>> l, sketch.getSeed()), value);
+		}
+		for (int l = exactFrom; l <= bits; l++) {
+			exact[l - exactFrom].add((int) (key >>> l), value);
+		}
+	}
+
+	// estimated total count of the keys in [lo, hi]
+	long rangeCount(long lo, final long hi) {
+		final long max = (1L << bits) - 1;
+		if (lo > hi || hi < 0 || lo > max) {
+			return 0;
+		}
+		lo = Math.max(lo, 0);
+		// half open [lo, end): an odd bound at a level is a node outside the parent intervals
+		long end = Math.min(hi, max) + 1;
+		long sum = 0;
+		for (int l = 0; l <= bits && lo < end; l++) {
+			if ((lo & 1) == 1) {
+				sum += estimate(l, lo++);
+			}
+			if ((end & 1) == 1) {
+				sum += estimate(l, --end);
+			}
+			lo >>>= 1;
+			end >>>= 1;
+		}
+		return sum;
+	}
+
+	private long estimate(final int level, final long node) {
+		if (level < exactFrom) {
+			final CountMinSketch sketch = sketches[level];
+			return sketch.getEstimatedCount(Murmur3.hash64(node, sketch.getSeed()));
+		}
+		return exact[level - exactFrom].get((int) node);
+	}
+
+	/*
+	 * The numeric value of a key: a dotted IPv4 address or a non-negative decimal
+	 * integer. -1 for anything else.
+	 */
+	static long parseKey(final CharSequence key) {
+		return parseKey(key, 0, key.length());
+	}
+
+	static long parseKey(final CharSequence key, final int from, final int to) {
+		return parse(key, null, from, to);
+	}
+
+	// as parseKey(CharSequence), for the UTF-8 bytes of a key
+	static long parseKey(final byte[] key, final int offset, final int length) {
+		return parse(null, key, offset, offset + length);
+	}
+
+	private static long parse(final CharSequence text, final byte[] bytes, final int from, final int to) {
+		// at most 18 digits, so a decimal key always fits
+		if (from == to || to - from > 18) {
+			return -1;
+		}
+		long value = 0;
+		long part = 0;
+		int dots = 0;
+		int digits = 0;
+		for (int i = from; i < to; i++) {
+			final int c = text != null ? text.charAt(i) : bytes[i] & 0xff;
+			if (c >= '0' && c <= '9') {
+				part = part * 10 + (c - '0');
+				digits++;
+			} else if (c == '.' && digits > 0 && part <= 255 && dots < 3) {
+				value = value << 8 | part;
+				part = 0;
+				digits = 0;
+				dots++;
+			} else {
+				return -1;
+			}
+		}
+		if (digits == 0) {
+			return -1;
+		}
+		if (dots == 0) {
+			return part;
+		}
+		return dots == 3 && part <= 255 ? value << 8 | part : -1;
+	}
+
+	/*
+	 * Parses a range query: "lo-hi", a CIDR prefix such as "10.0.0.0/24" or a
+	 * single key, with keys as in parseKey. Returns {lo, hi}, inclusive.
+	 */
+	static long[] parseRange(final String range) {
+		final String text = range.trim();
+		final int slash = text.indexOf('/');
+		if (slash >= 0) {
+			final long address = parseKey(text, 0, slash);
+			final int prefix;
+			try {
+				prefix = Integer.parseInt(text.substring(slash + 1).trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid prefix length in " + range);
+			}
+			if (address < 0 || text.indexOf('.') < 0 || prefix < 0 || prefix > 32) {
+				throw new IllegalArgumentException("Invalid CIDR prefix " + range);
+			}
+			final long size = 1L << (32 - prefix);
+			final long lo = address & -size;
+			return new long[] { lo, lo + size - 1 };
+		}
+		final int dash = text.indexOf('-');
+		final long lo = parseKey(dash >= 0 ? text.substring(0, dash).trim() : text);
+		final long hi = dash >= 0 ? parseKey(text.substring(dash + 1).trim()) : lo;
+		if (lo < 0 || hi < 0) {
+			throw new IllegalArgumentException("Invalid range " + range);
+		}
+		return new long[] { lo, hi };
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.TriggerSerially;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({ "counter", "data science", "cms", "sketch", "export", "cluster" })
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@TriggerSerially
+@SeeAlso({ MergeCMS.class })
+@CapabilityDescription("Serializes the counters of a sketch into a new FlowFile every time the processor runs, so "
+		+ "that the partial sketches of the nodes of a cluster can be sent to one node and summed by MergeCMS. "
+		+ "With DELTA, only the change since the previous export is written, which MergeCMS can add to a running "
+		+ "total without counting anything twice. Zero cells are run-length encoded and counts are varints, so "
+		+ "sparse sketches and small deltas stay small.")
+@WritesAttributes({ @WritesAttribute(attribute = "mime.type", description = "application/octet-stream"),
+		@WritesAttribute(attribute = "cms.sketch", description = "The name of the exported sketch"),
+		@WritesAttribute(attribute = "cms.delta", description = "true if the content is a delta export, false if it "
+				+ "holds the totals") })
+public class ExportCMS extends AbstractProcessor {
+	// Properties
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the sketches")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	public static final PropertyDescriptor SKETCH_NAME = new PropertyDescriptor.Builder().name("SKETCH_NAME")
+			.displayName("SKETCH_NAME").description("The name of the sketch to export")
+			.required(true).defaultValue(SketchConstants.DEFAULT_SKETCH_NAME)
+			.addValidator(StandardValidators.createRegexMatchingValidator(SketchConstants.SKETCH_NAME_PATTERN)).build();
+
+	public static final PropertyDescriptor DELTA = new PropertyDescriptor.Builder().name("DELTA").displayName("DELTA")
+			.description("If true, exports the change since the previous export of this processor instead of the "
+					+ "totals. The previous export is kept in memory, and for a persistent sketch (PERSISTENCE_DIRECTORY "
+					+ "of UpdateCMS) also in a file next to the sketch file, so its deltas continue across restarts of "
+					+ "NiFi. Otherwise the first export after a restart or a rebuild of the sketch holds the totals and "
+					+ "has cms.delta set to false")
+			.required(true).allowableValues("true", "false").defaultValue("false").build();
+
+	// relationships
+	public static final Relationship REL_SUCCESS = new Relationship.Builder()
+			.description("The serialized sketches are routed here").name("success").build();
+
+	private List<PropertyDescriptor> descriptors;
+
+	private Set<Relationship> relationships;
+
+	// counts written by the last export, the sketch they were taken from and its width then
+	private long[] exported;
+	private CountMinSketch exportedFrom;
+	private int exportedWidth;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		descriptors.add(SKETCH_NAME);
+		descriptors.add(DELTA);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		relationships.add(REL_SUCCESS);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		final String name = context.getProperty(SKETCH_NAME).getValue();
+		final CountMinSketch cms = context.getProperty(SKETCH_SERVICE).asControllerService(CountMinSketchService.class)
+				.getSketch(name);
+		if (cms == null) {
+			getLogger().debug("Sketch {} does not exist yet", new Object[] { name });
+			context.yield();
+			return;
+		}
+
+		final boolean deltas = context.getProperty(DELTA).asBoolean();
+		if (deltas && exportedFrom != cms && cms.getFile() != null) {
+			restoreBaseline(cms);
+		}
+
+		// a fold() in between would pair the counts with the wrong width
+		int width;
+		long[] counts;
+		do {
+			width = cms.getWidth();
+			counts = cms.getCounts();
+		} while (width != cms.getWidth());
+		final int exportWidth = width;
+
+		// the cells of a folded sketch no longer line up with the previous export, which
+		// the target of the deltas cannot merge either, so the totals go out in full
+		final boolean delta = deltas && exportedFrom == cms && exportedWidth == width && exported.length == counts.length;
+		if (deltas && exportedFrom == cms && !delta) {
+			getLogger().warn("Sketch {} was folded from width {} to {}, exporting its totals instead of a delta",
+					new Object[] { name, exportedWidth, width });
+		}
+		final long[] content;
+		if (delta) {
+			content = new long[counts.length];
+			for (int i = 0; i < counts.length; i++) {
+				content[i] = counts[i] - exported[i];
+			}
+		} else {
+			content = counts;
+		}
+
+		FlowFile flowFile = session.create();
+		flowFile = session.write(flowFile, new OutputStreamCallback() {
+			@Override
+			public void process(final OutputStream out) throws IOException {
+				final BufferedOutputStream buffered = new BufferedOutputStream(out);
+				SketchCodec.write(buffered, cms, exportWidth, content, delta);
+				buffered.flush();
+			}
+		});
+		flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), "application/octet-stream");
+		flowFile = session.putAttribute(flowFile, "cms.sketch", name);
+		flowFile = session.putAttribute(flowFile, "cms.delta", String.valueOf(delta));
+		session.transfer(flowFile, REL_SUCCESS);
+		if (deltas && cms.getFile() != null) {
+			saveBaseline(cms, exportWidth, counts);
+		}
+
+		// last, so that an exception above rolls the session back without skipping a delta
+		exported = counts;
+		exportedFrom = cms;
+		exportedWidth = width;
+	}
+
+	// the counts of the last export of a persistent sketch, kept per processor next to the sketch file
+	private File baselineFile(final CountMinSketch cms) {
+		return new File(cms.getFile().getPath() + "." + getIdentifier() + ".export");
+	}
+
+	private void restoreBaseline(final CountMinSketch cms) {
+		final File file = baselineFile(cms);
+		if (!file.exists()) {
+			return;
+		}
+		try (final InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			final SketchCodec.Header header = SketchCodec.readHeader(in);
+			if (!header.isCompatible(cms)) {
+				getLogger().warn("Ignoring the previous export {} of a different sketch", new Object[] { file });
+				return;
+			}
+			final long[] counts = new long[header.getCellCount()];
+			SketchCodec.readCounts(in, header, counts);
+			exported = counts;
+			exportedFrom = cms;
+			exportedWidth = header.getWidth();
+		} catch (IOException e) {
+			throw new ProcessException("Could not read the previous export " + file, e);
+		}
+	}
+
+	// written to a temporary file first, so a crash leaves the previous baseline intact
+	private void saveBaseline(final CountMinSketch cms, final int width, final long[] counts) {
+		final File file = baselineFile(cms);
+		final File temporary = new File(file.getPath() + ".tmp");
+		try {
+			try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(temporary))) {
+				SketchCodec.write(out, cms, width, counts, false);
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new ProcessException("Could not save the export baseline " + file, e);
+		}
+	}
+}
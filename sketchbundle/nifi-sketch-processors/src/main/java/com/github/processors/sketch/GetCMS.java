@@ -17,11 +17,14 @@
 package com.github.processors.sketch;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
@@ -29,7 +32,10 @@ import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
@@ -41,13 +47,68 @@ import org.apache.nifi.processor.util.StandardValidators;
 @Tags({ "Attribute Expression Language", "counter", "data science", "cms", "sketch" })
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @CapabilityDescription("Count Min sketch is a probabilistic data structure for finding the frequency of events in a stream of data.")
-@WritesAttributes({ @WritesAttribute(attribute = "", description = "") })
+@WritesAttributes({
+		@WritesAttribute(attribute = "<key>", description = "In ATTRIBUTE mode, the estimate of KEY, named after the key"),
+		@WritesAttribute(attribute = "cms.keys", description = "In LINES mode, the number of keys answered"),
+		@WritesAttribute(attribute = "mime.type", description = "In LINES mode, text/csv or application/json") })
+@DynamicProperty(name = "The name of a sketch", value = "One or more key expressions separated by commas",
+		supportsExpressionLanguage = true, description = "Also looks up the key, or the composite of several keys, "
+				+ "counted by the same dimension of UpdateCMS and writes the estimate to the attribute cms.<name>")
 public class GetCMS extends AbstractProcessor {
-	private CountMinSketch cms = null;
+	private volatile Dimensions dimensions;
+
 	// Properties
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the sketches")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	public static final PropertyDescriptor SKETCH_NAME = new PropertyDescriptor.Builder().name("SKETCH_NAME")
+			.displayName("SKETCH_NAME")
+			.description("The name of the sketch to query. Estimates are 0 until an UpdateCMS has created it")
+			.required(true).defaultValue(SketchConstants.DEFAULT_SKETCH_NAME)
+			.addValidator(StandardValidators.createRegexMatchingValidator(SketchConstants.SKETCH_NAME_PATTERN)).build();
+
+	public static final String MODE_ATTRIBUTE = UpdateCMS.MODE_ATTRIBUTE;
+	public static final String MODE_LINES = UpdateCMS.MODE_LINES;
+	public static final String FORMAT_CSV = "CSV";
+	public static final String FORMAT_JSON = "JSON";
+
+	public static final PropertyDescriptor MODE = new PropertyDescriptor.Builder().name("MODE").displayName("MODE")
+			.description("ATTRIBUTE looks up KEY, RANGE and the dimensions of each FlowFile and writes the estimates "
+					+ "to attributes. LINES looks up every line of the content as a key of SKETCH_NAME and replaces the "
+					+ "content with the estimates in OUTPUT_FORMAT, answering thousands of keys per FlowFile")
+			.required(true).allowableValues(MODE_ATTRIBUTE, MODE_LINES).defaultValue(MODE_ATTRIBUTE).build();
+
+	public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor.Builder().name("OUTPUT_FORMAT")
+			.displayName("OUTPUT_FORMAT")
+			.description("In LINES mode, CSV writes a key,count header and a row per key, JSON writes "
+					+ "{\"sketch\":\"default\",\"counts\":[{\"key\":\"10.0.0.1\",\"count\":42}]}")
+			.required(true).allowableValues(FORMAT_CSV, FORMAT_JSON).defaultValue(FORMAT_CSV).build();
+
 	public static final PropertyDescriptor KEY = new PropertyDescriptor.Builder().name("KEY").displayName("KEY")
-			.description("Key Value to track").expressionLanguageSupported(true)
-			.addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR).required(true).build();
+			.description("Key Value to track. Required in ATTRIBUTE mode unless RANGE or dimensions are given. A "
+					+ "FlowFile for which it evaluates to an empty value is routed to failure")
+			.expressionLanguageSupported(true)
+			.addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR).required(false).build();
+
+	public static final PropertyDescriptor RANGE = new PropertyDescriptor.Builder().name("RANGE").displayName("RANGE")
+			.description("A range of keys to count in the sketch of SKETCH_NAME, which needs RANGE_BITS: a CIDR prefix "
+					+ "such as 10.0.0.0/24, or lo-hi with IPv4 addresses or integers, e.g. 10.0.0.0-10.0.3.255. The "
+					+ "estimate is written to an attribute named after the evaluated range")
+			.expressionLanguageSupported(true)
+			.addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR).required(false).build();
+
+	public static final PropertyDescriptor LOOKBACK = new PropertyDescriptor.Builder().name("LOOKBACK")
+			.displayName("LOOKBACK")
+			.description("For windowed sketches, only count the most recent windows covering this period, e.g. "
+					+ "'5 min' for the last 5 minutes rounded up to whole windows. All windows if not set")
+			.required(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("BATCH_SIZE")
+			.displayName("BATCH_SIZE")
+			.description("The maximum number of FlowFiles pulled from the queue and looked up in one trigger")
+			.required(true).defaultValue(String.valueOf(SketchConstants.DEFAULT_BATCH_SIZE))
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
 
 	// relationships
 	public static final Relationship REL_SUCCESS = new Relationship.Builder()
@@ -62,7 +123,14 @@ public class GetCMS extends AbstractProcessor {
 	@Override
 	protected void init(final ProcessorInitializationContext context) {
 		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		descriptors.add(SKETCH_NAME);
+		descriptors.add(MODE);
+		descriptors.add(OUTPUT_FORMAT);
 		descriptors.add(KEY);
+		descriptors.add(RANGE);
+		descriptors.add(LOOKBACK);
+		descriptors.add(BATCH_SIZE);
 		this.descriptors = Collections.unmodifiableList(descriptors);
 
 		final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -81,33 +149,189 @@ public class GetCMS extends AbstractProcessor {
 		return descriptors;
 	}
 
+	@Override
+	protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+		return new PropertyDescriptor.Builder().name(propertyDescriptorName).displayName(propertyDescriptorName)
+				.description("Key expressions looked up in sketch " + propertyDescriptorName).dynamic(true)
+				.expressionLanguageSupported(true).addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+				.required(false).build();
+	}
+
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		final List<ValidationResult> results = new ArrayList<ValidationResult>();
+		final boolean attributeMode = MODE_ATTRIBUTE.equals(context.getProperty(MODE).getValue());
+		boolean hasDimensions = false;
+		for (PropertyDescriptor property : context.getProperties().keySet()) {
+			if (!property.isDynamic()) {
+				continue;
+			}
+			hasDimensions = true;
+			if (!SketchConstants.SKETCH_NAME_PATTERN.matcher(property.getName()).matches()) {
+				results.add(new ValidationResult.Builder().subject(property.getName()).valid(false)
+						.explanation("a dimension must be named after a sketch").build());
+			} else if (!attributeMode) {
+				results.add(new ValidationResult.Builder().subject(property.getName()).valid(false)
+						.explanation("dimensions are only supported in " + MODE_ATTRIBUTE + " mode").build());
+			}
+		}
+		if (attributeMode && !context.getProperty(KEY).isSet() && !context.getProperty(RANGE).isSet() && !hasDimensions) {
+			results.add(new ValidationResult.Builder().subject(KEY.getDisplayName()).valid(false)
+					.explanation("KEY, RANGE or a dimension is required").build());
+		}
+		return results;
+	}
+
 	@OnScheduled
 	public void onScheduled(final ProcessContext context) {
+		dimensions = Dimensions.of(context);
+	}
+
+	// number of most recent windows covering LOOKBACK
+	private int recentWindows(final ProcessContext context, final CountMinSketch cms) {
+		if (!context.getProperty(LOOKBACK).isSet() || cms.getWindowMillis() == 0) {
+			return cms.getWindows();
+		}
+		final long lookback = context.getProperty(LOOKBACK).asTimePeriod(TimeUnit.MILLISECONDS);
+		return (int) Math.min(cms.getWindows(), (lookback + cms.getWindowMillis() - 1) / cms.getWindowMillis());
 	}
 
 	@Override
 	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-		FlowFile flowFile = session.get();
-		if (flowFile == null) {
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			return;
+		}
+
+		final CountMinSketchService service = context.getProperty(SKETCH_SERVICE)
+				.asControllerService(CountMinSketchService.class);
+		if (MODE_LINES.equals(context.getProperty(MODE).getValue())) {
+			queryLines(context, session, service, flowFiles);
 			return;
 		}
+		final boolean hasKey = context.getProperty(KEY).isSet();
+		final boolean hasRange = context.getProperty(RANGE).isSet();
+		final CountMinSketch cms = hasKey || hasRange
+				? service.getSketch(context.getProperty(SKETCH_NAME).getValue()) : null;
+		final Dimensions dimensions = this.dimensions;
+		final Dimensions.Hashes[] hashes = new Dimensions.Hashes[flowFiles.size()];
+
+		final String[] keys = new String[flowFiles.size()];
+		final String[] ranges = new String[flowFiles.size()];
+		final long[][] bounds = new long[flowFiles.size()][];
+		final List<FlowFile> evaluated = new ArrayList<FlowFile>(flowFiles.size());
+		final List<FlowFile> failure = new ArrayList<FlowFile>();
+
+		int count = 0;
+		for (final FlowFile flowFile : flowFiles) {
+			try {
+				final String key = hasKey
+						? context.getProperty(KEY).evaluateAttributeExpressions(flowFile).getValue() : null;
+				if (hasKey && (key == null || key.isEmpty())) {
+					// the estimate is written to an attribute named after the key, so there is nowhere to put it
+					getLogger().error("KEY is empty for {}, routing it to failure.", new Object[] { flowFile });
+					failure.add(flowFile);
+					continue;
+				}
+				if (hasRange) {
+					ranges[count] = context.getProperty(RANGE).evaluateAttributeExpressions(flowFile).getValue();
+					bounds[count] = DyadicSketch.parseRange(ranges[count]);
+				}
+				if (dimensions.size() > 0) {
+					hashes[count] = dimensions.evaluate(flowFile);
+				}
+				keys[count++] = key;
+				evaluated.add(flowFile);
+			} catch (Throwable e) {
+				getLogger().error("Ran into an error while processing {}.", new Object[] { flowFile }, e);
+				failure.add(flowFile);
+			}
+		}
+
+		// no sketch has been created yet, so nothing has been counted
+		long[] estimatedCounts = new long[count];
+		if (cms != null && hasKey) {
+			try {
+				final long start = System.nanoTime();
+				estimatedCounts = cms.getEstimatedCounts(keys, count, recentWindows(context, cms));
+				cms.getMetrics().recordQueryBatch(count, System.nanoTime() - start);
+			} catch (Throwable e) {
+				getLogger().error("Ran into an error while querying the sketch for {} FlowFiles.",
+						new Object[] { count }, e);
+				failure.addAll(evaluated);
+				session.transfer(failure, REL_FAILURE);
+				return;
+			}
+		}
+
+		final List<FlowFile> success = new ArrayList<FlowFile>(count);
+		for (int i = 0; i < count; i++) {
+			FlowFile flowFile = evaluated.get(i);
+			if (hasKey) {
+				flowFile = session.putAttribute(flowFile, keys[i], String.valueOf(estimatedCounts[i]));
+			}
+			success.add(flowFile);
+		}
+		if (hasRange) {
+			if (cms != null && cms.getRangeBits() == 0) {
+				getLogger().error("Sketch {} was not built with RANGE_BITS",
+						new Object[] { context.getProperty(SKETCH_NAME).getValue() });
+				failure.addAll(success);
+				session.transfer(failure, REL_FAILURE);
+				return;
+			}
+			final long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				final long estimate = cms == null ? 0 : cms.getRangeCount(bounds[i][0], bounds[i][1]);
+				success.set(i, session.putAttribute(success.get(i), ranges[i], String.valueOf(estimate)));
+			}
+			if (cms != null) {
+				cms.getMetrics().recordQueryBatch(count, System.nanoTime() - start);
+			}
+		}
+		for (int d = 0; d < dimensions.size(); d++) {
+			final CountMinSketch sketch = service.getSketch(dimensions.getName(d));
+			final int recentWindows = sketch == null ? 0 : recentWindows(context, sketch);
+			final String attribute = "cms." + dimensions.getName(d);
+			final long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				final long estimate = sketch == null ? 0
+						: sketch.getEstimatedCount(hashes[i].hash(d, sketch), recentWindows);
+				success.set(i, session.putAttribute(success.get(i), attribute, String.valueOf(estimate)));
+			}
+			if (sketch != null) {
+				sketch.getMetrics().recordQueryBatch(count, System.nanoTime() - start);
+			}
+		}
+		session.adjustCounter("Sketch queries", count, false);
+		session.transfer(success, REL_SUCCESS);
+		session.transfer(failure, REL_FAILURE);
+	}
 
-		String key = context.getProperty(KEY).evaluateAttributeExpressions(flowFile).getValue();
-		if (cms == null)
-			cms = CountMinSketch.getInstance();
-
-		long estimatedCount = 0;
-		try {
-			estimatedCount = cms.getEstimatedCount(key);
-		} catch (NullPointerException e) {
-			estimatedCount = 0;
-		} catch (Throwable e) {
-			getLogger().error("Ran into an error while processing {}.", new Object[] { flowFile }, e);
-			session.transfer(flowFile, REL_FAILURE);
-		} finally {
-			flowFile = session.putAttribute(flowFile, key, String.valueOf(estimatedCount));
-			getLogger().info("Counter: Key {} - Value {}", new Object[] { key , estimatedCount});
-			session.transfer(flowFile, REL_SUCCESS);
+	private void queryLines(final ProcessContext context, final ProcessSession session,
+			final CountMinSketchService service, final List<FlowFile> flowFiles) {
+		final String name = context.getProperty(SKETCH_NAME).getValue();
+		final CountMinSketch cms = service.getSketch(name);
+		final boolean json = FORMAT_JSON.equals(context.getProperty(OUTPUT_FORMAT).getValue());
+		final ContentQuery query = new ContentQuery(cms, name, cms == null ? 0 : recentWindows(context, cms), json);
+		long keys = 0;
+		for (FlowFile flowFile : flowFiles) {
+			try {
+				final long start = System.nanoTime();
+				flowFile = session.write(flowFile, query);
+				if (cms != null) {
+					cms.getMetrics().recordQueryBatch(query.getKeys(), System.nanoTime() - start);
+				}
+				keys += query.getKeys();
+				flowFile = session.putAttribute(flowFile, "cms.keys", String.valueOf(query.getKeys()));
+				flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(),
+						json ? "application/json" : "text/csv");
+				session.transfer(flowFile, REL_SUCCESS);
+			} catch (ProcessException e) {
+				getLogger().error("Ran into an error while processing {}.", new Object[] { flowFile }, e);
+				session.transfer(flowFile, REL_FAILURE);
+			}
 		}
+		session.adjustCounter("Sketch queries", keys, false);
 	}
 }
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({ "distinct", "cardinality", "data science", "hll", "sketch" })
+@InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
+@CapabilityDescription("Writes the estimated number of distinct keys of one or more HyperLogLogs built by UpdateHLL "
+		+ "to the attribute hll.count. With several names the HyperLogLogs are merged, giving the distinct keys of "
+		+ "their union. With an incoming connection each incoming FlowFile gets the attribute, otherwise a new "
+		+ "FlowFile is created every time the processor runs.")
+@WritesAttributes({ @WritesAttribute(attribute = "hll.count", description = "The estimated number of distinct keys") })
+public class GetHLL extends AbstractProcessor {
+	public static final String COUNT_ATTRIBUTE = "hll.count";
+
+	// Properties
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the HyperLogLogs")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	public static final PropertyDescriptor SKETCH_NAME = new PropertyDescriptor.Builder().name("SKETCH_NAME")
+			.displayName("SKETCH_NAME")
+			.description("The name of the HyperLogLog to read, or several names separated by commas for the distinct "
+					+ "count of their union, which needs the same PRECISION and SEED. A HyperLogLog that UpdateHLL "
+					+ "has not created yet counts as empty")
+			.required(true).defaultValue(SketchConstants.DEFAULT_SKETCH_NAME)
+			.addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile(
+					SketchConstants.SKETCH_NAME_PATTERN.pattern() + "(\\s*,\\s*"
+							+ SketchConstants.SKETCH_NAME_PATTERN.pattern() + ")*")))
+			.build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("BATCH_SIZE")
+			.displayName("BATCH_SIZE")
+			.description("The maximum number of incoming FlowFiles given the estimate in one trigger")
+			.required(true).defaultValue(String.valueOf(SketchConstants.DEFAULT_BATCH_SIZE))
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	// relationships
+	public static final Relationship REL_SUCCESS = new Relationship.Builder()
+			.description("All FlowFiles are successfully processed are routed here").name("success").build();
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("When a FlowFile fails for a some reason, e.g. the HyperLogLogs cannot be merged").build();
+
+	private List<PropertyDescriptor> descriptors;
+
+	private Set<Relationship> relationships;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		descriptors.add(SKETCH_NAME);
+		descriptors.add(BATCH_SIZE);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		relationships.add(REL_SUCCESS);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			if (context.hasIncomingConnection()) {
+				return;
+			}
+			flowFiles = Collections.singletonList(session.create());
+		}
+
+		final CountMinSketchService service = context.getProperty(SKETCH_SERVICE)
+				.asControllerService(CountMinSketchService.class);
+		final long count;
+		try {
+			count = cardinality(service, context.getProperty(SKETCH_NAME).getValue().split(","));
+		} catch (IllegalArgumentException e) {
+			getLogger().error("Could not merge the HyperLogLogs {}", new Object[] {
+					context.getProperty(SKETCH_NAME).getValue() }, e);
+			session.transfer(flowFiles, REL_FAILURE);
+			return;
+		}
+
+		final String value = String.valueOf(count);
+		final List<FlowFile> success = new ArrayList<FlowFile>(flowFiles.size());
+		for (final FlowFile flowFile : flowFiles) {
+			success.add(session.putAttribute(flowFile, COUNT_ATTRIBUTE, value));
+		}
+		session.transfer(success, REL_SUCCESS);
+	}
+
+	// distinct keys of the union, merged into a copy so the registered HyperLogLogs stay untouched
+	private static long cardinality(final CountMinSketchService service, final String[] names) {
+		HyperLogLog union = null;
+		for (String name : names) {
+			final HyperLogLog hll = service.getHyperLogLog(name.trim());
+			if (hll == null) {
+				continue;
+			}
+			if (names.length == 1) {
+				return hll.cardinality();
+			}
+			if (union == null) {
+				union = new HyperLogLog(hll.getPrecision(), hll.getSeed());
+			}
+			union.merge(hll);
+		}
+		return union == null ? 0 : union.cardinality();
+	}
+}
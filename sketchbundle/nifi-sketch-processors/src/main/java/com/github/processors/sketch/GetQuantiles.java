@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({ "Attribute Expression Language", "quantile", "percentile", "data science", "kll", "sketch" })
+@InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
+@CapabilityDescription("Writes percentiles of the quantile sketches built by UpdateQuantiles to attributes, e.g. "
+		+ "quantile.0.99 for the 99th percentile, and the number of values to quantile.count. With several sketch "
+		+ "names the sketches are merged, e.g. those of several nodes or time windows. With an incoming connection "
+		+ "each incoming FlowFile gets the attributes, otherwise a new FlowFile is created every time the processor runs.")
+@WritesAttributes({
+		@WritesAttribute(attribute = "quantile.<fraction>", description = "The estimated value at each fraction of QUANTILES"),
+		@WritesAttribute(attribute = "quantile.count", description = "The number of values the estimates are based on") })
+public class GetQuantiles extends AbstractProcessor {
+	public static final String ATTRIBUTE_PREFIX = "quantile.";
+	public static final String COUNT_ATTRIBUTE = "quantile.count";
+
+	// Properties
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the quantile sketches")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	public static final PropertyDescriptor SKETCH_NAME = new PropertyDescriptor.Builder().name("SKETCH_NAME")
+			.displayName("SKETCH_NAME")
+			.description("The name of the quantile sketches to read, or several names separated by commas to merge "
+					+ "them. Sketches that UpdateQuantiles has not created yet count as empty")
+			.required(true).defaultValue(SketchConstants.DEFAULT_SKETCH_NAME)
+			.addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile(
+					SketchConstants.SKETCH_NAME_PATTERN.pattern() + "(\\s*,\\s*"
+							+ SketchConstants.SKETCH_NAME_PATTERN.pattern() + ")*")))
+			.build();
+
+	public static final PropertyDescriptor GROUP = new PropertyDescriptor.Builder().name("GROUP").displayName("GROUP")
+			.description("The group to read, as written by the GROUP of UpdateQuantiles. All values that were not "
+					+ "grouped if not set").required(false).expressionLanguageSupported(true)
+			.addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR).build();
+
+	public static final PropertyDescriptor QUANTILES = new PropertyDescriptor.Builder().name("QUANTILES")
+			.displayName("QUANTILES")
+			.description("The fractions to estimate, separated by commas, each in [0, 1]. 0 and 1 give the exact "
+					+ "minimum and maximum")
+			.required(true).defaultValue("0.5, 0.9, 0.99").addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("BATCH_SIZE")
+			.displayName("BATCH_SIZE")
+			.description("The maximum number of incoming FlowFiles given the estimates in one trigger")
+			.required(true).defaultValue(String.valueOf(SketchConstants.DEFAULT_BATCH_SIZE))
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	// relationships
+	public static final Relationship REL_SUCCESS = new Relationship.Builder()
+			.description("All FlowFiles are successfully processed are routed here").name("success").build();
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("When a FlowFile fails for a some reason").build();
+
+	private List<PropertyDescriptor> descriptors;
+
+	private Set<Relationship> relationships;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		descriptors.add(SKETCH_NAME);
+		descriptors.add(GROUP);
+		descriptors.add(QUANTILES);
+		descriptors.add(BATCH_SIZE);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		relationships.add(REL_SUCCESS);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		final List<ValidationResult> results = new ArrayList<ValidationResult>();
+		try {
+			parseFractions(context.getProperty(QUANTILES).getValue());
+		} catch (IllegalArgumentException e) {
+			results.add(new ValidationResult.Builder().subject(QUANTILES.getDisplayName()).valid(false)
+					.explanation(e.getMessage()).build());
+		}
+		return results;
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			if (context.hasIncomingConnection()) {
+				return;
+			}
+			flowFiles = Collections.singletonList(session.create());
+		}
+
+		final CountMinSketchService service = context.getProperty(SKETCH_SERVICE)
+				.asControllerService(CountMinSketchService.class);
+		final String[] names = context.getProperty(SKETCH_NAME).getValue().split(",");
+		final String[] texts = context.getProperty(QUANTILES).getValue().split(",");
+		final double[] fractions = parseFractions(context.getProperty(QUANTILES).getValue());
+		// a batch usually asks for few groups, each is merged and sorted once
+		final Map<String, KllSketch> sketches = new HashMap<String, KllSketch>();
+		final Map<String, double[]> estimates = new HashMap<String, double[]>();
+
+		final List<FlowFile> success = new ArrayList<FlowFile>(flowFiles.size());
+		final List<FlowFile> failure = new ArrayList<FlowFile>();
+		for (FlowFile flowFile : flowFiles) {
+			try {
+				String group = QuantileGroups.NO_GROUP;
+				if (context.getProperty(GROUP).isSet()) {
+					group = context.getProperty(GROUP).evaluateAttributeExpressions(flowFile).getValue();
+					if (group == null) {
+						group = QuantileGroups.NO_GROUP;
+					}
+				}
+				if (!sketches.containsKey(group)) {
+					final KllSketch sketch = merge(service, names, group);
+					sketches.put(group, sketch);
+					estimates.put(group, sketch == null ? null : sketch.getQuantiles(fractions));
+				}
+				final KllSketch sketch = sketches.get(group);
+				final double[] quantiles = estimates.get(group);
+				final Map<String, String> attributes = new HashMap<String, String>();
+				attributes.put(COUNT_ATTRIBUTE, String.valueOf(sketch == null ? 0 : sketch.getN()));
+				if (sketch != null && sketch.getN() > 0) {
+					for (int q = 0; q < fractions.length; q++) {
+						attributes.put(ATTRIBUTE_PREFIX + texts[q].trim(), String.valueOf(quantiles[q]));
+					}
+				}
+				success.add(session.putAllAttributes(flowFile, attributes));
+			} catch (Throwable e) {
+				getLogger().error("Ran into an error while processing {}.", new Object[] { flowFile }, e);
+				failure.add(flowFile);
+			}
+		}
+		session.transfer(success, REL_SUCCESS);
+		session.transfer(failure, REL_FAILURE);
+	}
+
+	// the sketch of a group, merged into a copy when there are several names so the registered ones stay untouched
+	private static KllSketch merge(final CountMinSketchService service, final String[] names, final String group) {
+		KllSketch union = null;
+		for (String name : names) {
+			final QuantileGroups groups = service.getQuantiles(name.trim());
+			final KllSketch sketch = groups == null ? null : groups.get(group);
+			if (sketch == null) {
+				continue;
+			}
+			if (names.length == 1) {
+				return sketch;
+			}
+			if (union == null) {
+				union = new KllSketch(sketch.getK());
+			}
+			union.merge(sketch);
+		}
+		return union;
+	}
+
+	static double[] parseFractions(final String value) {
+		final String[] texts = value.split(",");
+		final double[] fractions = new double[texts.length];
+		for (int i = 0; i < texts.length; i++) {
+			try {
+				fractions[i] = Double.parseDouble(texts[i].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("'" + texts[i].trim() + "' is not a number");
+			}
+			if (!(fractions[i] >= 0 && fractions[i] <= 1)) {
+				throw new IllegalArgumentException(texts[i].trim() + " is not in [0, 1]");
+			}
+		}
+		return fractions;
+	}
+}
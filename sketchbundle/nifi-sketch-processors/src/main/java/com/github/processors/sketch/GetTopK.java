@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({ "counter", "data science", "cms", "sketch", "top-k", "heavy hitters" })
+@InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
+@CapabilityDescription("Emits the keys with the highest estimated counts of a sketch as JSON content, e.g. "
+		+ "{\"sketch\":\"default\",\"topK\":[{\"key\":\"10.0.0.1\",\"count\":42}]}. The sketch must be built with "
+		+ "TOP_K set on UpdateCMS. With an incoming connection, the JSON replaces the content of each incoming "
+		+ "FlowFile, otherwise a new FlowFile is created every time the processor runs.")
+@WritesAttributes({ @WritesAttribute(attribute = "mime.type", description = "application/json") })
+public class GetTopK extends AbstractProcessor {
+	// Properties
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the sketches")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	public static final PropertyDescriptor SKETCH_NAME = new PropertyDescriptor.Builder().name("SKETCH_NAME")
+			.displayName("SKETCH_NAME").description("The name of the sketch to report on")
+			.required(true).defaultValue(SketchConstants.DEFAULT_SKETCH_NAME)
+			.addValidator(StandardValidators.createRegexMatchingValidator(SketchConstants.SKETCH_NAME_PATTERN)).build();
+
+	public static final PropertyDescriptor COUNT = new PropertyDescriptor.Builder().name("COUNT").displayName("COUNT")
+			.description("The maximum number of keys to emit. All tracked keys are emitted if not set")
+			.required(false).addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	// relationships
+	public static final Relationship REL_SUCCESS = new Relationship.Builder()
+			.description("All FlowFiles are successfully processed are routed here").name("success").build();
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("When a FlowFile fails for a some reason, e.g. the sketch does not track heavy hitters")
+			.build();
+
+	private List<PropertyDescriptor> descriptors;
+
+	private Set<Relationship> relationships;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		descriptors.add(SKETCH_NAME);
+		descriptors.add(COUNT);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		relationships.add(REL_SUCCESS);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		FlowFile flowFile = session.get();
+		if (flowFile == null && context.hasIncomingConnection()) {
+			return;
+		}
+
+		final String name = context.getProperty(SKETCH_NAME).getValue();
+		final CountMinSketch cms = context.getProperty(SKETCH_SERVICE).asControllerService(CountMinSketchService.class)
+				.getSketch(name);
+		if (cms == null || cms.getHeavyHitters() == null) {
+			getLogger().warn("Sketch {} does not exist or does not track heavy hitters", new Object[] { name });
+			if (flowFile != null) {
+				session.transfer(flowFile, REL_FAILURE);
+			} else {
+				context.yield();
+			}
+			return;
+		}
+
+		List<Map.Entry<String, Long>> top = cms.getHeavyHitters().getTop();
+		if (context.getProperty(COUNT).isSet() && top.size() > context.getProperty(COUNT).asInteger()) {
+			top = top.subList(0, context.getProperty(COUNT).asInteger());
+		}
+		final byte[] json = toJson(name, top).getBytes(StandardCharsets.UTF_8);
+
+		if (flowFile == null) {
+			flowFile = session.create();
+		}
+		flowFile = session.write(flowFile, new OutputStreamCallback() {
+			@Override
+			public void process(final OutputStream out) throws IOException {
+				out.write(json);
+			}
+		});
+		flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), "application/json");
+		session.transfer(flowFile, REL_SUCCESS);
+	}
+
+	static String toJson(final String name, final List<Map.Entry<String, Long>> top) {
+		final StringBuilder json = new StringBuilder(32 + 40 * top.size());
+		json.append("{\"sketch\":");
+		Json.appendString(json, name);
+		json.append(",\"topK\":[");
+		for (int i = 0; i < top.size(); i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"key\":");
+			Json.appendString(json, top.get(i).getKey());
+			json.append(",\"count\":").append(top.get(i).getValue()).append('}');
+		}
+		return json.append("]}").toString();
+	}
+}
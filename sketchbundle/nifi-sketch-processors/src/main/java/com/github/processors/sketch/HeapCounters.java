@@ -0,0 +1,56 @@
+package com.github.processors.sketch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Cells in a single on-heap long[] (wrapped by AtomicLongArray), so the rows
+ * of a sketch are contiguous instead of separate row objects.
+ * */
+final class HeapCounters implements Counters {
+	private final AtomicLongArray cells;
+
+	HeapCounters(final int size) {
+		this.cells = new AtomicLongArray(size);
+	}
+
+	@Override
+	public int size() {
+		return cells.length();
+	}
+
+	@Override
+	public long get(final int index) {
+		return cells.get(index);
+	}
+
+	@Override
+	public long add(final int index, final long value) {
+		return cells.addAndGet(index, value);
+	}
+
+	@Override
+	public long raise(final int index, final long value) {
+		while (true) {
+			final long current = cells.get(index);
+			if (current >= value || cells.compareAndSet(index, current, value)) {
+				return Math.max(current, value);
+			}
+		}
+	}
+
+	@Override
+	public long getMemoryBytes() {
+		return 8L * cells.length();
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < cells.length(); i++) {
+			cells.lazySet(i, 0);
+		}
+	}
+
+	@Override
+	public void checkpoint() {
+	}
+}
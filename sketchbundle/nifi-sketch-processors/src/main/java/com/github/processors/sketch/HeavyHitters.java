@@ -0,0 +1,201 @@
+package com.github.processors.sketch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The k keys with the highest estimated counts seen by a sketch, kept in a
+ * min-heap by count next to a concurrent index of the tracked keys. Offering a
+ * new key costs O(log k) and memory is bounded by k entries whatever the number
+ * of distinct keys.
+ *
+ * Once the heap is full, offers at or below its minimum are rejected without
+ * taking the lock, and offers of a key already tracked only raise that key's
+ * count atomically, so the hot keys of a skewed stream never take the lock.
+ * The heap is ordered by the counts its entries had when they were last
+ * sifted, which are never above the current ones; before the minimum is
+ * evicted, entries whose count grew since are sifted down again until the
+ * minimum is current.
+ * */
+public final class HeavyHitters {
+	private final int capacity;
+	private final Entry[] heap;
+	// the count each heap entry was last ordered by, at most its current count
+	private final long[] counts;
+	private final ConcurrentMap<String, Entry> entries;
+	private int size;
+	// smallest count in a full heap, Long.MIN_VALUE while it is not full
+	private volatile long threshold = Long.MIN_VALUE;
+
+	HeavyHitters(final int capacity) {
+		this.capacity = capacity;
+		this.heap = new Entry[capacity];
+		this.counts = new long[capacity];
+		this.entries = new ConcurrentHashMap<String, Entry>(capacity * 2);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	void offer(final String key, final long hash64, final long count) {
+		if (count <= threshold) {
+			return;
+		}
+		final Entry entry = entries.get(key);
+		if (entry != null) {
+			entry.raise(count);
+			return;
+		}
+		insert(key, hash64, count);
+	}
+
+	// creates the String only if the key can enter the heap
+	void offer(final byte[] key, final int offset, final int length, final long hash64, final long count) {
+		if (count <= threshold) {
+			return;
+		}
+		offer(new String(key, offset, length, StandardCharsets.UTF_8), hash64, count);
+	}
+
+	private synchronized void insert(final String key, final long hash64, final long count) {
+		final Entry tracked = entries.get(key);
+		if (tracked != null) {
+			tracked.raise(count);
+			return;
+		}
+		if (size < capacity) {
+			final Entry entry = new Entry(key, hash64, count);
+			heap[size] = entry;
+			counts[size] = count;
+			entries.put(key, entry);
+			siftUp(size++);
+		} else {
+			settleMinimum();
+			if (count > counts[0]) {
+				entries.remove(heap[0].key);
+				final Entry entry = new Entry(key, hash64, count);
+				heap[0] = entry;
+				counts[0] = count;
+				entries.put(key, entry);
+				siftDown(0);
+			}
+		}
+		threshold = size == capacity ? counts[0] : Long.MIN_VALUE;
+	}
+
+	// re-sifts the root while its count grew since it was ordered, so that it is the true minimum
+	private void settleMinimum() {
+		long current;
+		while (size > 0 && (current = heap[0].count.get()) > counts[0]) {
+			counts[0] = current;
+			siftDown(0);
+		}
+	}
+
+	/*
+	 * Re-estimates every tracked key, e.g. after the oldest window of a windowed
+	 * sketch was dropped, and removes the keys whose estimate fell to 0. Keys the
+	 * heap evicted earlier only come back when they are offered again.
+	 */
+	synchronized void refresh(final CountMinSketch sketch) {
+		final Entry[] tracked = Arrays.copyOf(heap, size);
+		clear();
+		for (Entry entry : tracked) {
+			final long count = sketch.getEstimatedCount(entry.hash64);
+			if (count > 0) {
+				insert(entry.key, entry.hash64, count);
+			}
+		}
+	}
+
+	private void clear() {
+		Arrays.fill(heap, 0, size, null);
+		entries.clear();
+		size = 0;
+		threshold = Long.MIN_VALUE;
+	}
+
+	/*
+	 * Returns the tracked keys with their estimates, highest first.
+	 */
+	public List<Map.Entry<String, Long>> getTop() {
+		final List<Map.Entry<String, Long>> top = new ArrayList<Map.Entry<String, Long>>(capacity);
+		synchronized (this) {
+			for (int i = 0; i < size; i++) {
+				top.add(new AbstractMap.SimpleImmutableEntry<String, Long>(heap[i].key, heap[i].count.get()));
+			}
+		}
+		Collections.sort(top, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(final Map.Entry<String, Long> a, final Map.Entry<String, Long> b) {
+				return Long.compare(b.getValue(), a.getValue());
+			}
+		});
+		return top;
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			final int parent = (i - 1) >>> 1;
+			if (counts[parent] <= counts[i]) {
+				break;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		while (true) {
+			final int left = 2 * i + 1;
+			if (left >= size) {
+				return;
+			}
+			final int right = left + 1;
+			final int smallest = right < size && counts[right] < counts[left] ? right : left;
+			if (counts[i] <= counts[smallest]) {
+				return;
+			}
+			swap(i, smallest);
+			i = smallest;
+		}
+	}
+
+	private void swap(final int i, final int j) {
+		final Entry entry = heap[i];
+		final long count = counts[i];
+		heap[i] = heap[j];
+		counts[i] = counts[j];
+		heap[j] = entry;
+		counts[j] = count;
+	}
+
+	private static final class Entry {
+		private final String key;
+		// as given to the sketch, see refresh
+		private final long hash64;
+		private final AtomicLong count;
+
+		Entry(final String key, final long hash64, final long count) {
+			this.key = key;
+			this.hash64 = hash64;
+			this.count = new AtomicLong(count);
+		}
+
+		void raise(final long value) {
+			long current;
+			while ((current = count.get()) < value && !count.compareAndSet(current, value)) {
+			}
+		}
+	}
+}
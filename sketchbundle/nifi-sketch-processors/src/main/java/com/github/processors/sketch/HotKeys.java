@@ -0,0 +1,194 @@
+package com.github.processors.sketch;
+
+/*
+ * Pre-aggregation table in front of a CountMinSketch (Builder.preAggregate).
+ * On a skewed stream most updates hit a few keys; each of those normally costs
+ * depth counter writes. Here the hottest keys accumulate their exact deltas in
+ * a small table instead, and each pending delta reaches the counters with one
+ * update when its key is evicted or the table is flushed, after flushUpdates
+ * absorbed updates or flushMillis, whichever comes first.
+ *
+ * The table has a fixed number of slots in buckets of BUCKET, split into
+ * STRIPES independently locked stripes. A key is looked up in one bucket only.
+ * A new key takes a free slot of its bucket; if there is none, the bucket ages
+ * as in Misra-Gries: every slot loses a hit, and only a slot left without hits
+ * is evicted for the new key. Otherwise the new key goes straight to the
+ * sketch, so a stream of cold keys cannot push hot ones out.
+ *
+ * Estimates add the pending delta of the key, so reads through the sketch
+ * never miss buffered updates. Raw counter reads (getCounts, checkpoint) flush
+ * first. The interval is only checked while updates arrive.
+ * */
+final class HotKeys {
+	static final int STRIPES = 16;
+	static final int BUCKET = 4;
+	// per slot: hash, delta and hits
+	static final int SLOT_BYTES = 20;
+	// hits saturate here, so that a key that was hot long ago can still age out
+	private static final int MAX_HITS = 1 << 16;
+	// the clock is read once per this many absorbed updates of a stripe
+	private static final int CLOCK_MASK = 63;
+
+	private final CountMinSketch sketch;
+	private final int keys;
+	private final int flushUpdates;
+	private final long flushNanos;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	/*
+	 * @param keys the number of keys the table holds, rounded up to a multiple of
+	 *            STRIPES * BUCKET
+	 */
+	HotKeys(final CountMinSketch sketch, final int keys, final int flushUpdates, final long flushMillis) {
+		this.sketch = sketch;
+		this.keys = keys;
+		this.flushUpdates = flushUpdates;
+		this.flushNanos = flushMillis * 1000000L;
+		final int buckets = buckets(keys);
+		// stripes flush on their own, each after its share of the updates
+		final int stripeUpdates = Math.max(1, flushUpdates / STRIPES);
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(buckets, stripeUpdates);
+		}
+	}
+
+	private static int buckets(final int keys) {
+		return Math.max(1, (keys + STRIPES * BUCKET - 1) / (STRIPES * BUCKET));
+	}
+
+	static long getMemoryBytes(final int keys) {
+		return (long) buckets(keys) * STRIPES * BUCKET * SLOT_BYTES;
+	}
+
+	int getKeys() {
+		return keys;
+	}
+
+	int getFlushUpdates() {
+		return flushUpdates;
+	}
+
+	long getFlushMillis() {
+		return flushNanos / 1000000L;
+	}
+
+	/*
+	 * Buffers an update, returns false if the key is not hot enough to be kept
+	 * and must be written to the sketch by the caller.
+	 */
+	boolean add(final long hash64, final long value) {
+		if (hash64 == 0) {
+			// 0 marks a free slot
+			return false;
+		}
+		final Stripe stripe = stripes[(int) (hash64 >>> 60)];
+		synchronized (stripe) {
+			final boolean added = stripe.add(hash64, value);
+			if (added && (++stripe.absorbed >= stripe.maxUpdates
+					|| ((stripe.absorbed & CLOCK_MASK) == 0 && System.nanoTime() - stripe.flushedAt >= flushNanos))) {
+				stripe.flush();
+			}
+			return added;
+		}
+	}
+
+	// the delta buffered for a key, not in the counters yet
+	long pending(final long hash64) {
+		if (hash64 == 0) {
+			return 0;
+		}
+		final Stripe stripe = stripes[(int) (hash64 >>> 60)];
+		synchronized (stripe) {
+			return stripe.pending(hash64);
+		}
+	}
+
+	// writes every pending delta to the sketch; hot keys keep their slots
+	void flush() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.flush();
+			}
+		}
+	}
+
+	private final class Stripe {
+		private final int buckets;
+		private final int maxUpdates;
+		private final long[] hashes;
+		private final long[] deltas;
+		private final int[] hits;
+		private int absorbed;
+		private long flushedAt = System.nanoTime();
+
+		Stripe(final int buckets, final int maxUpdates) {
+			this.buckets = buckets;
+			this.maxUpdates = maxUpdates;
+			this.hashes = new long[buckets * BUCKET];
+			this.deltas = new long[buckets * BUCKET];
+			this.hits = new int[buckets * BUCKET];
+		}
+
+		// first slot of the bucket of a key, from the hash bits below those choosing the stripe
+		private int bucket(final long hash64) {
+			return (int) (((hash64 >>> 28 & 0xFFFFFFFFL) * buckets) >>> 32) * BUCKET;
+		}
+
+		boolean add(final long hash64, final long value) {
+			final int first = bucket(hash64);
+			int free = -1;
+			for (int s = first; s < first + BUCKET; s++) {
+				if (hashes[s] == hash64) {
+					deltas[s] += value;
+					if (hits[s] < MAX_HITS) {
+						hits[s]++;
+					}
+					return true;
+				}
+				if (free < 0 && hashes[s] == 0) {
+					free = s;
+				}
+			}
+			if (free < 0) {
+				int coldest = first;
+				for (int s = first; s < first + BUCKET; s++) {
+					if (--hits[s] < hits[coldest]) {
+						coldest = s;
+					}
+				}
+				if (hits[coldest] > 0) {
+					return false;
+				}
+				if (deltas[coldest] != 0) {
+					sketch.write(hashes[coldest], deltas[coldest]);
+				}
+				free = coldest;
+			}
+			hashes[free] = hash64;
+			deltas[free] = value;
+			hits[free] = 1;
+			return true;
+		}
+
+		long pending(final long hash64) {
+			final int first = bucket(hash64);
+			for (int s = first; s < first + BUCKET; s++) {
+				if (hashes[s] == hash64) {
+					return deltas[s];
+				}
+			}
+			return 0;
+		}
+
+		void flush() {
+			for (int s = 0; s < hashes.length; s++) {
+				if (deltas[s] != 0) {
+					sketch.write(hashes[s], deltas[s]);
+					deltas[s] = 0;
+				}
+			}
+			absorbed = 0;
+			flushedAt = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package com.github.processors.sketch;
+
+/*
+ * HyperLogLog distinct counter of 2^precision registers, with the sparse
+ * representation of HLL++ for small cardinalities.
+ *
+ * While sparse, each distinct register of a finer 2^25 register sketch is
+ * kept as one int (index << 6 | rank) in an open addressing table, so a few
+ * thousand keys cost a few kilobytes and are counted almost exactly by
+ * linear counting. Once the table would take more memory than the dense
+ * registers it is folded into one byte per register, so memory never exceeds
+ * 2^precision bytes however many keys are added. Both representations are
+ * updated in place and allocate nothing per key.
+ *
+ * The dense estimate is Ertl's improved estimator, which is unbiased over the
+ * whole range without the empirical bias tables of HLL++. The relative
+ * standard error is about 1.04 / sqrt(2^precision).
+ *
+ * Keys are hashed with the same allocation free Murmur3 as CountMinSketch.
+ * Instances of the same precision and seed can be merged.
+ *
+ * Ref: https://research.google.com/pubs/archive/40671.pdf , https://arxiv.org/abs/1702.01284
+ * */
+public final class HyperLogLog {
+	public static final int MIN_PRECISION = 4;
+	public static final int MAX_PRECISION = 18;
+	public static final int DEFAULT_PRECISION = 14;
+	// register index bits of the sparse entries
+	private static final int SPARSE_PRECISION = 25;
+	private static final int SPARSE_CAPACITY = 16;
+	private static final double ALPHA_INF = 1 / (2 * Math.log(2));
+
+	private final int precision;
+	private final int seed;
+	// index << 6 | rank of the sparse registers set, 0 is empty. null once dense
+	private int[] sparse;
+	private int sparseSize;
+	// the rank of every register, null while sparse
+	private byte[] registers;
+
+	public HyperLogLog(final int precision, final int seed) {
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+			throw new IllegalArgumentException(
+					"Precision must be in [" + MIN_PRECISION + ", " + MAX_PRECISION + "], got " + precision);
+		}
+		this.precision = precision;
+		this.seed = seed;
+		if (4 * SPARSE_CAPACITY < (1 << precision)) {
+			this.sparse = new int[SPARSE_CAPACITY];
+		} else {
+			this.registers = new byte[1 << precision];
+		}
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	public int getSeed() {
+		return seed;
+	}
+
+	public synchronized boolean isSparse() {
+		return registers == null;
+	}
+
+	// relative standard error of the estimate
+	public double getRelativeError() {
+		return 1.04 / Math.sqrt(1 << precision);
+	}
+
+	public synchronized long getMemoryBytes() {
+		return registers == null ? 4L * sparse.length : registers.length;
+	}
+
+	// the most an instance of this precision ever takes
+	public static long getMaxMemoryBytes(final int precision) {
+		return 1L << precision;
+	}
+
+	public boolean matches(final int precision, final int seed) {
+		return this.precision == precision && this.seed == seed;
+	}
+
+	public long hash(final CharSequence key) {
+		return Murmur3.hash64(key, seed);
+	}
+
+	public long hash(final byte[] key, final int offset, final int length) {
+		return Murmur3.hash64(key, offset, length, seed);
+	}
+
+	public void add(final CharSequence key) {
+		add(hash(key));
+	}
+
+	public void add(final byte[] key, final int offset, final int length) {
+		add(hash(key, offset, length));
+	}
+
+	// adds a key hashed earlier with one of the hash methods
+	public synchronized void add(final long hash64) {
+		if (registers != null) {
+			final int index = (int) (hash64 >>> (64 - precision));
+			final int rank = Long.numberOfLeadingZeros(hash64 << precision | 1L << (precision - 1)) + 1;
+			if (rank > registers[index]) {
+				registers[index] = (byte) rank;
+			}
+		} else {
+			addSparse(entry(hash64));
+		}
+	}
+
+	// adds the first count hashes under one lock
+	public synchronized void add(final long[] hashes, final int count) {
+		for (int i = 0; i < count; i++) {
+			add(hashes[i]);
+		}
+	}
+
+	/*
+	 * Estimated number of distinct keys added.
+	 */
+	public synchronized long cardinality() {
+		if (registers == null) {
+			// linear counting over the 2^25 registers the entries belong to
+			final double m = 1 << SPARSE_PRECISION;
+			return Math.round(m * Math.log(m / (m - sparseSize)));
+		}
+		final int q = 64 - precision;
+		final int[] histogram = new int[q + 2];
+		for (int i = 0; i < registers.length; i++) {
+			histogram[registers[i]]++;
+		}
+		final double m = registers.length;
+		double z = m * tau(1 - histogram[q + 1] / m);
+		for (int k = q; k >= 1; k--) {
+			z = 0.5 * (z + histogram[k]);
+		}
+		z += m * sigma(histogram[0] / m);
+		return Math.round(ALPHA_INF * m * m / z);
+	}
+
+	/*
+	 * A copy of the dense registers, one rank per byte, as consumed by
+	 * merge(byte[]). A sparse instance is converted on the copy only.
+	 */
+	public synchronized byte[] getRegisters() {
+		if (registers != null) {
+			return registers.clone();
+		}
+		final byte[] copy = new byte[1 << precision];
+		for (int entry : sparse) {
+			if (entry != 0) {
+				addDense(copy, entry);
+			}
+		}
+		return copy;
+	}
+
+	/*
+	 * Adds the keys of other, which must have the same precision and seed. The
+	 * result is the same as if every key of other had been added to this one.
+	 */
+	public void merge(final HyperLogLog other) {
+		if (!matches(other.precision, other.seed)) {
+			throw new IllegalArgumentException("Cannot merge a HyperLogLog of precision " + other.precision
+					+ " and seed " + other.seed + " into one of precision " + precision + " and seed " + seed);
+		}
+		final int[] entries;
+		final byte[] dense;
+		// copy first, so that two instances merging into each other never wait on each other
+		synchronized (other) {
+			entries = other.sparse == null ? null : other.sparse.clone();
+			dense = other.registers == null ? null : other.registers.clone();
+		}
+		if (dense != null) {
+			merge(dense);
+			return;
+		}
+		synchronized (this) {
+			for (int entry : entries) {
+				if (entry == 0) {
+					continue;
+				}
+				if (registers != null) {
+					addDense(registers, entry);
+				} else {
+					addSparse(entry);
+				}
+			}
+		}
+	}
+
+	// takes the maximum of every register, see getRegisters
+	public synchronized void merge(final byte[] ranks) {
+		if (ranks.length != 1 << precision) {
+			throw new IllegalArgumentException(
+					"Cannot merge " + ranks.length + " registers into a HyperLogLog of " + (1 << precision));
+		}
+		if (registers == null) {
+			toDense();
+		}
+		for (int i = 0; i < ranks.length; i++) {
+			if (ranks[i] > registers[i]) {
+				registers[i] = ranks[i];
+			}
+		}
+	}
+
+	// the sparse entry of a hash: its register and rank at SPARSE_PRECISION
+	private static int entry(final long hash64) {
+		final int index = (int) (hash64 >>> (64 - SPARSE_PRECISION));
+		final int rank = Long.numberOfLeadingZeros(hash64 << SPARSE_PRECISION | 1L << (SPARSE_PRECISION - 1)) + 1;
+		return index << 6 | rank;
+	}
+
+	private void addSparse(final int entry) {
+		final int index = entry >>> 6;
+		final int mask = sparse.length - 1;
+		// the index is made of hash bits already, its low bits spread well
+		for (int slot = index & mask;; slot = (slot + 1) & mask) {
+			final int existing = sparse[slot];
+			if (existing == 0) {
+				sparse[slot] = entry;
+				if (++sparseSize > sparse.length / 4 * 3) {
+					grow();
+				}
+				return;
+			}
+			if (existing >>> 6 == index) {
+				if ((entry & 63) > (existing & 63)) {
+					sparse[slot] = entry;
+				}
+				return;
+			}
+		}
+	}
+
+	// doubles the table, or goes dense once the table would outgrow the registers
+	private void grow() {
+		if (8L * sparse.length >= 1 << precision) {
+			toDense();
+			return;
+		}
+		final int[] entries = sparse;
+		sparse = new int[entries.length * 2];
+		sparseSize = 0;
+		for (int entry : entries) {
+			if (entry != 0) {
+				addSparse(entry);
+			}
+		}
+	}
+
+	private void toDense() {
+		final byte[] dense = new byte[1 << precision];
+		for (int entry : sparse) {
+			if (entry != 0) {
+				addDense(dense, entry);
+			}
+		}
+		registers = dense;
+		sparse = null;
+		sparseSize = 0;
+	}
+
+	/*
+	 * The dense register of an entry is its index without the low bits. Those bits
+	 * come first after the register index in the hash, so unless they are all zero
+	 * they decide the rank; otherwise the rank continues with the entry's own.
+	 */
+	private void addDense(final byte[] dense, final int entry) {
+		final int shift = SPARSE_PRECISION - precision;
+		final int index = entry >>> 6;
+		final int low = index & ((1 << shift) - 1);
+		final int rank = low != 0 ? Integer.numberOfLeadingZeros(low) - (32 - shift) + 1 : shift + (entry & 63);
+		final int register = index >>> shift;
+		if (rank > dense[register]) {
+			dense[register] = (byte) rank;
+		}
+	}
+
+	private static double sigma(double x) {
+		if (x == 1) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double y = 1;
+		double z = x;
+		double previous;
+		do {
+			x *= x;
+			previous = z;
+			z += x * y;
+			y += y;
+		} while (z != previous);
+		return z;
+	}
+
+	private static double tau(double x) {
+		if (x == 0 || x == 1) {
+			return 0;
+		}
+		double y = 1;
+		double z = 1 - x;
+		double previous;
+		do {
+			x = Math.sqrt(x);
+			previous = z;
+			y *= 0.5;
+			z -= (1 - x) * (1 - x) * y;
+		} while (z != previous);
+		return z / 3;
+	}
+}
@@ -0,0 +1,41 @@
+package com.github.processors.sketch;
+
+/*
+ * Minimal JSON output helpers for the processors that emit JSON content.
+ * */
+final class Json {
+	private Json() {
+	}
+
+	// appends value as a quoted and escaped JSON string
+	static void appendString(final StringBuilder json, final String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+}
@@ -0,0 +1,275 @@
+package com.github.processors.sketch;
+
+import java.util.Arrays;
+
+/*
+ * KLL quantile sketch (Karnin, Lang, Liberty) of a stream of doubles.
+ *
+ * Items are kept in a stack of compactors: level h holds items that each stand
+ * for 2^h stream values. A full level is sorted and every other item, starting
+ * at a random offset, is promoted to the level above, which keeps ranks
+ * unbiased while halving the level. Capacities shrink geometrically (by 2/3)
+ * from the top level down, so about 3k items are retained for any stream
+ * length plus a few per level, and an update is amortized O(1).
+ *
+ * The normalized rank error is about 2.296 / k^0.9723 with 99% confidence,
+ * e.g. 1.3% for k = 200. Sketches of any k can be merged; the result is as
+ * accurate as the one with the smaller k.
+ *
+ * Ref: https://arxiv.org/abs/1603.05346 , https://datasketches.apache.org/docs/KLL/KLLAccuracyAndSize.html
+ * */
+public final class KllSketch {
+	public static final int MIN_K = 8;
+	public static final int MAX_K = 65535;
+	private static final double CAPACITY_RATIO = 2.0 / 3;
+
+	private final int k;
+	// items of each level, only the first sizes[h] of levels[h] are used
+	private double[][] levels = new double[1][];
+	private int[] sizes = new int[1];
+	private int height = 1;
+	// items retained over all levels, and the retained items that trigger a compaction
+	private int size;
+	private int maxSize;
+	private long n;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	// xorshift state for the compaction offsets
+	private long random = 0x9E3779B97F4A7C15L;
+
+	public KllSketch(final int k) {
+		if (k < MIN_K || k > MAX_K) {
+			throw new IllegalArgumentException("k must be in [" + MIN_K + ", " + MAX_K + "], got " + k);
+		}
+		this.k = k;
+		this.levels[0] = new double[capacity(0)];
+		this.maxSize = capacity(0);
+	}
+
+	// smallest k whose normalized rank error is at most epsilon
+	public static int kForEpsilon(final double epsilon) {
+		if (epsilon <= 0 || epsilon >= 1) {
+			throw new IllegalArgumentException("Epsilon must be in (0, 1), got " + epsilon);
+		}
+		final double k = Math.ceil(Math.pow(2.296 / epsilon, 1 / 0.9723));
+		return (int) Math.max(MIN_K, Math.min(MAX_K, k));
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public double getNormalizedRankError() {
+		return 2.296 / Math.pow(k, 0.9723);
+	}
+
+	// number of values added
+	public synchronized long getN() {
+		return n;
+	}
+
+	// smallest value added, NaN while empty
+	public synchronized double getMin() {
+		return min;
+	}
+
+	public synchronized double getMax() {
+		return max;
+	}
+
+	public synchronized long getMemoryBytes() {
+		long items = 0;
+		for (int h = 0; h < height; h++) {
+			items += levels[h].length;
+		}
+		return 8 * items;
+	}
+
+	public synchronized void update(final double value) {
+		if (Double.isNaN(value)) {
+			throw new IllegalArgumentException("Cannot add NaN to a quantile sketch");
+		}
+		if (n == 0 || value < min) {
+			min = value;
+		}
+		if (n == 0 || value > max) {
+			max = value;
+		}
+		n++;
+		append(0, value);
+		if (size >= maxSize) {
+			compress();
+		}
+	}
+
+	/*
+	 * Adds the values of other, as if every value it was built from had been
+	 * added here. other is left unchanged.
+	 */
+	public void merge(final KllSketch other) {
+		final double[][] items;
+		final long otherN;
+		final double otherMin;
+		final double otherMax;
+		// copy first, so that two sketches merging into each other never wait on each other
+		synchronized (other) {
+			items = new double[other.height][];
+			for (int h = 0; h < other.height; h++) {
+				items[h] = Arrays.copyOf(other.levels[h], other.sizes[h]);
+			}
+			otherN = other.n;
+			otherMin = other.min;
+			otherMax = other.max;
+		}
+		if (otherN == 0) {
+			return;
+		}
+		synchronized (this) {
+			if (n == 0 || otherMin < min) {
+				min = otherMin;
+			}
+			if (n == 0 || otherMax > max) {
+				max = otherMax;
+			}
+			n += otherN;
+			for (int h = 0; h < items.length; h++) {
+				while (height <= h) {
+					grow();
+				}
+				for (double value : items[h]) {
+					append(h, value);
+				}
+			}
+			while (size >= maxSize) {
+				compress();
+			}
+		}
+	}
+
+	/*
+	 * Estimated value at a fraction of the stream in [0, 1], e.g. 0.99 for the
+	 * 99th percentile. 0 and 1 give the exact minimum and maximum, an empty
+	 * sketch NaN.
+	 */
+	public double getQuantile(final double fraction) {
+		return getQuantiles(new double[] { fraction })[0];
+	}
+
+	// batch form of getQuantile, sorting the retained items once
+	public synchronized double[] getQuantiles(final double[] fractions) {
+		final double[] quantiles = new double[fractions.length];
+		for (double fraction : fractions) {
+			if (!(fraction >= 0 && fraction <= 1)) {
+				throw new IllegalArgumentException("Quantile fractions must be in [0, 1], got " + fraction);
+			}
+		}
+		if (n == 0) {
+			Arrays.fill(quantiles, Double.NaN);
+			return quantiles;
+		}
+
+		// merges the sorted levels into one sorted view with cumulative weights
+		final double[] values = new double[size];
+		final long[] cumulative = new long[size];
+		final int[] heads = new int[height];
+		for (int h = 0; h < height; h++) {
+			Arrays.sort(levels[h], 0, sizes[h]);
+		}
+		long weight = 0;
+		for (int i = 0; i < size; i++) {
+			int next = -1;
+			for (int h = 0; h < height; h++) {
+				if (heads[h] < sizes[h] && (next < 0 || levels[h][heads[h]] < levels[next][heads[next]])) {
+					next = h;
+				}
+			}
+			values[i] = levels[next][heads[next]++];
+			weight += 1L << next;
+			cumulative[i] = weight;
+		}
+
+		for (int q = 0; q < fractions.length; q++) {
+			if (fractions[q] == 0) {
+				quantiles[q] = min;
+			} else if (fractions[q] == 1) {
+				quantiles[q] = max;
+			} else {
+				final long rank = (long) Math.ceil(fractions[q] * n);
+				int index = Arrays.binarySearch(cumulative, rank);
+				if (index < 0) {
+					index = Math.min(-index - 1, size - 1);
+				}
+				quantiles[q] = values[index];
+			}
+		}
+		return quantiles;
+	}
+
+	// level h holds at most this many items before it is compacted
+	private int capacity(final int h) {
+		final double capacity = Math.ceil(k * Math.pow(CAPACITY_RATIO, height - 1 - h));
+		return Math.max(MIN_K, (int) capacity);
+	}
+
+	private void append(final int h, final double value) {
+		if (sizes[h] == levels[h].length) {
+			levels[h] = Arrays.copyOf(levels[h], Math.max(MIN_K, 2 * levels[h].length));
+		}
+		levels[h][sizes[h]++] = value;
+		size++;
+	}
+
+	// compacts full levels from the bottom up until the sketch is below maxSize
+	private void compress() {
+		for (int h = 0; h < height; h++) {
+			if (sizes[h] >= capacity(h)) {
+				if (h + 1 == height) {
+					grow();
+				}
+				compact(h);
+				if (size < maxSize) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void grow() {
+		height++;
+		levels = Arrays.copyOf(levels, height);
+		sizes = Arrays.copyOf(sizes, height);
+		levels[height - 1] = new double[0];
+		maxSize = 0;
+		for (int h = 0; h < height; h++) {
+			maxSize += capacity(h);
+		}
+	}
+
+	/*
+	 * Promotes every other item of level h, starting at a random offset, to the
+	 * level above. With an odd count the smallest item stays behind.
+	 */
+	private void compact(final int h) {
+		final double[] items = levels[h];
+		final int count = sizes[h];
+		Arrays.sort(items, 0, count);
+		final int keep = count & 1;
+		for (int i = keep + nextBit(); i < count; i += 2) {
+			append(h + 1, items[i]);
+		}
+		size -= count - keep;
+		sizes[h] = keep;
+		// capacities below the top shrink as the sketch grows, so must the arrays
+		final int capacity = capacity(h);
+		if (items.length > capacity) {
+			levels[h] = Arrays.copyOf(items, capacity);
+		}
+	}
+
+	private int nextBit() {
+		random ^= random << 13;
+		random ^= random >>> 7;
+		random ^= random << 17;
+		return (int) (random >>> 63);
+	}
+}
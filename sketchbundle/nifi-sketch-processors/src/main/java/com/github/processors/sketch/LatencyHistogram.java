@@ -0,0 +1,47 @@
+package com.github.processors.sketch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock-free histogram of latencies in nanoseconds with one bucket per power of
+ * two, so recording is an index computation and one atomic add, and
+ * percentiles are accurate to within a factor of two.
+ * */
+public final class LatencyHistogram {
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+	// records count calls that took nanos each
+	public void record(final long nanos, final long count) {
+		buckets.addAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)), count);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+
+	/*
+	 * Upper bound of the bucket holding the given percentile (0 to 100), 0 if
+	 * nothing was recorded.
+	 */
+	public long getPercentile(final double percentile) {
+		final long[] counts = new long[buckets.length()];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		final double rank = total * percentile / 100;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen > 0 && seen >= rank) {
+				return i == 63 ? Long.MAX_VALUE : (2L << i) - 1;
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,246 @@
+package com.github.processors.sketch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.apache.nifi.processor.io.InputStreamCallback;
+
+/*
+ * Streams FlowFile content into a sketch, one update per line. Keys are hashed
+ * straight out of the read buffer (as UTF-8 bytes, which matches hashing the
+ * same key as a String), so no String is created per line and memory stays at
+ * one buffer no matter how large the content is. The buffer only grows when a
+ * single line does not fit in it.
+ *
+ * Lines are separated by '\n', a trailing '\r' is dropped and empty lines are
+ * skipped. With a delimiter, the text after its last occurrence in a line is
+ * parsed as the value to add, otherwise every line adds the default value.
+ *
+ * BulkLoader parses memory-mapped blocks in place through lines(ByteBuffer,
+ * ...), with the same rules, and redirects the counts by overriding
+ * count(ByteBuffer, ...).
+ * */
+class LineCounter implements InputStreamCallback {
+	static final int BUFFER_SIZE = 64 * 1024;
+	private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+
+	private final CountMinSketch cms;
+	private final int delimiter;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private long defaultValue;
+	private long lines;
+
+	/*
+	 * @param delimiter the key/value separator, or -1 if lines hold only a key
+	 */
+	LineCounter(final CountMinSketch cms, final int delimiter) {
+		this.cms = cms;
+		this.delimiter = delimiter;
+	}
+
+	// prepares for the next FlowFile
+	void reset(final long defaultValue) {
+		this.defaultValue = defaultValue;
+		this.lines = 0;
+	}
+
+	long getLines() {
+		return lines;
+	}
+
+	@Override
+	public void process(final InputStream in) throws IOException {
+		// unconsumed bytes are buffer[start, end); bytes before scan hold no '\n'
+		int start = 0;
+		int end = 0;
+		int scan = 0;
+		int n;
+		while ((n = in.read(buffer, end, buffer.length - end)) != -1) {
+			end += n;
+			for (; scan < end; scan++) {
+				if (buffer[scan] == '\n') {
+					line(buffer, start, scan);
+					start = scan + 1;
+				}
+			}
+
+			if (start > 0) {
+				System.arraycopy(buffer, start, buffer, 0, end - start);
+				end -= start;
+				scan -= start;
+				start = 0;
+			} else if (end == buffer.length) {
+				final byte[] grown = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, grown, 0, end);
+				buffer = grown;
+			}
+		}
+		if (start < end) {
+			line(buffer, start, end);
+		}
+	}
+
+	/*
+	 * Counts the lines of data[from, to) using absolute gets, the last one may lack
+	 * its '\n'. Line ends are searched eight bytes at a time: a byte of word ^
+	 * NEWLINES is 0 exactly where word holds a '\n', and (x - 0x01..) & ~x & 0x80..
+	 * flags every zero byte of x, plus possibly some bytes above the first one, which
+	 * are checked again.
+	 */
+	void lines(final ByteBuffer data, final int from, final int to) {
+		int start = from;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			final long x = data.getLong(i) ^ NEWLINES;
+			long found = (x - 0x0101010101010101L) & ~x & 0x8080808080808080L;
+			while (found != 0) {
+				final int bit = data.order() == ByteOrder.LITTLE_ENDIAN ? Long.numberOfTrailingZeros(found)
+						: 63 - Long.numberOfLeadingZeros(found);
+				final int at = i + (bit >>> 3);
+				if (data.get(at) == '\n') {
+					line(data, start, at);
+					start = at + 1;
+				}
+				found &= ~(1L << bit);
+			}
+		}
+		for (; i < to; i++) {
+			if (data.get(i) == '\n') {
+				line(data, start, i);
+				start = i + 1;
+			}
+		}
+		if (start < to) {
+			line(data, start, to);
+		}
+	}
+
+	// adds one key of a line
+	void count(final byte[] key, final int offset, final int length, final long value) {
+		cms.update(key, offset, length, value);
+	}
+
+	// adds one key of a line of a ByteBuffer; copies the key to hand it to count(byte[], ...)
+	void count(final ByteBuffer key, final int offset, final int length, final long value) {
+		if (buffer.length < length) {
+			buffer = new byte[length];
+		}
+		for (int i = 0; i < length; i++) {
+			buffer[i] = key.get(offset + i);
+		}
+		count(buffer, 0, length, value);
+	}
+
+	private void line(final byte[] data, final int from, int to) {
+		if (to > from && data[to - 1] == '\r') {
+			to--;
+		}
+		if (to == from) {
+			return;
+		}
+
+		long value = defaultValue;
+		int keyEnd = to;
+		if (delimiter >= 0) {
+			keyEnd = lastIndexOf(data, from, to);
+			if (keyEnd < 0) {
+				throw new NumberFormatException("No value delimiter in line " + (lines + 1));
+			}
+			value = parseLong(data, keyEnd + 1, to);
+		}
+		count(data, from, keyEnd - from, value);
+		lines++;
+	}
+
+	private void line(final ByteBuffer data, final int from, int to) {
+		if (to > from && data.get(to - 1) == '\r') {
+			to--;
+		}
+		if (to == from) {
+			return;
+		}
+
+		long value = defaultValue;
+		int keyEnd = to;
+		if (delimiter >= 0) {
+			keyEnd = lastIndexOf(data, from, to);
+			if (keyEnd < 0) {
+				throw new NumberFormatException("No value delimiter in line " + (lines + 1));
+			}
+			value = parseLong(data, keyEnd + 1, to);
+		}
+		count(data, from, keyEnd - from, value);
+		lines++;
+	}
+
+	private int lastIndexOf(final byte[] data, final int from, final int to) {
+		for (int i = to - 1; i >= from; i--) {
+			if (data[i] == delimiter) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// parses an optionally signed decimal surrounded by optional spaces
+	private long parseLong(final byte[] buffer, int from, int to) {
+		while (from < to && buffer[from] == ' ') {
+			from++;
+		}
+		while (to > from && buffer[to - 1] == ' ') {
+			to--;
+		}
+		final boolean negative = from < to && buffer[from] == '-';
+		if (negative || (from < to && buffer[from] == '+')) {
+			from++;
+		}
+		if (from == to) {
+			throw new NumberFormatException("Missing value in line " + (lines + 1));
+		}
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			final int digit = buffer[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Invalid value in line " + (lines + 1));
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	private int lastIndexOf(final ByteBuffer data, final int from, final int to) {
+		for (int i = to - 1; i >= from; i--) {
+			if (data.get(i) == delimiter) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private long parseLong(final ByteBuffer buffer, int from, int to) {
+		while (from < to && buffer.get(from) == ' ') {
+			from++;
+		}
+		while (to > from && buffer.get(to - 1) == ' ') {
+			to--;
+		}
+		final boolean negative = from < to && buffer.get(from) == '-';
+		if (negative || (from < to && buffer.get(from) == '+')) {
+			from++;
+		}
+		if (from == to) {
+			throw new NumberFormatException("Missing value in line " + (lines + 1));
+		}
+		long value = 0;
+		for (int i = from; i < to; i++) {
+			final int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Invalid value in line " + (lines + 1));
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+}
@@ -0,0 +1,145 @@
+package com.github.processors.sketch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Cells in a memory-mapped file, so the counts survive a restart and reopening
+ * the sketch is a remap instead of a rebuild. Writes go to the page cache;
+ * checkpoint() forces them to disk.
+ *
+ * File format (little endian):
+ *   int magic 'CMS1', int version, int width, int depth, int seed,
+ *   int layout ordinal, int cell count, int padding, long total weight, padding up
+ *   to HEADER_BYTES, then the cells as longs. A file whose header does not match
+ *   the requested sketch is rejected.
+ *
+ * The total weight is written by checkpoint(weight), so after a crash the cells
+ * may hold updates the restored total does not include yet.
+ * */
+final class MappedCounters implements Counters {
+	static final int MAGIC = 0x434d5331;
+	static final int VERSION = 2;
+	static final int HEADER_BYTES = 64;
+	private static final int WEIGHT_OFFSET = 32;
+
+	private final File file;
+	private final MappedByteBuffer mapped;
+	private final BufferCounters cells;
+
+	private MappedCounters(final File file, final MappedByteBuffer mapped, final int size) {
+		this.file = file;
+		this.mapped = mapped;
+		mapped.position(HEADER_BYTES);
+		final ByteBuffer slice = mapped.slice().order(ByteOrder.LITTLE_ENDIAN);
+		this.cells = new BufferCounters(slice, size);
+	}
+
+	static MappedCounters open(final File file, final int width, final int depth, final int seed,
+			final CountMinSketch.Layout layout, final int size) throws IOException {
+		final long length = HEADER_BYTES + 8L * size;
+		final boolean exists = file.exists() && file.length() > 0;
+
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				final FileChannel channel = raf.getChannel()) {
+			if (exists) {
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				while (header.hasRemaining() && channel.read(header) >= 0) {
+				}
+				if (header.hasRemaining()) {
+					throw new IOException(file + " is not a sketch file");
+				}
+				verifyHeader(file, header, width, depth, seed, layout, size);
+				if (channel.size() != length) {
+					throw new IOException(file + " has " + channel.size() + " bytes, expected " + length);
+				}
+			}
+
+			// the mapping stays valid after the channel is closed
+			final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			mapped.order(ByteOrder.LITTLE_ENDIAN);
+			if (!exists) {
+				mapped.putInt(0, MAGIC);
+				mapped.putInt(4, VERSION);
+				mapped.putInt(8, width);
+				mapped.putInt(12, depth);
+				mapped.putInt(16, seed);
+				mapped.putInt(20, layout.ordinal());
+				mapped.putInt(24, size);
+				mapped.force();
+			}
+			return new MappedCounters(file, mapped, size);
+		}
+	}
+
+	private static void verifyHeader(final File file, final ByteBuffer header, final int width, final int depth,
+			final int seed, final CountMinSketch.Layout layout, final int size) throws IOException {
+		if (header.getInt(0) != MAGIC) {
+			throw new IOException(file + " is not a sketch file");
+		}
+		if (header.getInt(4) != VERSION) {
+			throw new IOException(file + " has unsupported version " + header.getInt(4) + ", expected " + VERSION);
+		}
+		if (header.getInt(8) != width || header.getInt(12) != depth || header.getInt(16) != seed
+				|| header.getInt(20) != layout.ordinal() || header.getInt(24) != size) {
+			throw new IOException(file + " holds a " + header.getInt(8) + " x " + header.getInt(12) + " sketch with seed "
+					+ header.getInt(16) + " and layout " + header.getInt(20) + ", incompatible with the requested "
+					+ width + " x " + depth + " sketch with seed " + seed + " and layout " + layout.ordinal());
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	// total weight of the sketch as of the last checkpoint(weight)
+	long getWeight() {
+		return mapped.getLong(WEIGHT_OFFSET);
+	}
+
+	// stores the total weight of the sketch with the cells, then forces both to disk
+	void checkpoint(final long weight) {
+		mapped.putLong(WEIGHT_OFFSET, weight);
+		mapped.force();
+	}
+
+	@Override
+	public int size() {
+		return cells.size();
+	}
+
+	@Override
+	public long get(final int index) {
+		return cells.get(index);
+	}
+
+	@Override
+	public long add(final int index, final long value) {
+		return cells.add(index, value);
+	}
+
+	@Override
+	public long raise(final int index, final long value) {
+		return cells.raise(index, value);
+	}
+
+	@Override
+	public long getMemoryBytes() {
+		return cells.getMemoryBytes();
+	}
+
+	@Override
+	public void clear() {
+		cells.clear();
+	}
+
+	@Override
+	public void checkpoint() {
+		mapped.force();
+	}
+}
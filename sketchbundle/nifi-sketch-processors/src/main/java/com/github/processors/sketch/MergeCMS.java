@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({ "counter", "data science", "cms", "sketch", "merge", "cluster" })
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@SeeAlso({ ExportCMS.class })
+@CapabilityDescription("Adds the sketches written by ExportCMS, e.g. by every node of a cluster, cell by cell into "
+		+ "a sketch of the service, which GetCMS and GetTopK can then query as the global view. The target sketch "
+		+ "is created on the first merge; sketches with a different width, depth, seed or layout are routed to "
+		+ "failure. Every merge adds, so feed it DELTA exports to keep a running total.")
+public class MergeCMS extends AbstractProcessor {
+	// Properties
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the sketches")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	public static final PropertyDescriptor SKETCH_NAME = new PropertyDescriptor.Builder().name("SKETCH_NAME")
+			.displayName("SKETCH_NAME").description("The name of the sketch the incoming sketches are added to")
+			.required(true).defaultValue(SketchConstants.DEFAULT_SKETCH_NAME)
+			.addValidator(StandardValidators.createRegexMatchingValidator(SketchConstants.SKETCH_NAME_PATTERN)).build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("BATCH_SIZE")
+			.displayName("BATCH_SIZE")
+			.description("The maximum number of sketches summed in one trigger before they are added to the target")
+			.required(true).defaultValue(String.valueOf(SketchConstants.DEFAULT_BATCH_SIZE))
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	// relationships
+	public static final Relationship REL_SUCCESS = new Relationship.Builder()
+			.description("Sketches that were merged are routed here").name("success").build();
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("Content that is not a sketch or does not match the target sketch").build();
+
+	private List<PropertyDescriptor> descriptors;
+
+	private Set<Relationship> relationships;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		descriptors.add(SKETCH_NAME);
+		descriptors.add(BATCH_SIZE);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		relationships.add(REL_SUCCESS);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			return;
+		}
+
+		final String name = context.getProperty(SKETCH_NAME).getValue();
+		final CountMinSketchService service = context.getProperty(SKETCH_SERVICE)
+				.asControllerService(CountMinSketchService.class);
+		final Merger merger = new Merger(service.getSketch(name));
+		final List<FlowFile> merged = new ArrayList<FlowFile>(flowFiles.size());
+		for (FlowFile flowFile : flowFiles) {
+			try {
+				session.read(flowFile, merger);
+				merged.add(flowFile);
+			} catch (ProcessException e) {
+				getLogger().error("Could not merge {} into sketch {}: {}",
+						new Object[] { flowFile, name, e.getCause() == null ? e : e.getCause() });
+				session.transfer(flowFile, REL_FAILURE);
+			}
+		}
+
+		if (merger.sum != null) {
+			CountMinSketch cms = merger.target;
+			if (cms == null) {
+				cms = service.getOrCreateSketch(name, merger.header.toBuilder());
+			}
+			if (merger.header.isCompatible(cms)) {
+				cms.merge(merger.sum);
+			} else {
+				// replaced by an incompatible sketch while merging
+				getLogger().error("Sketch {} changed shape while merging", new Object[] { name });
+				session.transfer(merged, REL_FAILURE);
+				return;
+			}
+		}
+		session.transfer(merged, REL_SUCCESS);
+	}
+
+	/*
+	 * Decodes each sketch into a scratch array and, once it is complete and
+	 * compatible, adds it to the batch sum with a plain loop over long[] that
+	 * the JIT vectorizes. The target sketch is updated once per batch.
+	 */
+	private static final class Merger implements InputStreamCallback {
+		private final CountMinSketch target;
+		private SketchCodec.Header header;
+		private long[] scratch;
+		private long[] sum;
+
+		Merger(final CountMinSketch target) {
+			this.target = target;
+		}
+
+		@Override
+		public void process(final InputStream in) throws IOException {
+			final InputStream buffered = new BufferedInputStream(in);
+			final SketchCodec.Header next = SketchCodec.readHeader(buffered);
+			if (target != null ? !next.isCompatible(target) : header != null && !next.isCompatible(header)) {
+				throw new IOException("Sketch " + next.getWidth() + " x " + next.getDepth() + " with seed "
+						+ next.getSeed() + " and layout " + next.getLayout() + " does not match the target");
+			}
+			if (scratch == null) {
+				scratch = new long[next.getCellCount()];
+			} else {
+				Arrays.fill(scratch, 0);
+			}
+			SketchCodec.readCounts(buffered, next, scratch);
+
+			if (sum == null) {
+				header = next;
+				sum = scratch;
+				scratch = null;
+			} else {
+				add(sum, scratch);
+			}
+		}
+
+		private static void add(final long[] sum, final long[] counts) {
+			for (int i = 0; i < sum.length; i++) {
+				sum[i] += counts[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package com.github.processors.sketch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Allocation free MurmurHash3 (x64, 128 bit) returning the lower 64 bits.
+ *
+ * The result is identical to Guava's Hashing.murmur3_128(seed).hashBytes(bytes).asLong(),
+ * which is what CountMinSketch used before, so existing sketches keep their
+ * row positions. CharSequence keys are hashed as their UTF-8 bytes, encoded on
+ * the fly without building a byte[] (unpaired surrogates become '?', exactly as
+ * String.getBytes(UTF_8) does).
+ *
+ * Ref: https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp
+ * */
+public final class Murmur3 {
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private Murmur3() {
+	}
+
+	public static long hash64(final byte[] data, final int seed) {
+		return hash64(data, 0, data.length, seed);
+	}
+
+	// the tail switch falls through on purpose, as in the reference implementation
+	@SuppressWarnings("fallthrough")
+	public static long hash64(final byte[] data, final int offset, final int length, final int seed) {
+		long h1 = seed;
+		long h2 = seed;
+		final int blocks = length >>> 4;
+		int pos = offset;
+		for (int i = 0; i < blocks; i++, pos += 16) {
+			final long k1 = getLongLE(data, pos);
+			final long k2 = getLongLE(data, pos + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		long k1 = 0;
+		long k2 = 0;
+		switch (length & 15) {
+		case 15:
+			k2 ^= (long) (data[pos + 14] & 0xff) << 48;
+		case 14:
+			k2 ^= (long) (data[pos + 13] & 0xff) << 40;
+		case 13:
+			k2 ^= (long) (data[pos + 12] & 0xff) << 32;
+		case 12:
+			k2 ^= (long) (data[pos + 11] & 0xff) << 24;
+		case 11:
+			k2 ^= (long) (data[pos + 10] & 0xff) << 16;
+		case 10:
+			k2 ^= (long) (data[pos + 9] & 0xff) << 8;
+		case 9:
+			k2 ^= (long) (data[pos + 8] & 0xff);
+		case 8:
+			k1 ^= (long) (data[pos + 7] & 0xff) << 56;
+		case 7:
+			k1 ^= (long) (data[pos + 6] & 0xff) << 48;
+		case 6:
+			k1 ^= (long) (data[pos + 5] & 0xff) << 40;
+		case 5:
+			k1 ^= (long) (data[pos + 4] & 0xff) << 32;
+		case 4:
+			k1 ^= (long) (data[pos + 3] & 0xff) << 24;
+		case 3:
+			k1 ^= (long) (data[pos + 2] & 0xff) << 16;
+		case 2:
+			k1 ^= (long) (data[pos + 1] & 0xff) << 8;
+		case 1:
+			k1 ^= (long) (data[pos] & 0xff);
+			h1 ^= mixK1(k1);
+			h2 ^= mixK2(k2);
+		}
+		return finish(h1, h2, length);
+	}
+
+	/*
+	 * Same as hashing the bytes data[offset, offset + length), read with absolute
+	 * gets so a (memory-mapped) buffer is hashed in place. Blocks are read as
+	 * longs in the byte order of data.
+	 */
+	public static long hash64(final ByteBuffer data, final int offset, final int length, final int seed) {
+		long h1 = seed;
+		long h2 = seed;
+		final int blocks = length >>> 4;
+		int pos = offset;
+		for (int i = 0; i < blocks; i++, pos += 16) {
+			final long k1 = getLongLE(data, pos);
+			final long k2 = getLongLE(data, pos + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		final int tail = length & 15;
+		if (tail >= 8) {
+			h1 ^= mixK1(getLongLE(data, pos));
+			if (tail > 8) {
+				h2 ^= mixK2(getTailLE(data, pos + 8, tail - 8));
+			}
+		} else if (tail > 0) {
+			h1 ^= mixK1(getTailLE(data, pos, tail));
+		}
+		return finish(h1, h2, length);
+	}
+
+	private static long getLongLE(final ByteBuffer data, final int pos) {
+		final long value = data.getLong(pos);
+		return data.order() == ByteOrder.LITTLE_ENDIAN ? value : Long.reverseBytes(value);
+	}
+
+	// the 1 to 7 bytes at pos as the low bytes of a little-endian long
+	private static long getTailLE(final ByteBuffer data, final int pos, final int bytes) {
+		if (pos + 8 <= data.limit()) {
+			// one read, the bytes past the key are masked off
+			return getLongLE(data, pos) & (-1L >>> (64 - (bytes << 3)));
+		}
+		long value = 0;
+		for (int b = 0; b < bytes; b++) {
+			value |= (data.get(pos + b) & 0xffL) << (b << 3);
+		}
+		return value;
+	}
+
+	// same as hashing the 8 little-endian bytes of value
+	public static long hash64(final long value, final int seed) {
+		return finish(seed ^ mixK1(value), seed, 8);
+	}
+
+	public static long hash64(final CharSequence key, final int seed) {
+		long h1 = seed;
+		long h2 = seed;
+		long k1 = 0;
+		long k2 = 0;
+		// bytes buffered in k1/k2 and bytes already mixed
+		int buffered = 0;
+		int length = 0;
+
+		final int chars = key.length();
+		for (int i = 0; i < chars; i++) {
+			final char c = key.charAt(i);
+			// UTF-8 bytes of c, first byte in the lowest 8 bits
+			int encoded;
+			int size;
+			if (c < 0x80) {
+				encoded = c;
+				size = 1;
+			} else if (c < 0x800) {
+				encoded = (0xc0 | (c >>> 6)) | ((0x80 | (c & 0x3f)) << 8);
+				size = 2;
+			} else if (!Character.isSurrogate(c)) {
+				encoded = (0xe0 | (c >>> 12)) | ((0x80 | ((c >>> 6) & 0x3f)) << 8) | ((0x80 | (c & 0x3f)) << 16);
+				size = 3;
+			} else if (Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(key.charAt(i + 1))) {
+				final int cp = Character.toCodePoint(c, key.charAt(++i));
+				encoded = (0xf0 | (cp >>> 18)) | ((0x80 | ((cp >>> 12) & 0x3f)) << 8)
+						| ((0x80 | ((cp >>> 6) & 0x3f)) << 16) | ((0x80 | (cp & 0x3f)) << 24);
+				size = 4;
+			} else {
+				encoded = '?';
+				size = 1;
+			}
+
+			for (int b = 0; b < size; b++) {
+				final long v = (encoded >>> (b << 3)) & 0xffL;
+				if (buffered < 8) {
+					k1 |= v << (buffered << 3);
+				} else {
+					k2 |= v << ((buffered - 8) << 3);
+				}
+				if (++buffered == 16) {
+					h1 ^= mixK1(k1);
+					h1 = Long.rotateLeft(h1, 27);
+					h1 += h2;
+					h1 = h1 * 5 + 0x52dce729;
+
+					h2 ^= mixK2(k2);
+					h2 = Long.rotateLeft(h2, 31);
+					h2 += h1;
+					h2 = h2 * 5 + 0x38495ab5;
+
+					k1 = 0;
+					k2 = 0;
+					buffered = 0;
+					length += 16;
+				}
+			}
+		}
+
+		if (buffered > 0) {
+			h1 ^= mixK1(k1);
+			h2 ^= mixK2(k2);
+			length += buffered;
+		}
+		return finish(h1, h2, length);
+	}
+
+	/*
+	 * Hash of the ordered pair of two hashes, e.g. of the components of a
+	 * composite key, without hashing their bytes again.
+	 */
+	public static long combine(final long h1, final long h2) {
+		return fmix64(h1 * C1 + Long.rotateLeft(h2, 31) * C2);
+	}
+
+	private static long finish(long h1, long h2, final int length) {
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix64(h1);
+		h2 = fmix64(h2);
+		h1 += h2;
+		return h1;
+	}
+
+	private static long getLongLE(final byte[] data, final int pos) {
+		return (data[pos] & 0xffL) | (data[pos + 1] & 0xffL) << 8 | (data[pos + 2] & 0xffL) << 16
+				| (data[pos + 3] & 0xffL) << 24 | (data[pos + 4] & 0xffL) << 32 | (data[pos + 5] & 0xffL) << 40
+				| (data[pos + 6] & 0xffL) << 48 | (data[pos + 7] & 0xffL) << 56;
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		return k1;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		return k2;
+	}
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
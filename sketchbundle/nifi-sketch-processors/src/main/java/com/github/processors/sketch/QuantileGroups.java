@@ -0,0 +1,74 @@
+package com.github.processors.sketch;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * The quantile sketches of UpdateQuantiles, one per group. Values that are not
+ * grouped go to the group "". At most maxGroups groups are tracked so memory
+ * stays bounded however many group values a stream has; concurrent creation
+ * may overshoot it by the number of threads.
+ * */
+public final class QuantileGroups {
+	public static final String NO_GROUP = "";
+
+	private final int k;
+	private final int maxGroups;
+	private final ConcurrentMap<String, KllSketch> groups = new ConcurrentHashMap<String, KllSketch>();
+
+	public QuantileGroups(final int k, final int maxGroups) {
+		// fails early on an invalid k
+		new KllSketch(k);
+		if (maxGroups < 1) {
+			throw new IllegalArgumentException("At least one group is needed, got " + maxGroups);
+		}
+		this.k = k;
+		this.maxGroups = maxGroups;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int getMaxGroups() {
+		return maxGroups;
+	}
+
+	public boolean matches(final int k, final int maxGroups) {
+		return this.k == k && this.maxGroups == maxGroups;
+	}
+
+	// the sketch of a group, or null if nothing was added to it
+	public KllSketch get(final String group) {
+		return groups.get(group);
+	}
+
+	// the sketch of a group, or null if the group is new and maxGroups are tracked already
+	public KllSketch getOrCreate(final String group) {
+		final KllSketch sketch = groups.get(group);
+		if (sketch != null) {
+			return sketch;
+		}
+		if (groups.size() >= maxGroups) {
+			return null;
+		}
+		final KllSketch created = new KllSketch(k);
+		final KllSketch existing = groups.putIfAbsent(group, created);
+		return existing != null ? existing : created;
+	}
+
+	public Set<String> getGroups() {
+		return Collections.unmodifiableSet(new HashSet<String>(groups.keySet()));
+	}
+
+	public long getMemoryBytes() {
+		long total = 0;
+		for (KllSketch sketch : groups.values()) {
+			total += sketch.getMemoryBytes();
+		}
+		return total;
+	}
+}
@@ -0,0 +1,85 @@
+package com.github.processors.sketch;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * On-heap unsigned 16 bit cells, a quarter of the memory of HeapCounters. Two
+ * cells share one int of an AtomicIntegerArray and are updated with a CAS on
+ * that int. Cells saturate at 65535 instead of overflowing and never drop
+ * below 0.
+ * */
+final class ShortCounters implements Counters {
+	static final int MAX = 0xffff;
+
+	private final AtomicIntegerArray cells;
+	private final int size;
+
+	ShortCounters(final int size) {
+		this.cells = new AtomicIntegerArray((size + 1) / 2);
+		this.size = size;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public long get(final int index) {
+		return (cells.get(index >>> 1) >>> shift(index)) & MAX;
+	}
+
+	@Override
+	public long add(final int index, final long value) {
+		final int shift = shift(index);
+		while (true) {
+			final int pair = cells.get(index >>> 1);
+			final int current = (pair >>> shift) & MAX;
+			final int updated = clamp(current + value);
+			if (current == updated || cells.compareAndSet(index >>> 1, pair, replace(pair, shift, updated))) {
+				return updated;
+			}
+		}
+	}
+
+	@Override
+	public long raise(final int index, final long value) {
+		final int shift = shift(index);
+		final int target = clamp(value);
+		while (true) {
+			final int pair = cells.get(index >>> 1);
+			final int current = (pair >>> shift) & MAX;
+			if (current >= target || cells.compareAndSet(index >>> 1, pair, replace(pair, shift, target))) {
+				return Math.max(current, target);
+			}
+		}
+	}
+
+	private static int shift(final int index) {
+		return (index & 1) << 4;
+	}
+
+	private static int replace(final int pair, final int shift, final int cell) {
+		return (pair & ~(MAX << shift)) | (cell << shift);
+	}
+
+	private static int clamp(final long value) {
+		return (int) Math.max(0, Math.min(MAX, value));
+	}
+
+	@Override
+	public long getMemoryBytes() {
+		return 4L * cells.length();
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < cells.length(); i++) {
+			cells.lazySet(i, 0);
+		}
+	}
+
+	@Override
+	public void checkpoint() {
+	}
+}
@@ -0,0 +1,210 @@
+package com.github.processors.sketch;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * Binary format used to ship sketch counters between nodes (ExportCMS) and to
+ * sum them (MergeCMS).
+ *
+ * A 23 byte big-endian header (magic "CMSX", version, flags, width, depth,
+ * seed, layout ordinal, cell count) is followed by the counters in storage
+ * order as pairs of varints: the number of zero cells skipped, then the next
+ * non-zero count zigzag encoded (deltas may be negative). A trailing run of
+ * zeros is written without a count. Sparse sketches and small counts therefore
+ * take a few bytes per non-zero cell instead of 8 per cell.
+ *
+ * Streams are read and written one byte at a time, so callers should buffer them.
+ * */
+public final class SketchCodec {
+	static final int MAGIC = 0x434d5358;
+	static final int VERSION = 1;
+	private static final int FLAG_DELTA = 1;
+
+	private SketchCodec() {
+	}
+
+	/*
+	 * Writes counts, as returned by cms.getCounts() or a difference of two such
+	 * arrays (delta), in the shape of cms.
+	 */
+	public static void write(final OutputStream out, final CountMinSketch cms, final long[] counts,
+			final boolean delta) throws IOException {
+		write(out, cms, cms.getWidth(), counts, delta);
+	}
+
+	/*
+	 * As write(OutputStream, CountMinSketch, long[], boolean), for counts taken
+	 * while cms had the given width, which fold() may have changed since.
+	 */
+	static void write(final OutputStream out, final CountMinSketch cms, final int width, final long[] counts,
+			final boolean delta) throws IOException {
+		writeInt(out, MAGIC);
+		out.write(VERSION);
+		out.write(delta ? FLAG_DELTA : 0);
+		writeInt(out, width);
+		writeInt(out, cms.getDepth());
+		writeInt(out, cms.getSeed());
+		out.write(cms.getLayout().ordinal());
+		writeInt(out, counts.length);
+
+		int zeros = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] == 0) {
+				zeros++;
+			} else {
+				writeVarint(out, zeros);
+				writeVarint(out, (counts[i] << 1) ^ (counts[i] >> 63));
+				zeros = 0;
+			}
+		}
+		if (zeros > 0) {
+			writeVarint(out, zeros);
+		}
+	}
+
+	public static Header readHeader(final InputStream in) throws IOException {
+		if (readInt(in) != MAGIC) {
+			throw new IOException("Not a serialized sketch");
+		}
+		final int version = readByte(in);
+		if (version != VERSION) {
+			throw new IOException("Unsupported sketch format version " + version);
+		}
+		final int flags = readByte(in);
+		final int width = readInt(in);
+		final int depth = readInt(in);
+		final int seed = readInt(in);
+		final int layout = readByte(in);
+		final int cells = readInt(in);
+		if (width <= 0 || depth <= 0 || cells <= 0 || layout >= CountMinSketch.Layout.values().length) {
+			throw new IOException("Corrupt sketch header");
+		}
+		return new Header(width, depth, seed, CountMinSketch.Layout.values()[layout], cells,
+				(flags & FLAG_DELTA) != 0);
+	}
+
+	/*
+	 * Reads the counters following header into counts, which must hold
+	 * header.getCellCount() zeros.
+	 */
+	public static void readCounts(final InputStream in, final Header header, final long[] counts) throws IOException {
+		if (counts.length != header.getCellCount()) {
+			throw new IllegalArgumentException("Expected " + header.getCellCount() + " counters, got " + counts.length);
+		}
+		int i = 0;
+		while (i < counts.length) {
+			final long zeros = readVarint(in);
+			if (zeros < 0 || zeros > counts.length - i) {
+				throw new IOException("Corrupt sketch counters at cell " + i);
+			}
+			i += (int) zeros;
+			if (i < counts.length) {
+				final long zigzag = readVarint(in);
+				counts[i++] = (zigzag >>> 1) ^ -(zigzag & 1);
+			}
+		}
+	}
+
+	private static void writeInt(final OutputStream out, final int value) throws IOException {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	private static void writeVarint(final OutputStream out, long value) throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static int readByte(final InputStream in) throws IOException {
+		final int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Truncated sketch");
+		}
+		return b;
+	}
+
+	private static int readInt(final InputStream in) throws IOException {
+		return readByte(in) << 24 | readByte(in) << 16 | readByte(in) << 8 | readByte(in);
+	}
+
+	private static long readVarint(final InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = readByte(in);
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Corrupt varint in sketch");
+	}
+
+	/*
+	 * Shape of a serialized sketch.
+	 */
+	public static final class Header {
+		private final int width;
+		private final int depth;
+		private final int seed;
+		private final CountMinSketch.Layout layout;
+		private final int cells;
+		private final boolean delta;
+
+		Header(final int width, final int depth, final int seed, final CountMinSketch.Layout layout, final int cells,
+				final boolean delta) {
+			this.width = width;
+			this.depth = depth;
+			this.seed = seed;
+			this.layout = layout;
+			this.cells = cells;
+			this.delta = delta;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public int getSeed() {
+			return seed;
+		}
+
+		public CountMinSketch.Layout getLayout() {
+			return layout;
+		}
+
+		public int getCellCount() {
+			return cells;
+		}
+
+		// whether the counts are the change since the previous export rather than totals
+		public boolean isDelta() {
+			return delta;
+		}
+
+		public boolean isCompatible(final CountMinSketch cms) {
+			return cms.isCompatible(width, depth, seed, layout) && cms.getCellCount() == cells;
+		}
+
+		public boolean isCompatible(final Header other) {
+			return width == other.width && depth == other.depth && seed == other.seed && layout == other.layout
+					&& cells == other.cells;
+		}
+
+		// a builder for an empty sketch the counts can be merged into
+		public CountMinSketch.Builder toBuilder() {
+			return new CountMinSketch.Builder().dimensions(width, depth).seed(seed).layout(layout);
+		}
+	}
+}
@@ -1,6 +1,13 @@
 package com.github.processors.sketch;
 
+import java.util.regex.Pattern;
+
 public interface SketchConstants {
 	public static final float DEFAULT_DELTA = 0.01f;
 	public static final float DEFAULT_EPSILON = 0.01f;
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final String DEFAULT_SKETCH_NAME = "default";
+	// sketch names double as file names for persistent sketches
+	public static final Pattern SKETCH_NAME_PATTERN = Pattern.compile("[A-Za-z0-9._-]+");
+	public static final String SKETCH_FILE_EXTENSION = ".cms";
 }
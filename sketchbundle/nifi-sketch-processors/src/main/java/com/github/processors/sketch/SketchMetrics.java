@@ -0,0 +1,55 @@
+package com.github.processors.sketch;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Update and query statistics of a sketch, recorded by the processors once per
+ * batch rather than per key so the sketch itself stays free of timing calls.
+ *
+ * Individual calls are therefore not timed: the latency histograms hold one
+ * sample per batch, its average time per key (the batch duration divided by its
+ * size). Their percentiles describe batches, e.g. p99 is the average key
+ * latency of the slowest 1% of batches, and a single slow key inside a large
+ * batch does not show. SketchReportingTask publishes them together with the
+ * accuracy figures of the sketch.
+ * */
+public final class SketchMetrics {
+	private final LongAdder updates = new LongAdder();
+	private final LongAdder queries = new LongAdder();
+	private final LatencyHistogram updateLatency = new LatencyHistogram();
+	private final LatencyHistogram queryLatency = new LatencyHistogram();
+
+	// records a batch of count updates that took nanos in total
+	public void recordUpdateBatch(final long count, final long nanos) {
+		if (count > 0) {
+			updates.add(count);
+			updateLatency.record(nanos / count, 1);
+		}
+	}
+
+	// records a batch of count queries that took nanos in total
+	public void recordQueryBatch(final long count, final long nanos) {
+		if (count > 0) {
+			queries.add(count);
+			queryLatency.record(nanos / count, 1);
+		}
+	}
+
+	public long getUpdates() {
+		return updates.sum();
+	}
+
+	public long getQueries() {
+		return queries.sum();
+	}
+
+	// average nanoseconds per update, one sample per batch
+	public LatencyHistogram getUpdateBatchLatency() {
+		return updateLatency;
+	}
+
+	// average nanoseconds per query, one sample per batch
+	public LatencyHistogram getQueryBatchLatency() {
+		return queryLatency;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.reporting.AbstractReportingTask;
+import org.apache.nifi.reporting.ReportingContext;
+
+@Tags({ "counter", "data science", "cms", "sketch", "metrics" })
+@CapabilityDescription("Logs one line per sketch of a CountMinSketchService every time it runs: the total stream "
+		+ "weight N, the additive error bound e/width x N, the fill ratio of every row, the update and query "
+		+ "rates since the previous report and the latency percentiles recorded by UpdateCMS and GetCMS. The "
+		+ "processors time whole batches, so a latency sample is the average time per key of one batch and the "
+		+ "percentiles are taken over batches. Nothing is logged on the processors' hot path.")
+public class SketchReportingTask extends AbstractReportingTask {
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the sketches to report on")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	private static final List<PropertyDescriptor> DESCRIPTORS;
+
+	static {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		DESCRIPTORS = Collections.unmodifiableList(descriptors);
+	}
+
+	// per sketch: updates, queries and System.nanoTime() of the previous report
+	private final Map<String, long[]> previous = new HashMap<String, long[]>();
+
+	@Override
+	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return DESCRIPTORS;
+	}
+
+	@Override
+	public void onTrigger(final ReportingContext context) {
+		final CountMinSketchService service = context.getProperty(SKETCH_SERVICE)
+				.asControllerService(CountMinSketchService.class);
+		final long now = System.nanoTime();
+		previous.keySet().retainAll(service.getSketchNames());
+		for (String name : service.getSketchNames()) {
+			final CountMinSketch cms = service.getSketch(name);
+			if (cms != null) {
+				getLogger().info(report(name, cms, now));
+			}
+		}
+	}
+
+	// the report line of a sketch; remembers its counts for the rates of the next report
+	String report(final String name, final CountMinSketch cms, final long now) {
+		final SketchMetrics metrics = cms.getMetrics();
+		final long updates = metrics.getUpdates();
+		final long queries = metrics.getQueries();
+		final long[] last = previous.put(name, new long[] { updates, queries, now });
+		final double seconds = last == null ? 0 : (now - last[2]) / 1e9;
+		final LatencyHistogram updateLatency = metrics.getUpdateBatchLatency();
+		final LatencyHistogram queryLatency = metrics.getQueryBatchLatency();
+
+		return "Sketch " + name + ": N=" + cms.getTotalCount() + ", width=" + cms.getWidth() + ", error bound="
+				+ Math.round(cms.getErrorBound()) + ", fill ratios=" + format(cms.getFillRatios()) + ", updates="
+				+ updates + " (" + rate(updates, last, 0, seconds) + "/s), update latency per key (batch average) p50="
+				+ updateLatency.getPercentile(50) + " ns p99=" + updateLatency.getPercentile(99) + " ns, queries="
+				+ queries + " (" + rate(queries, last, 1, seconds) + "/s), query latency per key (batch average) p50="
+				+ queryLatency.getPercentile(50) + " ns p99=" + queryLatency.getPercentile(99) + " ns";
+	}
+
+	// events per second since the previous report, 0 for the first one
+	private static long rate(final long current, final long[] last, final int index, final double seconds) {
+		return last == null || seconds <= 0 ? 0 : Math.round((current - last[index]) / seconds);
+	}
+
+	private static String format(final double[] ratios) {
+		final StringBuilder text = new StringBuilder("[");
+		for (int i = 0; i < ratios.length; i++) {
+			if (i > 0) {
+				text.append(", ");
+			}
+			text.append(String.format("%.3f", ratios[i]));
+		}
+		return text.append(']').toString();
+	}
+}
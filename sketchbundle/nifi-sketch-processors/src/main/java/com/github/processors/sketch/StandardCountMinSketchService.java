@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({ "counter", "data science", "cms", "sketch" })
+@CapabilityDescription("Holds named Count-Min sketches in memory. Each sketch is created by the first UpdateCMS "
+		+ "that references its name, with that processor's dimensions and seed, and is rebuilt when they change. "
+		+ "HyperLogLogs of UpdateHLL, quantile sketches of UpdateQuantiles and Bloom filters of "
+		+ "DetectDuplicateSketch are held the same way, under names of their own.")
+public class StandardCountMinSketchService extends AbstractControllerService implements CountMinSketchService {
+
+	public static final PropertyDescriptor MAX_MEMORY = new PropertyDescriptor.Builder().name("MAX_MEMORY")
+			.displayName("MAX_MEMORY")
+			.description("Upper bound on the counter memory of all sketches together, counting every HyperLogLog at "
+					+ "its dense size and quantile sketches at their current size. Creating a sketch that would exceed it fails. Unbounded if not set")
+			.required(false).addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
+
+	private static final List<PropertyDescriptor> descriptors;
+
+	static {
+		final List<PropertyDescriptor> props = new ArrayList<PropertyDescriptor>();
+		props.add(MAX_MEMORY);
+		descriptors = Collections.unmodifiableList(props);
+	}
+
+	private final ConcurrentMap<String, CountMinSketch> sketches = new ConcurrentHashMap<String, CountMinSketch>();
+	private final ConcurrentMap<String, HyperLogLog> hyperLogLogs = new ConcurrentHashMap<String, HyperLogLog>();
+	private final ConcurrentMap<String, QuantileGroups> quantiles = new ConcurrentHashMap<String, QuantileGroups>();
+	private final ConcurrentMap<String, BloomFilter> bloomFilters = new ConcurrentHashMap<String, BloomFilter>();
+	private volatile long maxMemory = Long.MAX_VALUE;
+
+	@Override
+	protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@OnEnabled
+	public void onEnabled(final ConfigurationContext context) {
+		if (context.getProperty(MAX_MEMORY).isSet()) {
+			maxMemory = context.getProperty(MAX_MEMORY).asDataSize(DataUnit.B).longValue();
+		} else {
+			maxMemory = Long.MAX_VALUE;
+		}
+	}
+
+	@OnDisabled
+	public void onDisabled() {
+		for (final CountMinSketch sketch : sketches.values()) {
+			sketch.checkpoint();
+		}
+		sketches.clear();
+		hyperLogLogs.clear();
+		quantiles.clear();
+		bloomFilters.clear();
+	}
+
+	@Override
+	public CountMinSketch getSketch(final String name) {
+		return sketches.get(name);
+	}
+
+	@Override
+	public synchronized CountMinSketch getOrCreateSketch(final String name, final CountMinSketch.Builder builder) {
+		final CountMinSketch existing = sketches.get(name);
+		if (existing != null && existing.matches(builder)) {
+			return existing;
+		}
+
+		final long others = getReservedBytes() - (existing == null ? 0 : existing.getMemoryBytes());
+		if (others + builder.getMemoryBytes() > maxMemory) {
+			throw new IllegalStateException("Sketch " + name + " needs " + builder.getMemoryBytes() + " bytes but only "
+					+ (maxMemory - others) + " of MAX_MEMORY are left");
+		}
+		if (existing != null) {
+			// checkpoint first so a persistent sketch file is complete before it is reopened
+			existing.checkpoint();
+			getLogger().warn("Rebuilding sketch {} with new dimensions, its previous counts are dropped",
+					new Object[] { name });
+		}
+		final CountMinSketch sketch = builder.build();
+		sketches.put(name, sketch);
+		getLogger().info("Created sketch {}: {} x {}, {} bytes",
+				new Object[] { name, sketch.getWidth(), sketch.getDepth(), sketch.getMemoryBytes() });
+		return sketch;
+	}
+
+	@Override
+	public synchronized boolean removeSketch(final String name) {
+		final CountMinSketch sketch = sketches.remove(name);
+		if (sketch != null) {
+			sketch.checkpoint();
+		}
+		return sketch != null;
+	}
+
+	@Override
+	public Set<String> getSketchNames() {
+		return Collections.unmodifiableSet(new HashSet<String>(sketches.keySet()));
+	}
+
+	@Override
+	public HyperLogLog getHyperLogLog(final String name) {
+		return hyperLogLogs.get(name);
+	}
+
+	@Override
+	public synchronized HyperLogLog getOrCreateHyperLogLog(final String name, final int precision, final int seed) {
+		final HyperLogLog existing = hyperLogLogs.get(name);
+		if (existing != null && existing.matches(precision, seed)) {
+			return existing;
+		}
+
+		final long others = getReservedBytes()
+				- (existing == null ? 0 : HyperLogLog.getMaxMemoryBytes(existing.getPrecision()));
+		if (others + HyperLogLog.getMaxMemoryBytes(precision) > maxMemory) {
+			throw new IllegalStateException("HyperLogLog " + name + " needs " + HyperLogLog.getMaxMemoryBytes(precision)
+					+ " bytes but only " + (maxMemory - others) + " of MAX_MEMORY are left");
+		}
+		if (existing != null) {
+			getLogger().warn("Rebuilding HyperLogLog {} with a new precision or seed, its previous keys are dropped",
+					new Object[] { name });
+		}
+		final HyperLogLog hll = new HyperLogLog(precision, seed);
+		hyperLogLogs.put(name, hll);
+		getLogger().info("Created HyperLogLog {}: precision {}, at most {} bytes",
+				new Object[] { name, precision, HyperLogLog.getMaxMemoryBytes(precision) });
+		return hll;
+	}
+
+	@Override
+	public QuantileGroups getQuantiles(final String name) {
+		return quantiles.get(name);
+	}
+
+	@Override
+	public synchronized QuantileGroups getOrCreateQuantiles(final String name, final int k, final int maxGroups) {
+		final QuantileGroups existing = quantiles.get(name);
+		if (existing != null && existing.matches(k, maxGroups)) {
+			return existing;
+		}
+		if (getReservedBytes() - (existing == null ? 0 : existing.getMemoryBytes()) >= maxMemory) {
+			throw new IllegalStateException("Quantile sketch " + name + " cannot be created, MAX_MEMORY is used up");
+		}
+		if (existing != null) {
+			getLogger().warn("Rebuilding quantile sketch {} with a new accuracy or group limit, its previous values "
+					+ "are dropped", new Object[] { name });
+		}
+		final QuantileGroups groups = new QuantileGroups(k, maxGroups);
+		quantiles.put(name, groups);
+		getLogger().info("Created quantile sketch {}: k {}, up to {} groups", new Object[] { name, k, maxGroups });
+		return groups;
+	}
+
+	@Override
+	public synchronized BloomFilter getOrCreateBloomFilter(final String name, final long expectedItems,
+			final double falsePositiveRate, final long rotationMillis) {
+		final BloomFilter existing = bloomFilters.get(name);
+		if (existing != null && existing.matches(expectedItems, falsePositiveRate, rotationMillis)) {
+			return existing;
+		}
+
+		final long needed = BloomFilter.getMemoryBytes(expectedItems, falsePositiveRate, rotationMillis);
+		final long others = getReservedBytes() - (existing == null ? 0 : existing.getMemoryBytes());
+		if (others + needed > maxMemory) {
+			throw new IllegalStateException("Bloom filter " + name + " needs " + needed + " bytes but only "
+					+ (maxMemory - others) + " of MAX_MEMORY are left");
+		}
+		if (existing != null) {
+			getLogger().warn("Rebuilding Bloom filter {} with new parameters, its previous keys are forgotten",
+					new Object[] { name });
+		}
+		final BloomFilter filter = new BloomFilter(expectedItems, falsePositiveRate, rotationMillis);
+		bloomFilters.put(name, filter);
+		getLogger().info("Created Bloom filter {}: {} items at {}, {} hashes, {} bytes", new Object[] { name,
+				expectedItems, falsePositiveRate, filter.getHashes(), filter.getMemoryBytes() });
+		return filter;
+	}
+
+	@Override
+	public long getMemoryBytes() {
+		long total = 0;
+		for (final CountMinSketch sketch : sketches.values()) {
+			total += sketch.getMemoryBytes();
+		}
+		for (final HyperLogLog hll : hyperLogLogs.values()) {
+			total += hll.getMemoryBytes();
+		}
+		for (final QuantileGroups groups : quantiles.values()) {
+			total += groups.getMemoryBytes();
+		}
+		for (final BloomFilter filter : bloomFilters.values()) {
+			total += filter.getMemoryBytes();
+		}
+		return total;
+	}
+
+	// memory counted against MAX_MEMORY: a sparse HyperLogLog may still grow to its dense size
+	private long getReservedBytes() {
+		long total = 0;
+		for (final CountMinSketch sketch : sketches.values()) {
+			total += sketch.getMemoryBytes();
+		}
+		for (final HyperLogLog hll : hyperLogLogs.values()) {
+			total += HyperLogLog.getMaxMemoryBytes(hll.getPrecision());
+		}
+		for (final QuantileGroups groups : quantiles.values()) {
+			total += groups.getMemoryBytes();
+		}
+		for (final BloomFilter filter : bloomFilters.values()) {
+			total += filter.getMemoryBytes();
+		}
+		return total;
+	}
+}
@@ -16,18 +16,33 @@
  */
 package com.github.processors.sketch;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
+import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
@@ -40,14 +55,58 @@ import org.apache.nifi.processor.util.StandardValidators;
 @Tags({ "Attribute Expression Language", "counter", "data science", "cms", "sketch" })
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @CapabilityDescription("Count Min sketch is a probabilistic data structure for finding the frequency of events in a stream of data.")
-
+@WritesAttributes({ @WritesAttribute(attribute = "cms.lines", description = "In LINES mode, the number of lines counted") })
+@DynamicProperty(name = "The name of a sketch", value = "One or more key expressions separated by commas",
+		supportsExpressionLanguage = true, description = "In ATTRIBUTE mode, also counts every FlowFile in the named "
+				+ "sketch (built like SKETCH_NAME) under the given key, e.g. ${src}, or under the composite of several "
+				+ "keys, e.g. ${src}, ${dst}. Components shared between dimensions are evaluated and hashed once")
 public class UpdateCMS extends AbstractProcessor {
-	private CountMinSketch cms = null;
+	// AUTO_FOLD never folds below this width
+	private static final int MIN_FOLDED_WIDTH = 64;
+	// null in ATTRIBUTE mode without KEY
+	private volatile CountMinSketch cms = null;
+	private volatile Dimensions dimensions;
+	private volatile CountMinSketch[] dimensionSketches;
+	// null unless ASYNC_BUFFER_SIZE is set; its sketches are cms, if any, then the dimension sketches
+	private volatile AsyncUpdater updater;
+	private final AtomicLong lastCheckpoint = new AtomicLong();
+	// total counts of the sketches (cms, then the dimension sketches) when scheduled, see foldIfDue
+	private volatile long[] scheduledCounts;
+	private volatile long scheduledAt;
+	private final AtomicLong lastFoldCheck = new AtomicLong();
 
 	// Properties
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the sketches")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	public static final PropertyDescriptor SKETCH_NAME = new PropertyDescriptor.Builder().name("SKETCH_NAME")
+			.displayName("SKETCH_NAME")
+			.description("The name of the sketch to update. The sketch is created with the dimensions of this processor "
+					+ "if it does not exist yet, and rebuilt (dropping its counts) if they differ")
+			.required(true).defaultValue(SketchConstants.DEFAULT_SKETCH_NAME)
+			.addValidator(StandardValidators.createRegexMatchingValidator(SketchConstants.SKETCH_NAME_PATTERN)).build();
+
+	public static final String MODE_ATTRIBUTE = "ATTRIBUTE";
+	public static final String MODE_LINES = "LINES";
+
+	public static final PropertyDescriptor MODE = new PropertyDescriptor.Builder().name("MODE").displayName("MODE")
+			.description("ATTRIBUTE counts one KEY per FlowFile. LINES streams the FlowFile content and counts every "
+					+ "non-empty line as a key, so a large file can be counted without splitting it")
+			.required(true).allowableValues(MODE_ATTRIBUTE, MODE_LINES).defaultValue(MODE_ATTRIBUTE).build();
+
 	public static final PropertyDescriptor KEY = new PropertyDescriptor.Builder().name("KEY").displayName("KEY")
-			.description("Key Value to track").expressionLanguageSupported(true)
-			.addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR).required(true).build();
+			.description("Key Value to track. Required in ATTRIBUTE mode unless dimensions are given as dynamic "
+					+ "properties").expressionLanguageSupported(true)
+			.addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR).required(false).build();
+
+	public static final PropertyDescriptor VALUE_DELIMITER = new PropertyDescriptor.Builder()
+			.name("VALUE_DELIMITER").displayName("VALUE_DELIMITER")
+			.description("In LINES mode, the character separating the key from a numeric value in each line, e.g. "
+					+ "',' for '10.0.0.1,42'. The last occurrence in a line is used, it must be an ASCII character. If not set, every line adds VALUE. "
+					+ "A FlowFile with an invalid line is routed to failure after the lines before it were counted")
+			.required(false).addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile("\\p{ASCII}")))
+			.build();
 
 	public static final PropertyDescriptor VALUE = new PropertyDescriptor.Builder().name("VALUE").displayName("VALUE")
 			.description("Delta Value to add in a counter").required(false).expressionLanguageSupported(true)
@@ -63,6 +122,32 @@ public class UpdateCMS extends AbstractProcessor {
 			.description("specifies the error in estimation.The default value is '0.01' which is 1% estimation error")
 			.required(false).addValidator(StandardValidators.NUMBER_VALIDATOR).build();
 
+	public static final PropertyDescriptor EXPECTED_VOLUME = new PropertyDescriptor.Builder()
+			.name("EXPECTED_VOLUME").displayName("EXPECTED_VOLUME")
+			.description("The total count the sketch is expected to summarize over VOLUME_PERIOD. Together with "
+					+ "MAX_ERROR it sizes the sketch instead of EPSILON or WIDTH: the width is e * EXPECTED_VOLUME / "
+					+ "MAX_ERROR rounded up to a power of two, the depth follows from DELTA")
+			.required(false).addValidator(StandardValidators.POSITIVE_LONG_VALIDATOR).build();
+
+	public static final PropertyDescriptor MAX_ERROR = new PropertyDescriptor.Builder().name("MAX_ERROR")
+			.displayName("MAX_ERROR")
+			.description("The largest acceptable overestimate of a count, see EXPECTED_VOLUME")
+			.required(false).addValidator(StandardValidators.POSITIVE_LONG_VALIDATOR).build();
+
+	public static final PropertyDescriptor VOLUME_PERIOD = new PropertyDescriptor.Builder()
+			.name("VOLUME_PERIOD").displayName("VOLUME_PERIOD")
+			.description("The time over which EXPECTED_VOLUME is expected, used by AUTO_FOLD to project the traffic")
+			.required(true).defaultValue("1 day").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor AUTO_FOLD = new PropertyDescriptor.Builder().name("AUTO_FOLD")
+			.displayName("AUTO_FOLD")
+			.description("If true, every tenth of VOLUME_PERIOD the traffic since the processor was scheduled is "
+					+ "projected to the end of VOLUME_PERIOD, and while the error bound at that volume would stay "
+					+ "within MAX_ERROR at half the width, the sketch is folded in place: column pairs are summed, "
+					+ "halving its memory and doubling its error bound. Needs MAX_ERROR and the ROWS layout, and is "
+					+ "not supported with WINDOW_DURATION, PERSISTENCE_DIRECTORY or RANGE_BITS")
+			.required(true).allowableValues("true", "false").defaultValue("false").build();
+
 	public static final PropertyDescriptor SEED = new PropertyDescriptor.Builder().name("SEED").displayName("SEED")
 			.description("The seed value for the murmur hash function").required(false)
 			.addValidator(StandardValidators.INTEGER_VALIDATOR).build();
@@ -75,6 +160,133 @@ public class UpdateCMS extends AbstractProcessor {
 			.description("The depth of the sketch matrix").required(false)
 			.addValidator(StandardValidators.INTEGER_VALIDATOR).build();
 
+	public static final PropertyDescriptor STORAGE = new PropertyDescriptor.Builder().name("STORAGE")
+			.displayName("STORAGE")
+			.description("Where the sketch counters live. HEAP keeps them in one flat on-heap array, OFF_HEAP in a "
+					+ "direct buffer outside the Java heap so large sketches do not add to garbage collection work")
+			.required(true).allowableValues(CountMinSketch.Storage.HEAP.name(), CountMinSketch.Storage.OFF_HEAP.name())
+			.defaultValue(CountMinSketch.Storage.HEAP.name()).build();
+
+	public static final PropertyDescriptor LAYOUT = new PropertyDescriptor.Builder().name("LAYOUT")
+			.displayName("LAYOUT")
+			.description("How counters are arranged. ROWS stores the sketch row by row. BLOCKED keeps all counters "
+					+ "of a key in one 128 byte block, which is faster for wide sketches at a somewhat higher error")
+			.required(true).allowableValues(CountMinSketch.Layout.ROWS.name(), CountMinSketch.Layout.BLOCKED.name())
+			.defaultValue(CountMinSketch.Layout.ROWS.name()).build();
+
+	public static final PropertyDescriptor COUNTER_BITS = new PropertyDescriptor.Builder().name("COUNTER_BITS")
+			.displayName("COUNTER_BITS")
+			.description("Bits per counter. 32 and 16 bit counters take 2x and 4x less memory and saturate at their "
+					+ "maximum instead of overflowing. Narrow counters need HEAP storage and no PERSISTENCE_DIRECTORY")
+			.required(true).allowableValues("64", "32", "16").defaultValue("64").build();
+
+	public static final PropertyDescriptor CONSERVATIVE_UPDATE = new PropertyDescriptor.Builder()
+			.name("CONSERVATIVE_UPDATE").displayName("CONSERVATIVE_UPDATE")
+			.description("If true, an update only raises the counters of a key that are below its new estimate. "
+					+ "Estimates are still never too low but much closer on skewed data. Values must not be negative")
+			.required(true).allowableValues("true", "false").defaultValue("false").build();
+
+	public static final PropertyDescriptor RANGE_BITS = new PropertyDescriptor.Builder().name("RANGE_BITS")
+			.displayName("RANGE_BITS")
+			.description("If set, keys that are IPv4 addresses or non-negative integers below 2^RANGE_BITS also update "
+					+ "one counter set per dyadic level, so GetCMS can answer RANGE queries such as 10.0.0.0/24 in "
+					+ "O(RANGE_BITS) lookups. Use 32 for IPv4. Costs up to RANGE_BITS + 1 times the updates and memory. "
+					+ "Not supported together with WINDOW_DURATION or PERSISTENCE_DIRECTORY")
+			.required(false).addValidator(StandardValidators.createLongValidator(1, 62, true)).build();
+
+	public static final PropertyDescriptor TOP_K = new PropertyDescriptor.Builder().name("TOP_K").displayName("TOP_K")
+			.description("If greater than 0, the sketch also tracks this many keys with the highest estimated counts, "
+					+ "which GetTopK emits. Costs O(log TOP_K) per update and memory for TOP_K keys")
+			.required(true).defaultValue("0").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor PRE_AGGREGATE_KEYS = new PropertyDescriptor.Builder()
+			.name("PRE_AGGREGATE_KEYS").displayName("PRE_AGGREGATE_KEYS")
+			.description("If greater than 0, the sketch sums the updates of up to this many of the hottest keys exactly "
+					+ "in a small table and writes each pending sum to the counters in one update, instead of one "
+					+ "update per occurrence. Pays off on skewed streams where a few keys make up most updates. "
+					+ "Estimates include the pending sums. Not supported together with TOP_K or WINDOW_DURATION")
+			.required(true).defaultValue("0").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor PRE_AGGREGATE_UPDATES = new PropertyDescriptor.Builder()
+			.name("PRE_AGGREGATE_UPDATES").displayName("PRE_AGGREGATE_UPDATES")
+			.description("With PRE_AGGREGATE_KEYS, the pending sums are written to the counters after about this many "
+					+ "pre-aggregated updates")
+			.required(true).defaultValue("100000").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor PRE_AGGREGATE_INTERVAL = new PropertyDescriptor.Builder()
+			.name("PRE_AGGREGATE_INTERVAL").displayName("PRE_AGGREGATE_INTERVAL")
+			.description("With PRE_AGGREGATE_KEYS, the pending sums are also written to the counters once this long has "
+					+ "passed since the last time, checked as updates arrive. Checkpoints and exports always write them")
+			.required(true).defaultValue("1 sec").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor WINDOW_DURATION = new PropertyDescriptor.Builder()
+			.name("WINDOW_DURATION").displayName("WINDOW_DURATION")
+			.description("If set, counts are kept per time window of this duration and the oldest window is cleared "
+					+ "when a new one starts, so estimates only cover the last WINDOWS x WINDOW_DURATION. "
+					+ "Not supported together with PERSISTENCE_DIRECTORY")
+			.required(false).addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor WINDOWS = new PropertyDescriptor.Builder().name("WINDOWS")
+			.displayName("WINDOWS")
+			.description("The number of windows kept when WINDOW_DURATION is set. 1 gives tumbling counts that reset "
+					+ "every WINDOW_DURATION, more give a sliding window. Memory grows linearly with it, one spare window "
+					+ "included")
+			.required(true).defaultValue("1").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor DECAY = new PropertyDescriptor.Builder().name("DECAY").displayName("DECAY")
+			.description("Optional factor in (0, 1] applied per window of age when estimating, so that a count from "
+					+ "n windows ago weighs DECAY^n. Needs WINDOW_DURATION")
+			.required(false).addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	public static final PropertyDescriptor PERSISTENCE_DIRECTORY = new PropertyDescriptor.Builder()
+			.name("PERSISTENCE_DIRECTORY").displayName("PERSISTENCE_DIRECTORY")
+			.description("If set, the sketch counters are kept in a memory-mapped file named after the sketch in this "
+					+ "directory and survive "
+					+ "restarts. The file is remapped when the processor is scheduled; a file written for a different "
+					+ "width, depth, seed or layout is rejected. Overrides STORAGE")
+			.required(false).addValidator(StandardValidators.createDirectoryExistsValidator(false, true)).build();
+
+	public static final PropertyDescriptor CHECKPOINT_INTERVAL = new PropertyDescriptor.Builder()
+			.name("CHECKPOINT_INTERVAL").displayName("CHECKPOINT_INTERVAL")
+			.description("How often a persistent sketch is forced to disk. It is also forced when the processor stops")
+			.required(true).defaultValue("1 min").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor LOAD_FILE = new PropertyDescriptor.Builder().name("LOAD_FILE")
+			.displayName("LOAD_FILE")
+			.description("If set, the sketch of SKETCH_NAME is seeded with the lines of this file when the processor is "
+					+ "scheduled and the sketch is still empty, e.g. after a restart. Lines are read as in LINES mode, "
+					+ "with VALUE_DELIMITER. The file is memory-mapped and counted on all cores")
+			.required(false).addValidator(StandardValidators.FILE_EXISTS_VALIDATOR).build();
+
+	public static final PropertyDescriptor ASYNC_BUFFER_SIZE = new PropertyDescriptor.Builder()
+			.name("ASYNC_BUFFER_SIZE").displayName("ASYNC_BUFFER_SIZE")
+			.description("If greater than 0, updates are applied asynchronously: processor threads only hash the keys "
+					+ "and queue them in a ring buffer of this many updates (rounded up to a power of two, at least "
+					+ "1024), and one writer thread applies them in order. This avoids contention on hot counters "
+					+ "when many concurrent tasks update the same keys. FlowFiles are routed to success once their "
+					+ "updates are queued, so estimates lag slightly behind; the buffer is drained when the processor "
+					+ "stops. Not supported together with RANGE_BITS")
+			.required(true).defaultValue("0").addValidator(StandardValidators.createLongValidator(0, 1 << 24, true))
+			.build();
+
+	public static final String BACKPRESSURE_WAIT = "WAIT";
+	public static final String BACKPRESSURE_YIELD = "YIELD";
+
+	public static final PropertyDescriptor ASYNC_BACKPRESSURE = new PropertyDescriptor.Builder()
+			.name("ASYNC_BACKPRESSURE").displayName("ASYNC_BACKPRESSURE")
+			.description("What a task does when the async buffer is full. WAIT blocks the task until the writer has "
+					+ "made room. YIELD leaves the FlowFiles queued and yields the processor while the buffer has less "
+					+ "room than one batch (or half the buffer), so the connection's back pressure reaches upstream "
+					+ "processors; a batch that still does not fit waits")
+			.required(true).allowableValues(BACKPRESSURE_WAIT, BACKPRESSURE_YIELD).defaultValue(BACKPRESSURE_WAIT)
+			.build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("BATCH_SIZE")
+			.displayName("BATCH_SIZE")
+			.description("The maximum number of FlowFiles pulled from the queue and applied to the sketch in one trigger")
+			.required(true).defaultValue(String.valueOf(SketchConstants.DEFAULT_BATCH_SIZE))
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
 	// relationships
 	public static final Relationship REL_SUCCESS = new Relationship.Builder()
 			.description("All FlowFiles are successfully processed are routed here").name("success").build();
@@ -88,13 +300,39 @@ public class UpdateCMS extends AbstractProcessor {
 	@Override
 	protected void init(final ProcessorInitializationContext context) {
 		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		descriptors.add(SKETCH_NAME);
+		descriptors.add(MODE);
 		descriptors.add(KEY);
 		descriptors.add(VALUE);
+		descriptors.add(VALUE_DELIMITER);
 		descriptors.add(DELTA);
 		descriptors.add(EPSILON);
+		descriptors.add(EXPECTED_VOLUME);
+		descriptors.add(MAX_ERROR);
+		descriptors.add(VOLUME_PERIOD);
+		descriptors.add(AUTO_FOLD);
 		descriptors.add(SEED);
 		descriptors.add(WIDTH);
 		descriptors.add(DEPTH);
+		descriptors.add(STORAGE);
+		descriptors.add(LAYOUT);
+		descriptors.add(COUNTER_BITS);
+		descriptors.add(CONSERVATIVE_UPDATE);
+		descriptors.add(RANGE_BITS);
+		descriptors.add(TOP_K);
+		descriptors.add(PRE_AGGREGATE_KEYS);
+		descriptors.add(PRE_AGGREGATE_UPDATES);
+		descriptors.add(PRE_AGGREGATE_INTERVAL);
+		descriptors.add(WINDOW_DURATION);
+		descriptors.add(WINDOWS);
+		descriptors.add(DECAY);
+		descriptors.add(PERSISTENCE_DIRECTORY);
+		descriptors.add(CHECKPOINT_INTERVAL);
+		descriptors.add(LOAD_FILE);
+		descriptors.add(ASYNC_BUFFER_SIZE);
+		descriptors.add(ASYNC_BACKPRESSURE);
+		descriptors.add(BATCH_SIZE);
 
 		this.descriptors = Collections.unmodifiableList(descriptors);
 
@@ -114,37 +352,244 @@ public class UpdateCMS extends AbstractProcessor {
 		return descriptors;
 	}
 
+	@Override
+	protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+		return new PropertyDescriptor.Builder().name(propertyDescriptorName).displayName(propertyDescriptorName)
+				.description("Key expressions counted in sketch " + propertyDescriptorName).dynamic(true)
+				.expressionLanguageSupported(true).addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+				.required(false).build();
+	}
+
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		final List<ValidationResult> results = new ArrayList<ValidationResult>();
+		final boolean attributeMode = MODE_ATTRIBUTE.equals(context.getProperty(MODE).getValue());
+		boolean hasDimensions = false;
+		for (PropertyDescriptor property : context.getProperties().keySet()) {
+			if (!property.isDynamic()) {
+				continue;
+			}
+			hasDimensions = true;
+			if (!SketchConstants.SKETCH_NAME_PATTERN.matcher(property.getName()).matches()) {
+				results.add(new ValidationResult.Builder().subject(property.getName()).valid(false)
+						.explanation("a dimension must be named after a sketch").build());
+			} else if (!attributeMode) {
+				results.add(new ValidationResult.Builder().subject(property.getName()).valid(false)
+						.explanation("dimensions are only supported in " + MODE_ATTRIBUTE + " mode").build());
+			}
+		}
+		if (attributeMode && !context.getProperty(KEY).isSet() && !hasDimensions) {
+			results.add(new ValidationResult.Builder().subject(KEY.getDisplayName()).valid(false)
+					.explanation("KEY or a dimension is required in " + MODE_ATTRIBUTE + " mode").build());
+		}
+		if (attributeMode && !context.getProperty(KEY).isSet() && context.getProperty(LOAD_FILE).isSet()) {
+			results.add(new ValidationResult.Builder().subject(LOAD_FILE.getDisplayName()).valid(false)
+					.explanation("LOAD_FILE seeds the sketch of SKETCH_NAME, which needs KEY or " + MODE_LINES + " mode")
+					.build());
+		}
+		if (context.getProperty(WINDOW_DURATION).isSet() && context.getProperty(PERSISTENCE_DIRECTORY).isSet()) {
+			results.add(new ValidationResult.Builder().subject(WINDOW_DURATION.getDisplayName()).valid(false)
+					.explanation("windowed sketches cannot be persisted").build());
+		}
+		if (context.getProperty(COUNTER_BITS).asInteger() != 64
+				&& (!CountMinSketch.Storage.HEAP.name().equals(context.getProperty(STORAGE).getValue())
+						|| context.getProperty(PERSISTENCE_DIRECTORY).isSet())) {
+			results.add(new ValidationResult.Builder().subject(COUNTER_BITS.getDisplayName()).valid(false)
+					.explanation("narrow counters need HEAP storage and cannot be persisted").build());
+		}
+		if (context.getProperty(RANGE_BITS).isSet() && (context.getProperty(WINDOW_DURATION).isSet()
+				|| context.getProperty(PERSISTENCE_DIRECTORY).isSet())) {
+			results.add(new ValidationResult.Builder().subject(RANGE_BITS.getDisplayName()).valid(false)
+					.explanation("range support is not available for windowed or persistent sketches").build());
+		}
+		if (context.getProperty(EXPECTED_VOLUME).isSet() != context.getProperty(MAX_ERROR).isSet()) {
+			results.add(new ValidationResult.Builder().subject(MAX_ERROR.getDisplayName()).valid(false)
+					.explanation("EXPECTED_VOLUME and MAX_ERROR must be set together").build());
+		}
+		if (context.getProperty(AUTO_FOLD).asBoolean() && (!context.getProperty(MAX_ERROR).isSet()
+				|| !CountMinSketch.Layout.ROWS.name().equals(context.getProperty(LAYOUT).getValue())
+				|| context.getProperty(WINDOW_DURATION).isSet() || context.getProperty(PERSISTENCE_DIRECTORY).isSet()
+				|| context.getProperty(RANGE_BITS).isSet())) {
+			results.add(new ValidationResult.Builder().subject(AUTO_FOLD.getDisplayName()).valid(false)
+					.explanation("AUTO_FOLD needs MAX_ERROR and the ROWS layout, and is not available for windowed, "
+							+ "persistent or ranged sketches").build());
+		}
+		if (context.getProperty(PRE_AGGREGATE_KEYS).asInteger() > 0
+				&& (context.getProperty(TOP_K).asInteger() > 0 || context.getProperty(WINDOW_DURATION).isSet())) {
+			results.add(new ValidationResult.Builder().subject(PRE_AGGREGATE_KEYS.getDisplayName()).valid(false)
+					.explanation("pre-aggregation is not available with TOP_K or WINDOW_DURATION").build());
+		}
+		if (context.getProperty(RANGE_BITS).isSet() && context.getProperty(ASYNC_BUFFER_SIZE).asInteger() > 0) {
+			results.add(new ValidationResult.Builder().subject(ASYNC_BUFFER_SIZE.getDisplayName()).valid(false)
+					.explanation("asynchronous updates do not maintain RANGE_BITS").build());
+		}
+		if (context.getProperty(DECAY).isSet()) {
+			try {
+				final double decay = context.getProperty(DECAY).asDouble();
+				if (decay <= 0 || decay > 1 || !context.getProperty(WINDOW_DURATION).isSet()) {
+					results.add(new ValidationResult.Builder().subject(DECAY.getDisplayName()).valid(false)
+							.explanation("DECAY must be in (0, 1] and needs WINDOW_DURATION").build());
+				}
+			} catch (NumberFormatException e) {
+				// already reported by the property validator
+			}
+		}
+		return results;
+	}
+
 	@OnScheduled
 	public void onScheduled(final ProcessContext context) {
+		final CountMinSketchService service = context.getProperty(SKETCH_SERVICE)
+				.asControllerService(CountMinSketchService.class);
+		final Dimensions dimensions = Dimensions.of(context);
+		final CountMinSketch[] dimensionSketches = new CountMinSketch[dimensions.size()];
+		for (int i = 0; i < dimensionSketches.length; i++) {
+			dimensionSketches[i] = getOrCreateSketch(context, service, dimensions.getName(i));
+		}
+		if (MODE_LINES.equals(context.getProperty(MODE).getValue()) || context.getProperty(KEY).isSet()) {
+			cms = getOrCreateSketch(context, service, context.getProperty(SKETCH_NAME).getValue());
+			if (notNull(context.getProperty(LOAD_FILE).getValue()) && cms.getTotalCount() == 0) {
+				load(context, cms);
+				// a persistent sketch keeps its total with the seeded counts, so it is not seeded again
+				cms.checkpoint();
+			}
+		} else {
+			cms = null;
+		}
+		this.dimensions = dimensions;
+		this.dimensionSketches = dimensionSketches;
+		lastCheckpoint.set(System.nanoTime());
+
+		final CountMinSketch[] sketches = sketches();
+		final long[] counts = new long[sketches.length];
+		for (int i = 0; i < sketches.length; i++) {
+			counts[i] = sketches[i].getTotalCount();
+		}
+		scheduledCounts = counts;
+		scheduledAt = System.nanoTime();
+		lastFoldCheck.set(scheduledAt);
+
+		final int bufferSize = context.getProperty(ASYNC_BUFFER_SIZE).asInteger();
+		if (bufferSize > 0) {
+			updater = new AsyncUpdater(sketches, bufferSize, getLogger(), "UpdateCMS async writer " + getIdentifier());
+		}
+	}
+
+	// cms, if any, then the dimension sketches
+	private CountMinSketch[] sketches() {
+		final List<CountMinSketch> sketches = new ArrayList<CountMinSketch>();
+		if (cms != null) {
+			sketches.add(cms);
+		}
+		Collections.addAll(sketches, dimensionSketches);
+		return sketches.toArray(new CountMinSketch[sketches.size()]);
+	}
+
+	private void load(final ProcessContext context, final CountMinSketch cms) {
+		final File file = new File(context.getProperty(LOAD_FILE).getValue());
+		final String delimiter = context.getProperty(VALUE_DELIMITER).getValue();
+		final long start = System.nanoTime();
+		final long lines;
+		try {
+			lines = cms.bulkLoad(file.toPath(), notNull(delimiter) ? delimiter.charAt(0) : -1, 0);
+		} catch (IOException | NumberFormatException e) {
+			throw new ProcessException("Could not load " + file + " into the sketch", e);
+		}
+		final long nanos = System.nanoTime() - start;
+		cms.getMetrics().recordUpdateBatch(lines, nanos);
+		getLogger().info("Loaded {} lines of {} into sketch {} in {} ms.",
+				new Object[] { lines, file, context.getProperty(SKETCH_NAME).getValue(), nanos / 1000000 });
+	}
+
+	private CountMinSketch getOrCreateSketch(final ProcessContext context, final CountMinSketchService service,
+			final String name) {
 		final PropertyValue delta = context.getProperty(DELTA);
 		final PropertyValue epsilon = context.getProperty(EPSILON);
 		final PropertyValue seed = context.getProperty(SEED);
 		final PropertyValue width = context.getProperty(WIDTH);
 		final PropertyValue depth = context.getProperty(DEPTH);
 
-		if (null == cms) {
-			if (notNull(delta.getValue()) && notNull(epsilon.getValue())) {
-				final float d = delta.asFloat();
-				final float e = epsilon.asFloat();
-				if (notNull(seed.getValue())) {
-					final int s = seed.asInteger();
-					CountMinSketch.createInstance(d, e, s);
-				} else {
-					CountMinSketch.createInstance(d, e);
-				}
-			} else if (notNull(width.getValue()) && notNull(depth.getValue())) {
-				final int w = width.asInteger();
-				final int d = depth.asInteger();
-				if (notNull(seed.getValue())) {
-					final int s = seed.asInteger();
-					CountMinSketch.createInstance(w, d, s);
-				} else {
-					CountMinSketch.createInstance(w, d);
+		final CountMinSketch.Builder builder = new CountMinSketch.Builder();
+		if (notNull(context.getProperty(EXPECTED_VOLUME).getValue())
+				&& notNull(context.getProperty(MAX_ERROR).getValue())) {
+			builder.volume(context.getProperty(EXPECTED_VOLUME).asLong(), context.getProperty(MAX_ERROR).asLong(),
+					notNull(delta.getValue()) ? delta.asFloat() : SketchConstants.DEFAULT_DELTA);
+		} else if (notNull(delta.getValue()) && notNull(epsilon.getValue())) {
+			builder.accuracy(delta.asFloat(), epsilon.asFloat());
+		} else if (notNull(width.getValue()) && notNull(depth.getValue())) {
+			builder.dimensions(width.asInteger(), depth.asInteger());
+		}
+		if (notNull(seed.getValue())) {
+			builder.seed(seed.asInteger());
+		}
+		builder.storage(CountMinSketch.Storage.valueOf(context.getProperty(STORAGE).getValue()));
+		builder.layout(CountMinSketch.Layout.valueOf(context.getProperty(LAYOUT).getValue()));
+		builder.counterBits(context.getProperty(COUNTER_BITS).asInteger());
+		builder.conservative(context.getProperty(CONSERVATIVE_UPDATE).asBoolean());
+		builder.foldable(context.getProperty(AUTO_FOLD).asBoolean());
+		if (notNull(context.getProperty(RANGE_BITS).getValue())) {
+			builder.ranges(context.getProperty(RANGE_BITS).asInteger());
+		}
+		builder.topK(context.getProperty(TOP_K).asInteger());
+		if (context.getProperty(PRE_AGGREGATE_KEYS).asInteger() > 0) {
+			builder.preAggregate(context.getProperty(PRE_AGGREGATE_KEYS).asInteger(),
+					context.getProperty(PRE_AGGREGATE_UPDATES).asInteger(),
+					context.getProperty(PRE_AGGREGATE_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS));
+		}
+		if (notNull(context.getProperty(WINDOW_DURATION).getValue())) {
+			builder.windows(context.getProperty(WINDOWS).asInteger(),
+					context.getProperty(WINDOW_DURATION).asTimePeriod(TimeUnit.MILLISECONDS));
+		}
+		if (notNull(context.getProperty(DECAY).getValue())) {
+			builder.decay(context.getProperty(DECAY).asDouble());
+		}
+		if (notNull(context.getProperty(PERSISTENCE_DIRECTORY).getValue())) {
+			builder.persistTo(new File(context.getProperty(PERSISTENCE_DIRECTORY).getValue(),
+					name + SketchConstants.SKETCH_FILE_EXTENSION));
+		}
+		try {
+			return service.getOrCreateSketch(name, builder);
+		} catch (UncheckedIOException e) {
+			throw new ProcessException("Could not open the persistent sketch " + name, e.getCause());
+		} catch (IllegalStateException | IllegalArgumentException e) {
+			throw new ProcessException(e.getMessage(), e);
+		}
+	}
+
+	@OnStopped
+	public void onStopped() {
+		final AsyncUpdater updater = this.updater;
+		this.updater = null;
+		try {
+			if (updater != null) {
+				updater.close();
+				if (updater.getFailed() > 0) {
+					getLogger().warn("{} queued updates could not be applied.", new Object[] { updater.getFailed() });
 				}
-			} else {
-				CountMinSketch.createInstance(SketchConstants.DEFAULT_DELTA, SketchConstants.DEFAULT_EPSILON);
 			}
-			cms = CountMinSketch.getInstance();
+		} finally {
+			checkpoint();
+		}
+	}
+
+	private void checkpoint() {
+		if (null != cms) {
+			cms.checkpoint();
+		}
+		if (null != dimensionSketches) {
+			for (CountMinSketch sketch : dimensionSketches) {
+				sketch.checkpoint();
+			}
+		}
+	}
+
+	// forces a persistent sketch to disk at most once per CHECKPOINT_INTERVAL, from one thread only
+	private void checkpointIfDue(final ProcessContext context) {
+		final long interval = context.getProperty(CHECKPOINT_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS);
+		final long last = lastCheckpoint.get();
+		final long now = System.nanoTime();
+		if (now - last >= interval && lastCheckpoint.compareAndSet(last, now)) {
+			checkpoint();
 		}
 	}
 
@@ -154,28 +599,295 @@ public class UpdateCMS extends AbstractProcessor {
 
 	@Override
 	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-		FlowFile flowFile = session.get();
-		if (flowFile == null) {
+		final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+		final AsyncUpdater updater = this.updater;
+		if (updater != null && BACKPRESSURE_YIELD.equals(context.getProperty(ASYNC_BACKPRESSURE).getValue())) {
+			final long needed = Math.min(updater.getCapacity() / 2,
+					(long) batchSize * ((cms != null ? 1 : 0) + dimensionSketches.length));
+			if (updater.getCapacity() - updater.getPending() < needed) {
+				context.yield();
+				return;
+			}
+		}
+		final List<FlowFile> flowFiles = session.get(batchSize);
+		if (flowFiles.isEmpty()) {
 			return;
 		}
 
-		String key = context.getProperty(KEY).evaluateAttributeExpressions(flowFile).getValue();
+		final long start = System.nanoTime();
+		final long updates;
+		if (MODE_LINES.equals(context.getProperty(MODE).getValue())) {
+			updates = countLines(context, session, flowFiles);
+		} else {
+			updates = countAttributes(context, session, flowFiles);
+		}
+		// every sketch got the same keys, the batch time is split evenly between them
+		final long nanos = System.nanoTime() - start;
+		final int sketches = (cms != null ? 1 : 0) + dimensionSketches.length;
+		if (cms != null) {
+			cms.getMetrics().recordUpdateBatch(updates, nanos / sketches);
+		}
+		for (CountMinSketch sketch : dimensionSketches) {
+			sketch.getMetrics().recordUpdateBatch(updates, nanos / sketches);
+		}
+		session.adjustCounter("Sketch updates", updates * sketches, false);
+		if (context.getProperty(PERSISTENCE_DIRECTORY).isSet()) {
+			checkpointIfDue(context);
+		}
+		if (context.getProperty(AUTO_FOLD).asBoolean()) {
+			foldIfDue(context);
+		}
+	}
 
-		long value = 0;
-		if (notNull(context.getProperty(VALUE).getValue()))
-			value = context.getProperty(VALUE).evaluateAttributeExpressions(flowFile).asLong();
-		
-		try {
-			if (value != 0) {
-				cms.update(key, value);
-			} else {
-				cms.update(key);
-			}
-		} catch (Throwable e) {
-			getLogger().error("Ran into an error while processing {}.", new Object[] { flowFile }, e);
-			session.transfer(flowFile, REL_FAILURE);
-		} finally {
-			session.transfer(flowFile, REL_SUCCESS);
+	// every tenth of VOLUME_PERIOD, from one thread only, see fold
+	private void foldIfDue(final ProcessContext context) {
+		final long period = context.getProperty(VOLUME_PERIOD).asTimePeriod(TimeUnit.NANOSECONDS);
+		final long last = lastFoldCheck.get();
+		final long now = System.nanoTime();
+		if (now - last < period / 10 || !lastFoldCheck.compareAndSet(last, now)) {
+			return;
+		}
+		fold(context.getProperty(MAX_ERROR).asLong(), period, now - scheduledAt);
+	}
+
+	/*
+	 * Projects the total of each sketch to the end of a period at the rate seen
+	 * over the elapsed time since scheduling, and halves the width as long as the
+	 * error bound at that total stays within maxError.
+	 */
+	void fold(final long maxError, final long periodNanos, final long elapsedNanos) {
+		final CountMinSketch[] sketches = sketches();
+		final long[] scheduledCounts = this.scheduledCounts;
+		for (int i = 0; i < sketches.length; i++) {
+			final CountMinSketch sketch = sketches[i];
+			final long total = sketch.getTotalCount();
+			final double rate = (double) (total - scheduledCounts[i]) / elapsedNanos;
+			final double projected = total + rate * Math.max(0, periodNanos - elapsedNanos);
+			while (sketch.isFoldable() && sketch.getWidth() / 2 >= MIN_FOLDED_WIDTH
+					&& Math.E / (sketch.getWidth() / 2) * projected <= maxError) {
+				final double bound = sketch.fold();
+				getLogger().info("Folded a sketch to width {} for a projected total of {}, error bound now {}.",
+						new Object[] { sketch.getWidth(), Math.round(projected), Math.round(bound) });
+			}
+		}
+	}
+
+	// returns the number of FlowFiles added to every sketch
+	private long countAttributes(final ProcessContext context, final ProcessSession session,
+			final List<FlowFile> flowFiles) {
+		final boolean hasValue = notNull(context.getProperty(VALUE).getValue());
+		final CountMinSketch cms = this.cms;
+		final Dimensions dimensions = this.dimensions;
+		final CountMinSketch[] dimensionSketches = this.dimensionSketches;
+		final AsyncUpdater updater = this.updater;
+		final Dimensions.Hashes[] hashes = new Dimensions.Hashes[flowFiles.size()];
+		final String[] keys = new String[flowFiles.size()];
+		final long[] values = new long[flowFiles.size()];
+		final List<FlowFile> success = new ArrayList<FlowFile>(flowFiles.size());
+		final List<FlowFile> failure = new ArrayList<FlowFile>();
+		boolean conservative = cms != null && cms.isConservative();
+		for (CountMinSketch sketch : dimensionSketches) {
+			conservative |= sketch.isConservative();
+		}
+
+		/*
+		 * Whatever the sketches would reject is checked here, so that a FlowFile
+		 * fails before any of its updates is applied and can be retried without
+		 * counting it twice.
+		 */
+		int count = 0;
+		for (final FlowFile flowFile : flowFiles) {
+			try {
+				final String key = cms == null ? null
+						: context.getProperty(KEY).evaluateAttributeExpressions(flowFile).getValue();
+				if (cms != null && key == null) {
+					throw new ProcessException("KEY evaluated to null");
+				}
+				long value = 0;
+				if (hasValue)
+					value = context.getProperty(VALUE).evaluateAttributeExpressions(flowFile).asLong();
+				if (value < 0 && conservative) {
+					throw new ProcessException("Conservative updates do not support the negative VALUE " + value);
+				}
+				if (dimensionSketches.length > 0) {
+					hashes[count] = dimensions.evaluate(flowFile);
+				}
+
+				keys[count] = key;
+				values[count] = value != 0 ? value : 1;
+				count++;
+				success.add(flowFile);
+			} catch (Throwable e) {
+				getLogger().error("Ran into an error while processing {}.", new Object[] { flowFile }, e);
+				failure.add(flowFile);
+			}
+		}
+
+		if (updater != null) {
+			try {
+				publish(updater, cms, dimensions, dimensionSketches, hashes, keys, values, count);
+			} catch (Throwable e) {
+				// only when stopping or interrupted; what was queued before is still applied
+				getLogger().error("Ran into an error while queueing the updates of {} FlowFiles.",
+						new Object[] { count }, e);
+				failure.addAll(success);
+				success.clear();
+			}
+		} else {
+			update(cms, dimensions, dimensionSketches, hashes, keys, values, success, failure);
+		}
+
+		session.transfer(success, REL_SUCCESS);
+		session.transfer(failure, REL_FAILURE);
+		return success.size();
+	}
+
+	/*
+	 * Applies the updates of each evaluated FlowFile in turn. One that fails
+	 * anyway moves to failure, the FlowFiles applied before it stay successful.
+	 */
+	private void update(final CountMinSketch cms, final Dimensions dimensions,
+			final CountMinSketch[] dimensionSketches, final Dimensions.Hashes[] hashes, final String[] keys,
+			final long[] values, final List<FlowFile> success, final List<FlowFile> failure) {
+		final boolean[] named = new boolean[dimensionSketches.length];
+		for (int d = 0; d < dimensionSketches.length; d++) {
+			named[d] = dimensionSketches[d].getHeavyHitters() != null;
+		}
+		final List<FlowFile> evaluated = new ArrayList<FlowFile>(success);
+		success.clear();
+		for (int i = 0; i < evaluated.size(); i++) {
+			try {
+				if (cms != null) {
+					cms.update(keys[i], values[i]);
+				}
+				for (int d = 0; d < dimensionSketches.length; d++) {
+					final CountMinSketch sketch = dimensionSketches[d];
+					final long hash = hashes[i].hash(d, sketch);
+					if (named[d]) {
+						sketch.update(hash, dimensions.key(d, hashes[i].getValues()), values[i]);
+					} else {
+						sketch.update(hash, values[i]);
+					}
+				}
+				success.add(evaluated.get(i));
+			} catch (Throwable e) {
+				getLogger().error("Ran into an error while updating the sketches with {}.",
+						new Object[] { evaluated.get(i) }, e);
+				failure.add(evaluated.get(i));
+			}
+		}
+	}
+
+	// as update, but queues the updates for the async writer
+
+	private void publish(final AsyncUpdater updater, final CountMinSketch cms, final Dimensions dimensions,
+			final CountMinSketch[] dimensionSketches, final Dimensions.Hashes[] hashes, final String[] keys,
+			final long[] values, final int count) {
+		final long[] batch = new long[count];
+		if (cms != null) {
+			for (int i = 0; i < count; i++) {
+				batch[i] = cms.hash(keys[i]);
+			}
+			updater.publish(0, batch, cms.getHeavyHitters() != null ? keys : null, values, count);
+		}
+		final String[] names = new String[count];
+		for (int d = 0; d < dimensionSketches.length; d++) {
+			final CountMinSketch sketch = dimensionSketches[d];
+			final boolean named = sketch.getHeavyHitters() != null;
+			for (int i = 0; i < count; i++) {
+				batch[i] = hashes[i].hash(d, sketch);
+				if (named) {
+					names[i] = dimensions.key(d, hashes[i].getValues());
+				}
+			}
+			updater.publish((cms != null ? 1 : 0) + d, batch, named ? names : null, values, count);
+		}
+	}
+
+	// returns the number of lines added to the sketch
+	private long countLines(final ProcessContext context, final ProcessSession session,
+			final List<FlowFile> flowFiles) {
+		final boolean hasValue = notNull(context.getProperty(VALUE).getValue());
+		final String delimiter = context.getProperty(VALUE_DELIMITER).getValue();
+		final int delimiterChar = notNull(delimiter) ? delimiter.charAt(0) : -1;
+		final AsyncUpdater updater = this.updater;
+		final LineCounter counter = updater == null ? new LineCounter(cms, delimiterChar)
+				: new PublishingLineCounter(cms, delimiterChar, updater);
+		final List<FlowFile> success = new ArrayList<FlowFile>(flowFiles.size());
+		final List<FlowFile> failure = new ArrayList<FlowFile>();
+
+		long lines = 0;
+		for (final FlowFile flowFile : flowFiles) {
+			try {
+				long value = 0;
+				if (hasValue)
+					value = context.getProperty(VALUE).evaluateAttributeExpressions(flowFile).asLong();
+				counter.reset(value != 0 ? value : 1);
+				session.read(flowFile, counter);
+				lines += counter.getLines();
+				success.add(session.putAttribute(flowFile, "cms.lines", String.valueOf(counter.getLines())));
+			} catch (Throwable e) {
+				getLogger().error("Ran into an error while processing {} after {} lines.",
+						new Object[] { flowFile, counter.getLines() }, e);
+				failure.add(flowFile);
+			}
+		}
+
+		session.transfer(success, REL_SUCCESS);
+		session.transfer(failure, REL_FAILURE);
+		return lines;
+	}
+
+	/*
+	 * Counts lines into the async updater. Hashes are collected in chunks and
+	 * queued when a chunk is full and at the end of each FlowFile, also after an
+	 * invalid line, so the lines before it count as they do synchronously.
+	 */
+	private static final class PublishingLineCounter extends LineCounter {
+		private static final int CHUNK = 1024;
+
+		private final CountMinSketch cms;
+		private final AsyncUpdater updater;
+		private final boolean named;
+		private final long[] hashes = new long[CHUNK];
+		private final long[] values = new long[CHUNK];
+		private final String[] keys;
+		private int pending;
+
+		PublishingLineCounter(final CountMinSketch cms, final int delimiter, final AsyncUpdater updater) {
+			super(cms, delimiter);
+			this.cms = cms;
+			this.updater = updater;
+			this.named = cms.getHeavyHitters() != null;
+			this.keys = named ? new String[CHUNK] : null;
+		}
+
+		@Override
+		public void process(final InputStream in) throws IOException {
+			try {
+				super.process(in);
+			} finally {
+				publish();
+			}
+		}
+
+		@Override
+		void count(final byte[] key, final int offset, final int length, final long value) {
+			hashes[pending] = cms.hash(key, offset, length);
+			values[pending] = value;
+			if (named) {
+				keys[pending] = new String(key, offset, length, StandardCharsets.UTF_8);
+			}
+			if (++pending == CHUNK) {
+				publish();
+			}
+		}
+
+		private void publish() {
+			if (pending > 0) {
+				updater.publish(0, hashes, keys, values, pending);
+				pending = 0;
+			}
 		}
 	}
 }
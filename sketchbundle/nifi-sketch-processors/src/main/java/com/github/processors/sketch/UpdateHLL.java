@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({ "Attribute Expression Language", "distinct", "cardinality", "data science", "hll", "sketch" })
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Adds a key per FlowFile to a HyperLogLog, which estimates the number of distinct keys in "
+		+ "a stream in fixed memory: at most 2^PRECISION bytes, with a relative standard error of about "
+		+ "1.04 / sqrt(2^PRECISION). Small cardinalities are kept in a sparse form and counted almost exactly. "
+		+ "GetHLL reads the estimate.")
+public class UpdateHLL extends AbstractProcessor {
+	private volatile HyperLogLog hll;
+
+	// Properties
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the HyperLogLogs")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	public static final PropertyDescriptor SKETCH_NAME = new PropertyDescriptor.Builder().name("SKETCH_NAME")
+			.displayName("SKETCH_NAME")
+			.description("The name of the HyperLogLog to update. It is created when the processor is scheduled and "
+					+ "rebuilt, dropping its keys, if PRECISION or SEED change")
+			.required(true).defaultValue(SketchConstants.DEFAULT_SKETCH_NAME)
+			.addValidator(StandardValidators.createRegexMatchingValidator(SketchConstants.SKETCH_NAME_PATTERN)).build();
+
+	public static final PropertyDescriptor KEY = new PropertyDescriptor.Builder().name("KEY").displayName("KEY")
+			.description("The key to count distinct values of, e.g. ${src}").required(true)
+			.expressionLanguageSupported(true)
+			.addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR).build();
+
+	public static final PropertyDescriptor PRECISION = new PropertyDescriptor.Builder().name("PRECISION")
+			.displayName("PRECISION")
+			.description("Log2 of the number of registers, from " + HyperLogLog.MIN_PRECISION + " to "
+					+ HyperLogLog.MAX_PRECISION + ". 14 takes at most 16 KB for an error of about 0.8%, every step "
+					+ "up doubles the memory and divides the error by sqrt(2)")
+			.required(true).defaultValue(String.valueOf(HyperLogLog.DEFAULT_PRECISION))
+			.addValidator(StandardValidators.createLongValidator(HyperLogLog.MIN_PRECISION,
+					HyperLogLog.MAX_PRECISION, true))
+			.build();
+
+	public static final PropertyDescriptor SEED = new PropertyDescriptor.Builder().name("SEED").displayName("SEED")
+			.description("The seed value for the murmur hash function. HyperLogLogs can only be merged with the same "
+					+ "seed").required(false)
+			.addValidator(StandardValidators.INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("BATCH_SIZE")
+			.displayName("BATCH_SIZE")
+			.description("The maximum number of FlowFiles pulled from the queue and added in one trigger")
+			.required(true).defaultValue(String.valueOf(SketchConstants.DEFAULT_BATCH_SIZE))
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	// relationships
+	public static final Relationship REL_SUCCESS = new Relationship.Builder()
+			.description("All FlowFiles are successfully processed are routed here").name("success").build();
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("When a FlowFile fails for a some reason").build();
+
+	private List<PropertyDescriptor> descriptors;
+
+	private Set<Relationship> relationships;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		descriptors.add(SKETCH_NAME);
+		descriptors.add(KEY);
+		descriptors.add(PRECISION);
+		descriptors.add(SEED);
+		descriptors.add(BATCH_SIZE);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		relationships.add(REL_SUCCESS);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) {
+		final String name = context.getProperty(SKETCH_NAME).getValue();
+		final int seed = context.getProperty(SEED).isSet() ? context.getProperty(SEED).asInteger() : 0;
+		try {
+			hll = context.getProperty(SKETCH_SERVICE).asControllerService(CountMinSketchService.class)
+					.getOrCreateHyperLogLog(name, context.getProperty(PRECISION).asInteger(), seed);
+		} catch (IllegalStateException | IllegalArgumentException e) {
+			throw new ProcessException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			return;
+		}
+
+		final HyperLogLog hll = this.hll;
+		final long[] hashes = new long[flowFiles.size()];
+		final List<FlowFile> success = new ArrayList<FlowFile>(flowFiles.size());
+		final List<FlowFile> failure = new ArrayList<FlowFile>();
+
+		int count = 0;
+		for (final FlowFile flowFile : flowFiles) {
+			try {
+				final String key = context.getProperty(KEY).evaluateAttributeExpressions(flowFile).getValue();
+				hashes[count++] = hll.hash(key == null ? "" : key);
+				success.add(flowFile);
+			} catch (Throwable e) {
+				getLogger().error("Ran into an error while processing {}.", new Object[] { flowFile }, e);
+				failure.add(flowFile);
+			}
+		}
+		// hashed outside of the lock, which is then taken once for the batch
+		hll.add(hashes, count);
+
+		session.transfer(success, REL_SUCCESS);
+		session.transfer(failure, REL_FAILURE);
+		session.adjustCounter("HyperLogLog updates", count, false);
+	}
+}
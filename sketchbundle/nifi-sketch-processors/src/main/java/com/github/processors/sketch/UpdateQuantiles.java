@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.processors.sketch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+@Tags({ "Attribute Expression Language", "quantile", "percentile", "data science", "kll", "sketch" })
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Adds a numeric value per FlowFile, e.g. a latency or size, to a KLL quantile sketch, "
+		+ "optionally one sketch per GROUP. Each sketch keeps a few thousand values at most however long the stream, "
+		+ "updates are amortized O(1), and GetQuantiles reads percentiles with a rank error of about EPSILON.")
+public class UpdateQuantiles extends AbstractProcessor {
+	private volatile QuantileGroups groups;
+
+	// Properties
+	public static final PropertyDescriptor SKETCH_SERVICE = new PropertyDescriptor.Builder().name("SKETCH_SERVICE")
+			.displayName("SKETCH_SERVICE").description("The Controller Service holding the quantile sketches")
+			.required(true).identifiesControllerService(CountMinSketchService.class).build();
+
+	public static final PropertyDescriptor SKETCH_NAME = new PropertyDescriptor.Builder().name("SKETCH_NAME")
+			.displayName("SKETCH_NAME")
+			.description("The name of the quantile sketches to update. They are created when the processor is "
+					+ "scheduled and rebuilt, dropping their values, if EPSILON or MAX_GROUPS change")
+			.required(true).defaultValue(SketchConstants.DEFAULT_SKETCH_NAME)
+			.addValidator(StandardValidators.createRegexMatchingValidator(SketchConstants.SKETCH_NAME_PATTERN)).build();
+
+	public static final PropertyDescriptor VALUE = new PropertyDescriptor.Builder().name("VALUE").displayName("VALUE")
+			.description("The number to add, e.g. ${latency}. A FlowFile whose value is not a number is routed to "
+					+ "failure").required(true).expressionLanguageSupported(true)
+			.addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR).build();
+
+	public static final PropertyDescriptor GROUP = new PropertyDescriptor.Builder().name("GROUP").displayName("GROUP")
+			.description("If set, values are kept per distinct result of this expression, e.g. ${http.method}, so "
+					+ "GetQuantiles can read the percentiles of one group").required(false)
+			.expressionLanguageSupported(true)
+			.addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR).build();
+
+	public static final PropertyDescriptor EPSILON = new PropertyDescriptor.Builder().name("EPSILON")
+			.displayName("EPSILON")
+			.description("The rank error of the quantiles with 99% confidence. The default value is '0.01', i.e. "
+					+ "the 99th percentile estimate lies between the true 98th and 100th. Halving it about doubles "
+					+ "the memory of every sketch")
+			.required(true).defaultValue("0.01").addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	public static final PropertyDescriptor MAX_GROUPS = new PropertyDescriptor.Builder().name("MAX_GROUPS")
+			.displayName("MAX_GROUPS")
+			.description("The maximum number of groups tracked. FlowFiles of further groups are routed to failure")
+			.required(true).defaultValue("1000").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("BATCH_SIZE")
+			.displayName("BATCH_SIZE")
+			.description("The maximum number of FlowFiles pulled from the queue and added in one trigger")
+			.required(true).defaultValue(String.valueOf(SketchConstants.DEFAULT_BATCH_SIZE))
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	// relationships
+	public static final Relationship REL_SUCCESS = new Relationship.Builder()
+			.description("All FlowFiles are successfully processed are routed here").name("success").build();
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("When a FlowFile fails for a some reason, e.g. its value is not a number").build();
+
+	private List<PropertyDescriptor> descriptors;
+
+	private Set<Relationship> relationships;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(SKETCH_SERVICE);
+		descriptors.add(SKETCH_NAME);
+		descriptors.add(VALUE);
+		descriptors.add(GROUP);
+		descriptors.add(EPSILON);
+		descriptors.add(MAX_GROUPS);
+		descriptors.add(BATCH_SIZE);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		relationships.add(REL_SUCCESS);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		final List<ValidationResult> results = new ArrayList<ValidationResult>();
+		try {
+			final double epsilon = context.getProperty(EPSILON).asDouble();
+			if (epsilon <= 0 || epsilon >= 1) {
+				results.add(new ValidationResult.Builder().subject(EPSILON.getDisplayName()).valid(false)
+						.explanation("EPSILON must be in (0, 1)").build());
+			}
+		} catch (NumberFormatException e) {
+			// already reported by the property validator
+		}
+		return results;
+	}
+
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) {
+		final String name = context.getProperty(SKETCH_NAME).getValue();
+		final int k = KllSketch.kForEpsilon(context.getProperty(EPSILON).asDouble());
+		try {
+			groups = context.getProperty(SKETCH_SERVICE).asControllerService(CountMinSketchService.class)
+					.getOrCreateQuantiles(name, k, context.getProperty(MAX_GROUPS).asInteger());
+		} catch (IllegalStateException | IllegalArgumentException e) {
+			throw new ProcessException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			return;
+		}
+
+		final QuantileGroups groups = this.groups;
+		final boolean grouped = context.getProperty(GROUP).isSet();
+		final List<FlowFile> success = new ArrayList<FlowFile>(flowFiles.size());
+		final List<FlowFile> failure = new ArrayList<FlowFile>();
+		for (final FlowFile flowFile : flowFiles) {
+			try {
+				final double value = context.getProperty(VALUE).evaluateAttributeExpressions(flowFile).asDouble();
+				String group = QuantileGroups.NO_GROUP;
+				if (grouped) {
+					group = context.getProperty(GROUP).evaluateAttributeExpressions(flowFile).getValue();
+					if (group == null) {
+						group = QuantileGroups.NO_GROUP;
+					}
+				}
+				final KllSketch sketch = groups.getOrCreate(group);
+				if (sketch == null) {
+					getLogger().warn("{} has a new group {} but MAX_GROUPS are tracked already",
+							new Object[] { flowFile, group });
+					failure.add(flowFile);
+					continue;
+				}
+				sketch.update(value);
+				success.add(flowFile);
+			} catch (Throwable e) {
+				getLogger().error("Ran into an error while processing {}.", new Object[] { flowFile }, e);
+				failure.add(flowFile);
+			}
+		}
+
+		session.transfer(success, REL_SUCCESS);
+		session.transfer(failure, REL_FAILURE);
+		session.adjustCounter("Quantile updates", success.size(), false);
+	}
+}
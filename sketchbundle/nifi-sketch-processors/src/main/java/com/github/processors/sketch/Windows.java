@@ -0,0 +1,109 @@
+package com.github.processors.sketch;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/*
+ * Ring of per-window counters for time-windowed sketches. Updates go to the
+ * current window; queries combine the most recent ones. When the current window
+ * ends, the oldest window is cleared and becomes the current one, so memory
+ * stays at (windows + 1) x cells. Rotation is a pointer move plus the clearing
+ * of one window, done by whichever thread notices the window has ended first;
+ * other threads never wait for it and keep writing to the window that just
+ * ended.
+ *
+ * The ring holds one spare window beyond those queries cover. The window that
+ * is cleared is therefore never the one that just ended, even with a single
+ * window, and updates still in flight to it are counted in the previous
+ * window instead of being wiped.
+ * */
+final class Windows {
+	static final LongSupplier SYSTEM_CLOCK = new LongSupplier() {
+		@Override
+		public long getAsLong() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	private final Counters[] slots;
+	// total weight added to each window
+	private final LongAdder[] weights;
+	private final long durationMillis;
+	private final ReentrantLock rotation = new ReentrantLock();
+	private final Runnable rotated;
+	private final LongSupplier clock;
+	private volatile int current;
+	private volatile long windowEnd;
+
+	/*
+	 * @param slots the windows queries cover plus the spare one
+	 * @param rotated run after every rotation, e.g. to rebuild the heavy hitters
+	 *            from the remaining windows; may be null
+	 * @param clock the time in milliseconds, normally SYSTEM_CLOCK
+	 */
+	Windows(final Counters[] slots, final long durationMillis, final Runnable rotated, final LongSupplier clock) {
+		this.slots = slots;
+		this.weights = new LongAdder[slots.length];
+		for (int i = 0; i < slots.length; i++) {
+			weights[i] = new LongAdder();
+		}
+		this.durationMillis = durationMillis;
+		this.rotated = rotated;
+		this.clock = clock;
+		this.windowEnd = clock.getAsLong() + durationMillis;
+	}
+
+	// number of windows queries cover, the spare aside
+	int size() {
+		return slots.length - 1;
+	}
+
+	long getDurationMillis() {
+		return durationMillis;
+	}
+
+	// the window updates go to, rotating first if it has ended
+	Counters current() {
+		if (clock.getAsLong() >= windowEnd) {
+			rotate();
+		}
+		return slots[current];
+	}
+
+	// the window that started age windows before the current one; call current() first
+	Counters get(final int age) {
+		return slots[Math.floorMod(current - age, slots.length)];
+	}
+
+	// weight added to the window that started age windows before the current one
+	LongAdder weight(final int age) {
+		return weights[Math.floorMod(current - age, slots.length)];
+	}
+
+	private void rotate() {
+		if (!rotation.tryLock()) {
+			return;
+		}
+		try {
+			final long now = clock.getAsLong();
+			if (now < windowEnd) {
+				return;
+			}
+			final long ended = (now - windowEnd) / durationMillis + 1;
+			for (long i = 0; i < Math.min(ended, slots.length); i++) {
+				final int next = (current + 1) % slots.length;
+				slots[next].clear();
+				weights[next].reset();
+				current = next;
+			}
+			windowEnd += ended * durationMillis;
+			if (rotated != null) {
+				// queries from here on see the new window, they do not rotate again
+				rotated.run();
+			}
+		} finally {
+			rotation.unlock();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.github.processors.sketch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counts the threads that are writing to the counters of a foldable
+ * CountMinSketch, so that fold() can wait until every write to the counters it
+ * replaced has finished before it reconciles them.
+ *
+ * A writer registers on the stripe of its thread and leaves from the same one,
+ * so a stripe never reads 0 while one of its writers is active. Stripes sit 128
+ * bytes apart, so threads on different stripes do not share a cache line.
+ * */
+final class Writers {
+	// must be a power of two
+	private static final int STRIPES = 64;
+	private static final int PAD = 16;
+
+	private final AtomicLongArray active = new AtomicLongArray(STRIPES * PAD);
+
+	// the stripe of the calling thread, pass it to enter and exit
+	int stripe() {
+		return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+	}
+
+	void enter(final int stripe) {
+		active.incrementAndGet(stripe);
+	}
+
+	void exit(final int stripe) {
+		active.decrementAndGet(stripe);
+	}
+
+	/*
+	 * Waits until every writer that entered before the call has exited. Writers
+	 * entering meanwhile must not stay, or this may not return.
+	 */
+	void drain() {
+		for (int stripe = 0; stripe < STRIPES * PAD; stripe += PAD) {
+			while (active.get(stripe) != 0) {
+				Thread.yield();
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.github.processors.sketch.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.github.processors.sketch.CountMinSketch;
+
+/*
+ * Compares the estimation error and counter memory of regular updates with
+ * conservative updates at 64, 32 and 16 bits per counter. Two streams are
+ * used: the TestFileGenerator distribution (10 uniform keys) and a Zipf(1.1)
+ * stream over 10^6 keys, which is where sketch error actually shows.
+ * */
+public class AccuracyComparison {
+	private static final int WIDTH = 2719;
+	private static final int DEPTH = 5;
+
+	public static void main(String[] args) {
+		final Random r = new Random(42);
+
+		final String[] uniform = new String[10000000];
+		for (int i = 0; i < uniform.length; i++) {
+			uniform[i] = "10.0.0." + r.nextInt(10);
+		}
+		compare("TestFileGenerator, 10 keys", uniform);
+
+		final String[] zipf = new String[10000000];
+		final double[] cdf = zipfCdf(1000000, 1.1);
+		for (int i = 0; i < zipf.length; i++) {
+			zipf[i] = "key-" + rank(cdf, r.nextDouble());
+		}
+		compare("Zipf(1.1), 10^6 keys", zipf);
+	}
+
+	private static void compare(final String title, final String[] stream) {
+		final Map<String, Long> exact = new HashMap<String, Long>();
+		for (String key : stream) {
+			final Long count = exact.get(key);
+			exact.put(key, count == null ? 1L : count + 1);
+		}
+		System.out.println(title + ", " + stream.length + " updates, " + WIDTH + " x " + DEPTH);
+		System.out.println("variant\t\tmemory\tmean error\tmax error\tmax under");
+		run("64 bit", stream, exact, 64, false);
+		run("64 bit cons.", stream, exact, 64, true);
+		run("32 bit cons.", stream, exact, 32, true);
+		run("16 bit cons.", stream, exact, 16, true);
+		System.out.println();
+	}
+
+	private static void run(final String name, final String[] stream, final Map<String, Long> exact,
+			final int bits, final boolean conservative) {
+		final CountMinSketch cms = new CountMinSketch.Builder().dimensions(WIDTH, DEPTH).counterBits(bits)
+				.conservative(conservative).build();
+		for (String key : stream) {
+			cms.update(key);
+		}
+		double sum = 0;
+		long max = 0;
+		// saturated 16 bit counters report less than the true count
+		long under = 0;
+		for (Map.Entry<String, Long> e : exact.entrySet()) {
+			final long error = cms.getEstimatedCount(e.getKey()) - e.getValue();
+			sum += Math.max(error, 0);
+			max = Math.max(max, error);
+			under = Math.max(under, -error);
+		}
+		System.out.printf("%s\t%d\t%.2f\t\t%d\t\t%d%n", name, cms.getMemoryBytes(), sum / exact.size(), max, under);
+	}
+
+	private static double[] zipfCdf(final int n, final double s) {
+		final double[] cdf = new double[n];
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			total += 1 / Math.pow(i + 1, s);
+			cdf[i] = total;
+		}
+		for (int i = 0; i < n; i++) {
+			cdf[i] /= total;
+		}
+		return cdf;
+	}
+
+	private static int rank(final double[] cdf, final double u) {
+		int lo = 0;
+		int hi = cdf.length - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (cdf[mid] < u) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
@@ -1,7 +1,8 @@
 package com.github.processors.sketch.test;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Scanner;
 
 import com.github.processors.sketch.CountMinSketch;
@@ -11,18 +12,28 @@ public class CMSTest {
 	public static final String fileName = "testData.txt";
 	public static final String filePath = "src/main/resources";
 
-	public static void main(String[] args) throws FileNotFoundException {
-		CountMinSketch.createInstance(SketchConstants.DEFAULT_DELTA, SketchConstants.DEFAULT_EPSILON);
-		CountMinSketch c = CountMinSketch.getInstance();
+	public static void main(String[] args) throws IOException {
+		File file = new File(System.getProperty("user.dir") + File.separator + filePath + File.separator + fileName);
+		CountMinSketch scanned = new CountMinSketch.Builder()
+				.accuracy(SketchConstants.DEFAULT_DELTA, SketchConstants.DEFAULT_EPSILON).build();
 
-		Scanner scan = new Scanner(
-				new File(System.getProperty("user.dir") + File.separator + filePath + File.separator + fileName));
+		long start = System.nanoTime();
+		Scanner scan = new Scanner(file);
 		while (scan.hasNextLine()) {
 			String ip = scan.nextLine();
 			if (null != ip && !ip.equals("")) {
-				c.update(ip);
+				scanned.update(ip);
 			}
 		}
+		System.out.println("Scanner: " + (System.nanoTime() - start) / 1000000 + " ms");
+
+		// the same counts, memory-mapped and parsed on all cores
+		CountMinSketch c = new CountMinSketch.Builder()
+				.accuracy(SketchConstants.DEFAULT_DELTA, SketchConstants.DEFAULT_EPSILON).build();
+		start = System.nanoTime();
+		long lines = c.bulkLoad(file.toPath());
+		System.out.println("bulkLoad: " + lines + " lines in " + (System.nanoTime() - start) / 1000000 + " ms, same counts: "
+				+ Arrays.equals(scanned.getCounts(), c.getCounts()));
 		/*
 		 * c.update("hello"); c.update("world"); c.update("we"); c.update("hello");
 		 */
@@ -0,0 +1,61 @@
+package com.github.processors.sketch.test;
+
+import java.util.Random;
+
+import com.github.processors.sketch.CountMinSketch;
+
+/*
+ * Compares update and query cost of the storage backends for widths 10^5 to
+ * 10^7 at depth 5. Keys are pre-hashed and uniformly spread so the numbers
+ * reflect memory access rather than hashing. Run with e.g. -Xmx2g.
+ * */
+public class StorageBenchmark {
+	private static final int DEPTH = 5;
+	private static final int OPERATIONS = 20000000;
+	private static final int ROUNDS = 3;
+	// keeps the JIT from dropping the query loop
+	static volatile long blackhole;
+
+	public static void main(String[] args) {
+		final Random r = new Random(42);
+		final long[] hashes = new long[1 << 20];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = r.nextLong();
+		}
+
+		System.out.println("width\tstorage\tlayout\tupdate ns/op\tquery ns/op");
+		for (int width = 100000; width <= 10000000; width *= 10) {
+			run(width, CountMinSketch.Storage.HEAP, CountMinSketch.Layout.ROWS, hashes);
+			run(width, CountMinSketch.Storage.OFF_HEAP, CountMinSketch.Layout.ROWS, hashes);
+			run(width, CountMinSketch.Storage.HEAP, CountMinSketch.Layout.BLOCKED, hashes);
+			run(width, CountMinSketch.Storage.OFF_HEAP, CountMinSketch.Layout.BLOCKED, hashes);
+		}
+	}
+
+	private static void run(final int width, final CountMinSketch.Storage storage,
+			final CountMinSketch.Layout layout, final long[] hashes) {
+		final CountMinSketch c = new CountMinSketch.Builder().dimensions(width, DEPTH).storage(storage).layout(layout)
+				.build();
+		final int mask = hashes.length - 1;
+		long update = Long.MAX_VALUE;
+		long query = Long.MAX_VALUE;
+		long sink = 0;
+		// keep the best round, the first ones include JIT warm up
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < OPERATIONS; i++) {
+				c.update(hashes[i & mask], 1);
+			}
+			update = Math.min(update, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < OPERATIONS; i++) {
+				sink += c.getEstimatedCount(hashes[i & mask]);
+			}
+			query = Math.min(query, System.nanoTime() - start);
+		}
+		blackhole = sink;
+		System.out.println(width + "\t" + storage + "\t" + layout + "\t" + String.format("%.1f", (double) update / OPERATIONS)
+				+ "\t" + String.format("%.1f", (double) query / OPERATIONS));
+	}
+}
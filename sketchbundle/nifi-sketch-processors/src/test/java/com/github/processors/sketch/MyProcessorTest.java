@@ -16,6 +16,30 @@
  */
 package com.github.processors.sketch;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
@@ -27,8 +51,11 @@ public class MyProcessorTest {
     private TestRunner testRunner;
 
     @Before
-    public void init() {
+    public void init() throws InitializationException {
         testRunner = TestRunners.newTestRunner(UpdateCMS.class);
+        testRunner.addControllerService("cms", new StandardCountMinSketchService());
+        testRunner.enableControllerService(testRunner.getControllerService("cms"));
+        testRunner.setProperty(UpdateCMS.SKETCH_SERVICE, "cms");
     }
 
     @Test
@@ -36,4 +63,913 @@ public class MyProcessorTest {
 
     }
 
+    @Test
+    public void testBatchSize() {
+        testRunner.setProperty(UpdateCMS.KEY, "${ip}");
+        testRunner.setProperty(UpdateCMS.BATCH_SIZE, "100");
+        for (int i = 0; i < 250; i++) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("ip", "10.0.0." + (i % 10));
+            testRunner.enqueue(new byte[0], attributes);
+        }
+
+        testRunner.run(1);
+        testRunner.assertAllFlowFilesTransferred(UpdateCMS.REL_SUCCESS, 100);
+        testRunner.assertQueueNotEmpty();
+
+        testRunner.run(2);
+        testRunner.assertAllFlowFilesTransferred(UpdateCMS.REL_SUCCESS, 250);
+        testRunner.assertQueueEmpty();
+    }
+
+
+    @Test
+    public void testBatchWithRejectedValue() {
+        testRunner.setProperty(UpdateCMS.KEY, "${ip}");
+        testRunner.setProperty(UpdateCMS.VALUE, "${bytes}");
+        testRunner.setProperty(UpdateCMS.CONSERVATIVE_UPDATE, "true");
+        final String[] bytes = { "5", "-3", "2" };
+        for (String value : bytes) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("ip", "10.0.0.1");
+            attributes.put("bytes", value);
+            testRunner.enqueue(new byte[0], attributes);
+        }
+        testRunner.run();
+        // only the negative value fails, before anything of it is counted
+        testRunner.assertTransferCount(UpdateCMS.REL_SUCCESS, 2);
+        testRunner.assertTransferCount(UpdateCMS.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(UpdateCMS.REL_FAILURE).get(0).assertAttributeEquals("bytes", "-3");
+        final CountMinSketch cms = testRunner.getControllerService("cms", CountMinSketchService.class)
+                .getSketch(SketchConstants.DEFAULT_SKETCH_NAME);
+        assertEquals(7, cms.getEstimatedCount("10.0.0.1"));
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws InterruptedException {
+        final CountMinSketch cms = new CountMinSketch.Builder().dimensions(1000, 3).build();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50000; i++) {
+                        cms.update("10.0.0.1", 1);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8 * 50000, cms.getEstimatedCount("10.0.0.1"));
+        assertEquals(8 * 50000, cms.getTotalCount());
+
+        testRunner.setProperty(UpdateCMS.KEY, "${ip}");
+        testRunner.setProperty(UpdateCMS.BATCH_SIZE, "10");
+        testRunner.setThreadCount(4);
+        for (int i = 0; i < 1000; i++) {
+            testRunner.enqueue(new byte[0], Collections.singletonMap("ip", "10.0.0.1"));
+        }
+        testRunner.run(100);
+        testRunner.assertAllFlowFilesTransferred(UpdateCMS.REL_SUCCESS, 1000);
+        final CountMinSketch shared = testRunner.getControllerService("cms", CountMinSketchService.class)
+                .getSketch(SketchConstants.DEFAULT_SKETCH_NAME);
+        assertEquals(1000, shared.getEstimatedCount("10.0.0.1"));
+    }
+
+    @Test
+    public void testNamedSketches() {
+        final CountMinSketchService service = testRunner.getControllerService("cms", CountMinSketchService.class);
+        final CountMinSketch a = service.getOrCreateSketch("a", new CountMinSketch.Builder().dimensions(100, 3));
+        final CountMinSketch b = service.getOrCreateSketch("b", new CountMinSketch.Builder().dimensions(200, 4));
+        a.update("10.0.0.1", 5);
+
+        assertEquals(5, a.getEstimatedCount("10.0.0.1"));
+        assertEquals(0, b.getEstimatedCount("10.0.0.1"));
+        assertSame(a, service.getOrCreateSketch("a", new CountMinSketch.Builder().dimensions(100, 3)));
+
+        final CountMinSketch resized = service.getOrCreateSketch("a", new CountMinSketch.Builder().dimensions(300, 3));
+        assertNotSame(a, resized);
+        assertEquals(300, resized.getWidth());
+        assertEquals(0, resized.getEstimatedCount("10.0.0.1"));
+    }
+
+    @Test
+    public void testLinesMode() {
+        testRunner.setProperty(UpdateCMS.MODE, UpdateCMS.MODE_LINES);
+        testRunner.setProperty(UpdateCMS.VALUE_DELIMITER, ",");
+        testRunner.enqueue("10.0.0.1,2\r\n10.0.0.2,3\n\n10.0.0.1,4".getBytes());
+
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(UpdateCMS.REL_SUCCESS, 1);
+        testRunner.getFlowFilesForRelationship(UpdateCMS.REL_SUCCESS).get(0).assertAttributeEquals("cms.lines", "3");
+
+        final CountMinSketch cms = testRunner.getControllerService("cms", CountMinSketchService.class)
+                .getSketch(SketchConstants.DEFAULT_SKETCH_NAME);
+        assertEquals(6, cms.getEstimatedCount("10.0.0.1"));
+        assertEquals(3, cms.getEstimatedCount("10.0.0.2"));
+    }
+
+    @Test
+    public void testConservativeShortCounters() {
+        final CountMinSketch cms = new CountMinSketch.Builder().dimensions(1, 2).counterBits(16).conservative(true)
+                .build();
+        cms.update("a", 3);
+        cms.update("b", 70000);
+
+        assertEquals(65535, cms.getEstimatedCount("b"));
+        assertEquals(65535, cms.getEstimatedCount("a"));
+        assertEquals(4, cms.getMemoryBytes());
+    }
+
+    // Guava's Hashing.murmur3_128(seed).hashBytes(key.getBytes(UTF_8)).asLong(), lengths 0 to 17 cover every tail
+    private static final Object[][] MURMUR3_VECTORS = {
+            { "", 0, 0L },
+            { "a", 0, 0x85555565f6597889L },
+            { "ab", 0, 0x938b11ea16ed1b2eL },
+            { "abc", 0, 0xb4963f3f3fad7867L },
+            { "abcd", 0, 0xb87bb7d64656cd4fL },
+            { "abcde", 0, 0x2036d091f496bbb8L },
+            { "abcdef", 0, 0xe47d86bfaca3bf55L },
+            { "abcdefg", 0, 0xa6cd2f9fc09ee499L },
+            { "abcdefgh", 0, 0xcc8a0ab037ef8c02L },
+            { "abcdefghi", 0, 0x547c0cff13c7964L },
+            { "abcdefghij", 0, 0xb6c15b0d772f8c99L },
+            { "abcdefghijk", 0, 0xa895d0b8df789d02L },
+            { "abcdefghijkl", 0, 0x8ef39bb1e67ae194L },
+            { "abcdefghijklm", 0, 0x1648288da7c0fa73L },
+            { "abcdefghijklmn", 0, 0x91d094a7f5c375e0L },
+            { "abcdefghijklmno", 0, 0x8abe2451890c2ffbL },
+            { "abcdefghijklmnop", 0, 0xc4ca3ca3224cb723L },
+            { "abcdefghijklmnopq", 0, 0x7564747f88bda657L },
+            { "\u00e9", 0, 0xc9187aa411d463e8L },
+            { "caf\u00e9 na\u00efve", 0, 0x28f319203325f970L },
+            { "\u65e5\u672c\u8a9e\u30c6\u30ad\u30b9\u30c8", 0, 0x3c9a4dd378be85f0L },
+            { "\ud83d\ude00", 0, 0x156db15587e0545cL },
+            { "key \ud83d\ude00 with emoji", 0, 0x3a93355bbdc368afL },
+            { "lone \ud800 surrogate", 0, 0x605ddbe66ec3aac2L },
+            { "\udc00", 0, 0x829dceeca05c2becL },
+            { "", 42, 0xf02aa77dfa1b8523L },
+            { "a", 42, 0x28259ca4fdf626b0L },
+            { "ab", 42, 0xd480f219e4238825L },
+            { "abc", 42, 0xd85089fb3cff7d6L },
+            { "abcd", 42, 0xd65edb4fcecf3877L },
+            { "abcde", 42, 0xa0aaf3ec28f50706L },
+            { "abcdef", 42, 0x601f629e2473ebc1L },
+            { "abcdefg", 42, 0xbe9ac46bc7c60d5cL },
+            { "abcdefgh", 42, 0xd2612e90f4c70802L },
+            { "abcdefghi", 42, 0xbebe8e2071f97bf6L },
+            { "abcdefghij", 42, 0x4ddda4397ad01528L },
+            { "abcdefghijk", 42, 0x683b2e140e34b903L },
+            { "abcdefghijkl", 42, 0xf47c68fdc38d89b7L },
+            { "abcdefghijklm", 42, 0x53655ea35b0e625bL },
+            { "abcdefghijklmn", 42, 0xcdc8d87a917c73f9L },
+            { "abcdefghijklmno", 42, 0xdb978c5565c9bd15L },
+            { "abcdefghijklmnop", 42, 0x13c4ef9eb92b10cL },
+            { "abcdefghijklmnopq", 42, 0xb7da3a48ab3b5413L },
+            { "\u00e9", 42, 0x3263b6e63ec6caf5L },
+            { "caf\u00e9 na\u00efve", 42, 0xe68aa977393b013L },
+            { "\u65e5\u672c\u8a9e\u30c6\u30ad\u30b9\u30c8", 42, 0xbe15a82073221bb5L },
+            { "\ud83d\ude00", 42, 0xb55813697fac9fdbL },
+            { "key \ud83d\ude00 with emoji", 42, 0xcd5f4119d79e88dbL },
+            { "lone \ud800 surrogate", 42, 0x2d43476ef37d84f0L },
+            { "\udc00", 42, 0x920473a91a4265c4L }
+    };
+
+    @Test
+    public void testMurmur3Vectors() {
+        for (Object[] vector : MURMUR3_VECTORS) {
+            final String key = (String) vector[0];
+            final int seed = (Integer) vector[1];
+            final long expected = (Long) vector[2];
+            final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 1).order(ByteOrder.LITTLE_ENDIAN);
+            direct.position(1);
+            direct.put(bytes);
+            assertEquals(key, expected, Murmur3.hash64(key, seed));
+            assertEquals(key, expected, Murmur3.hash64(bytes, seed));
+            assertEquals(key, expected, Murmur3.hash64(direct, 1, bytes.length, seed));
+            assertEquals(key, expected, Murmur3.hash64(ByteBuffer.wrap(bytes), 0, bytes.length, seed));
+        }
+    }
+
+    @Test
+    public void testMergeSketches() throws InitializationException, IOException {
+        final CountMinSketch node1 = new CountMinSketch.Builder().dimensions(1000, 3).build();
+        final CountMinSketch node2 = new CountMinSketch.Builder().dimensions(1000, 3).build();
+        node1.update("10.0.0.1", 2);
+        node2.update("10.0.0.1", 3);
+        final ByteArrayOutputStream export1 = new ByteArrayOutputStream();
+        final ByteArrayOutputStream export2 = new ByteArrayOutputStream();
+        SketchCodec.write(export1, node1, node1.getCounts(), false);
+        SketchCodec.write(export2, node2, node2.getCounts(), false);
+
+        final TestRunner merge = TestRunners.newTestRunner(MergeCMS.class);
+        merge.addControllerService("cms", new StandardCountMinSketchService());
+        merge.enableControllerService(merge.getControllerService("cms"));
+        merge.setProperty(MergeCMS.SKETCH_SERVICE, "cms");
+        merge.enqueue(export1.toByteArray());
+        merge.enqueue(export2.toByteArray());
+        merge.enqueue("not a sketch".getBytes());
+
+        merge.run();
+        merge.assertTransferCount(MergeCMS.REL_SUCCESS, 2);
+        merge.assertTransferCount(MergeCMS.REL_FAILURE, 1);
+        final CountMinSketch global = merge.getControllerService("cms", CountMinSketchService.class)
+                .getSketch(SketchConstants.DEFAULT_SKETCH_NAME);
+        assertEquals(5, global.getEstimatedCount("10.0.0.1"));
+    }
+
+    @Test
+    public void testDimensions() {
+        testRunner.setProperty("src", "${src}");
+        testRunner.setProperty("pair", "${src}, ${dst}");
+        testRunner.setProperty(UpdateCMS.WIDTH, "1000");
+        testRunner.setProperty(UpdateCMS.DEPTH, "3");
+        for (int i = 0; i < 3; i++) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("src", "10.0.0.1");
+            attributes.put("dst", "10.0.0." + (i % 2 + 2));
+            testRunner.enqueue(new byte[0], attributes);
+        }
+
+        testRunner.run();
+        testRunner.assertAllFlowFilesTransferred(UpdateCMS.REL_SUCCESS, 3);
+        final CountMinSketchService service = testRunner.getControllerService("cms", CountMinSketchService.class);
+        assertEquals(3, service.getSketch("src").getEstimatedCount("10.0.0.1"));
+        final CountMinSketch pair = service.getSketch("pair");
+        assertEquals(2, pair.getEstimatedCount(Murmur3.combine(pair.hash("10.0.0.1"), pair.hash("10.0.0.2"))));
+        assertEquals(null, service.getSketch(SketchConstants.DEFAULT_SKETCH_NAME));
+    }
+
+    @Test
+    public void testRangeCount() {
+        final CountMinSketch cms = new CountMinSketch.Builder().dimensions(1000, 3).ranges(32).build();
+        cms.update("10.0.0.1", 2);
+        cms.update("10.0.0.255", 3);
+        cms.update("10.0.1.0", 4);
+        cms.update("not an address", 5);
+
+        final long[] prefix = DyadicSketch.parseRange("10.0.0.0/24");
+        assertEquals(5, cms.getRangeCount(prefix[0], prefix[1]));
+        final long[] range = DyadicSketch.parseRange("10.0.0.2-10.0.1.0");
+        assertEquals(7, cms.getRangeCount(range[0], range[1]));
+        assertEquals(9, cms.getRangeCount(0, (1L << 32) - 1));
+    }
+
+    @Test
+    public void testBulkLoad() throws IOException {
+        final StringBuilder lines = new StringBuilder();
+        final CountMinSketch expected = new CountMinSketch.Builder().dimensions(1000, 3).build();
+        for (int i = 0; i < 10000; i++) {
+            final String key = "10.0.0." + (i % 97);
+            lines.append(key).append(',').append(i % 5).append(i % 3 == 0 ? "\r\n" : "\n");
+            expected.update(key, i % 5);
+        }
+        final Path file = Files.createTempFile("bulk", ".txt");
+        try {
+            Files.write(file, lines.toString().getBytes(StandardCharsets.UTF_8));
+            final CountMinSketch cms = new CountMinSketch.Builder().dimensions(1000, 3).build();
+            assertEquals(10000, cms.bulkLoad(file, ',', 2));
+            assertArrayEquals(expected.getCounts(), cms.getCounts());
+            assertEquals(expected.getTotalCount(), cms.getTotalCount());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testHyperLogLog() throws InitializationException {
+        final TestRunner update = TestRunners.newTestRunner(UpdateHLL.class);
+        update.addControllerService("cms", new StandardCountMinSketchService());
+        update.enableControllerService(update.getControllerService("cms"));
+        update.setProperty(UpdateHLL.SKETCH_SERVICE, "cms");
+        update.setProperty(UpdateHLL.KEY, "${ip}");
+        for (int i = 0; i < 1000; i++) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("ip", "10.0." + (i % 300) / 256 + "." + (i % 300) % 256);
+            update.enqueue(new byte[0], attributes);
+        }
+        update.run(10);
+        update.assertAllFlowFilesTransferred(UpdateHLL.REL_SUCCESS, 1000);
+        final HyperLogLog hll = update.getControllerService("cms", CountMinSketchService.class)
+                .getHyperLogLog(SketchConstants.DEFAULT_SKETCH_NAME);
+        assertEquals(300, hll.cardinality());
+
+        final TestRunner get = TestRunners.newTestRunner(GetHLL.class);
+        get.addControllerService("cms", new StandardCountMinSketchService());
+        get.enableControllerService(get.getControllerService("cms"));
+        get.setProperty(GetHLL.SKETCH_SERVICE, "cms");
+        get.setProperty(GetHLL.SKETCH_NAME, "a, b");
+        final CountMinSketchService service = get.getControllerService("cms", CountMinSketchService.class);
+        final HyperLogLog a = service.getOrCreateHyperLogLog("a", 14, 0);
+        final HyperLogLog b = service.getOrCreateHyperLogLog("b", 14, 0);
+        for (int i = 0; i < 100; i++) {
+            a.add("key" + i);
+            b.add("key" + (i + 50));
+        }
+        get.enqueue(new byte[0]);
+        get.run();
+        get.assertAllFlowFilesTransferred(GetHLL.REL_SUCCESS, 1);
+        get.getFlowFilesForRelationship(GetHLL.REL_SUCCESS).get(0).assertAttributeEquals(GetHLL.COUNT_ATTRIBUTE, "150");
+    }
+
+    @Test
+    public void testQuantiles() throws InitializationException {
+        final TestRunner update = TestRunners.newTestRunner(UpdateQuantiles.class);
+        update.addControllerService("cms", new StandardCountMinSketchService());
+        update.enableControllerService(update.getControllerService("cms"));
+        update.setProperty(UpdateQuantiles.SKETCH_SERVICE, "cms");
+        update.setProperty(UpdateQuantiles.VALUE, "${latency}");
+        update.setProperty(UpdateQuantiles.GROUP, "${method}");
+        for (int i = 1; i <= 1000; i++) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("latency", i % 2 == 0 ? String.valueOf(i) : "n/a");
+            attributes.put("method", "GET");
+            update.enqueue(new byte[0], attributes);
+        }
+        update.run(10);
+        update.assertTransferCount(UpdateQuantiles.REL_SUCCESS, 500);
+        update.assertTransferCount(UpdateQuantiles.REL_FAILURE, 500);
+        final KllSketch sketch = update.getControllerService("cms", CountMinSketchService.class)
+                .getQuantiles(SketchConstants.DEFAULT_SKETCH_NAME).get("GET");
+        assertEquals(500, sketch.getN());
+        assertEquals(500, sketch.getQuantile(0.5), 20);
+
+        final TestRunner get = TestRunners.newTestRunner(GetQuantiles.class);
+        get.addControllerService("cms", new StandardCountMinSketchService());
+        get.enableControllerService(get.getControllerService("cms"));
+        get.setProperty(GetQuantiles.SKETCH_SERVICE, "cms");
+        get.setProperty(GetQuantiles.SKETCH_NAME, "node1, node2");
+        get.setProperty(GetQuantiles.QUANTILES, "0, 0.5, 1");
+        final CountMinSketchService service = get.getControllerService("cms", CountMinSketchService.class);
+        for (int i = 0; i < 100; i++) {
+            service.getOrCreateQuantiles(i < 50 ? "node1" : "node2", 200, 1).getOrCreate(QuantileGroups.NO_GROUP)
+                    .update(i);
+        }
+        get.enqueue(new byte[0]);
+        get.run();
+        get.assertAllFlowFilesTransferred(GetQuantiles.REL_SUCCESS, 1);
+        final MockFlowFile result = get.getFlowFilesForRelationship(GetQuantiles.REL_SUCCESS).get(0);
+        result.assertAttributeEquals(GetQuantiles.COUNT_ATTRIBUTE, "100");
+        result.assertAttributeEquals("quantile.0", "0.0");
+        result.assertAttributeEquals("quantile.0.5", "49.0");
+        result.assertAttributeEquals("quantile.1", "99.0");
+    }
+
+    @Test
+    public void testDetectDuplicateSketch() throws InitializationException {
+        final TestRunner dedupe = TestRunners.newTestRunner(DetectDuplicateSketch.class);
+        dedupe.addControllerService("cms", new StandardCountMinSketchService());
+        dedupe.enableControllerService(dedupe.getControllerService("cms"));
+        dedupe.setProperty(DetectDuplicateSketch.SKETCH_SERVICE, "cms");
+        dedupe.setProperty(DetectDuplicateSketch.KEY, "${event.id}");
+        dedupe.setProperty(DetectDuplicateSketch.EXPECTED_ITEMS, "1000");
+        for (int i = 0; i < 300; i++) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("event.id", String.valueOf(i % 100));
+            dedupe.enqueue(new byte[0], attributes);
+        }
+        dedupe.run(3);
+        dedupe.assertTransferCount(DetectDuplicateSketch.REL_NON_DUPLICATE, 100);
+        dedupe.assertTransferCount(DetectDuplicateSketch.REL_DUPLICATE, 200);
+    }
+
+    @Test
+    public void testBatchQuery() throws InitializationException {
+        final TestRunner get = TestRunners.newTestRunner(GetCMS.class);
+        get.addControllerService("cms", new StandardCountMinSketchService());
+        get.enableControllerService(get.getControllerService("cms"));
+        get.setProperty(GetCMS.SKETCH_SERVICE, "cms");
+        get.setProperty(GetCMS.MODE, GetCMS.MODE_LINES);
+        final CountMinSketch cms = get.getControllerService("cms", CountMinSketchService.class)
+                .getOrCreateSketch(SketchConstants.DEFAULT_SKETCH_NAME, new CountMinSketch.Builder());
+        cms.update("10.0.0.1", 3);
+        cms.update("a\"b", 2);
+        get.enqueue("10.0.0.1\r\na\"b\n\n10.0.0.2".getBytes(StandardCharsets.UTF_8));
+        get.run();
+        get.assertAllFlowFilesTransferred(GetCMS.REL_SUCCESS, 1);
+        MockFlowFile result = get.getFlowFilesForRelationship(GetCMS.REL_SUCCESS).get(0);
+        result.assertContentEquals("key,count\n10.0.0.1,3\n\"a\"\"b\",2\n10.0.0.2,0\n");
+        result.assertAttributeEquals("cms.keys", "3");
+
+        get.clearTransferState();
+        get.setProperty(GetCMS.OUTPUT_FORMAT, GetCMS.FORMAT_JSON);
+        get.enqueue("a\"b".getBytes(StandardCharsets.UTF_8));
+        get.run();
+        result = get.getFlowFilesForRelationship(GetCMS.REL_SUCCESS).get(0);
+        result.assertContentEquals("{\"sketch\":\"default\",\"counts\":[{\"key\":\"a\\\"b\",\"count\":2}]}");
+        result.assertAttributeEquals("mime.type", "application/json");
+    }
+
+    @Test
+    public void testBatchQueryMissingKey() throws InitializationException {
+        final TestRunner get = TestRunners.newTestRunner(GetCMS.class);
+        get.addControllerService("cms", new StandardCountMinSketchService());
+        get.enableControllerService(get.getControllerService("cms"));
+        get.setProperty(GetCMS.SKETCH_SERVICE, "cms");
+        get.setProperty(GetCMS.KEY, "${ip}");
+        get.getControllerService("cms", CountMinSketchService.class)
+                .getOrCreateSketch(SketchConstants.DEFAULT_SKETCH_NAME, new CountMinSketch.Builder())
+                .update("10.0.0.1", 3);
+        get.enqueue(new byte[0], Collections.singletonMap("ip", "10.0.0.1"));
+        get.enqueue(new byte[0]);
+        get.enqueue(new byte[0], Collections.singletonMap("ip", "10.0.0.2"));
+        get.run();
+        // only the FlowFile without a key fails, the rest of the batch is answered
+        get.assertTransferCount(GetCMS.REL_SUCCESS, 2);
+        get.assertTransferCount(GetCMS.REL_FAILURE, 1);
+        get.getFlowFilesForRelationship(GetCMS.REL_SUCCESS).get(0).assertAttributeEquals("10.0.0.1", "3");
+        get.getFlowFilesForRelationship(GetCMS.REL_SUCCESS).get(1).assertAttributeEquals("10.0.0.2", "0");
+        get.getFlowFilesForRelationship(GetCMS.REL_FAILURE).get(0).assertAttributeNotExists("10.0.0.1");
+    }
+
+    @Test
+    public void testHeavyHitters() {
+        // key i occurs 1000 / (i + 1) times, interleaved as in a stream
+        final CountMinSketch cms = new CountMinSketch.Builder().dimensions(1 << 12, 3).topK(3).build();
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (round < 1000 / (i + 1)) {
+                    cms.update("10.0.0." + i, 1);
+                }
+            }
+        }
+        final List<Map.Entry<String, Long>> top = cms.getHeavyHitters().getTop();
+        assertEquals(3, top.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("10.0.0." + i, top.get(i).getKey());
+            assertEquals(cms.getEstimatedCount("10.0.0." + i), (long) top.get(i).getValue());
+            assertTrue(top.get(i).getValue() >= 1000 / (i + 1));
+        }
+
+        final HeavyHitters heavyHitters = new HeavyHitters(2);
+        heavyHitters.offer("a", 1, 5);
+        heavyHitters.offer("b", 2, 3);
+        // not above the smallest tracked count
+        heavyHitters.offer("c", 3, 3);
+        assertEquals("[a=5, b=3]", heavyHitters.getTop().toString());
+        // evicts the smallest
+        heavyHitters.offer("c", 3, 4);
+        assertEquals("[a=5, c=4]", heavyHitters.getTop().toString());
+        // tracked keys are updated in place
+        heavyHitters.offer("c", 3, 6);
+        assertEquals("[c=6, a=5]", heavyHitters.getTop().toString());
+        heavyHitters.offer("b", 2, 5);
+        assertEquals("[c=6, a=5]", heavyHitters.getTop().toString());
+    }
+
+    @Test
+    public void testConcurrentHeavyHitters() throws InterruptedException {
+        // every thread sends the same skewed stream, the hot keys are offered from all of them at once
+        final CountMinSketch cms = new CountMinSketch.Builder().dimensions(1 << 12, 3).topK(3).build();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < 1000; round++) {
+                        for (int i = 0; i < 50; i++) {
+                            if (round < 1000 / (i + 1)) {
+                                cms.update("10.0.0." + i, 1);
+                            }
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final List<Map.Entry<String, Long>> top = cms.getHeavyHitters().getTop();
+        assertEquals(3, top.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("10.0.0." + i, top.get(i).getKey());
+            // the highest estimate offered, which the last update of the key need not have seen
+            assertTrue(top.get(i).getValue() <= cms.getEstimatedCount("10.0.0." + i));
+            assertTrue(top.get(i).getValue() > 4 * 1000 / (i + 2));
+        }
+    }
+
+    @Test
+    public void testGetTopK() throws InitializationException {
+        final TestRunner get = TestRunners.newTestRunner(GetTopK.class);
+        get.addControllerService("cms", new StandardCountMinSketchService());
+        get.enableControllerService(get.getControllerService("cms"));
+        get.setProperty(GetTopK.SKETCH_SERVICE, "cms");
+        final CountMinSketchService service = get.getControllerService("cms", CountMinSketchService.class);
+        final CountMinSketch cms = service.getOrCreateSketch(SketchConstants.DEFAULT_SKETCH_NAME,
+                new CountMinSketch.Builder().topK(2));
+        cms.update("10.0.0.1", 3);
+        cms.update("a\"b", 2);
+        cms.update("10.0.0.2", 1);
+        get.enqueue(new byte[0]);
+        get.run();
+        get.assertAllFlowFilesTransferred(GetTopK.REL_SUCCESS, 1);
+        MockFlowFile result = get.getFlowFilesForRelationship(GetTopK.REL_SUCCESS).get(0);
+        result.assertContentEquals("{\"sketch\":\"default\",\"topK\":[{\"key\":\"10.0.0.1\",\"count\":3},"
+                + "{\"key\":\"a\\\"b\",\"count\":2}]}");
+        result.assertAttributeEquals("mime.type", "application/json");
+
+        get.clearTransferState();
+        get.setProperty(GetTopK.COUNT, "1");
+        get.enqueue(new byte[0]);
+        get.run();
+        result = get.getFlowFilesForRelationship(GetTopK.REL_SUCCESS).get(0);
+        result.assertContentEquals("{\"sketch\":\"default\",\"topK\":[{\"key\":\"10.0.0.1\",\"count\":3}]}");
+
+        // a sketch without heavy hitters
+        get.clearTransferState();
+        service.getOrCreateSketch("plain", new CountMinSketch.Builder());
+        get.setProperty(GetTopK.SKETCH_NAME, "plain");
+        get.enqueue(new byte[0]);
+        get.run();
+        get.assertAllFlowFilesTransferred(GetTopK.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testAsyncUpdates() {
+        testRunner.setProperty(UpdateCMS.KEY, "${ip}");
+        testRunner.setProperty(UpdateCMS.TOP_K, "3");
+        testRunner.setProperty(UpdateCMS.ASYNC_BUFFER_SIZE, "1024");
+        testRunner.setProperty(UpdateCMS.BATCH_SIZE, "100");
+        testRunner.setProperty("dst", "${port}");
+        for (int i = 0; i < 3000; i++) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("ip", "10.0.0." + (i % 10));
+            attributes.put("port", i % 2 == 0 ? "80" : "443");
+            testRunner.enqueue(new byte[0], attributes);
+        }
+        testRunner.setThreadCount(4);
+        // stopping drains the buffer
+        testRunner.run(30);
+        testRunner.assertAllFlowFilesTransferred(UpdateCMS.REL_SUCCESS, 3000);
+        final CountMinSketchService service = testRunner.getControllerService("cms", CountMinSketchService.class);
+        final CountMinSketch cms = service.getSketch(SketchConstants.DEFAULT_SKETCH_NAME);
+        assertEquals(3000, cms.getTotalCount());
+        assertEquals(300, cms.getEstimatedCount("10.0.0.7"));
+        assertEquals(1500, service.getSketch("dst").getEstimatedCount("443"));
+    }
+
+    @Test
+    public void testPreAggregation() {
+        testRunner.setProperty(UpdateCMS.KEY, "${ip}");
+        testRunner.setProperty(UpdateCMS.PRE_AGGREGATE_KEYS, "64");
+        testRunner.setProperty(UpdateCMS.PRE_AGGREGATE_INTERVAL, "1 hour");
+        for (int i = 0; i < 1000; i++) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("ip", "10.0.0." + (i % 10));
+            testRunner.enqueue(new byte[0], attributes);
+        }
+        testRunner.run(10);
+        testRunner.assertAllFlowFilesTransferred(UpdateCMS.REL_SUCCESS, 1000);
+        final CountMinSketch cms = testRunner.getControllerService("cms", CountMinSketchService.class)
+                .getSketch(SketchConstants.DEFAULT_SKETCH_NAME);
+        assertEquals(64, cms.getPreAggregatedKeys());
+        // the sums are still pending, estimates include them
+        assertEquals(100, cms.getEstimatedCount("10.0.0.3"));
+        long sum = 0;
+        for (long count : cms.getCounts()) {
+            sum += count;
+        }
+        assertEquals(1000 * cms.getDepth(), sum);
+        assertEquals(100, cms.getEstimatedCount("10.0.0.3"));
+    }
+
+    @Test
+    public void testAutoFold() {
+        testRunner.setProperty(UpdateCMS.KEY, "${ip}");
+        testRunner.setProperty(UpdateCMS.EXPECTED_VOLUME, "1000000");
+        testRunner.setProperty(UpdateCMS.MAX_ERROR, "100");
+        testRunner.setProperty(UpdateCMS.AUTO_FOLD, "true");
+        for (int i = 0; i < 100; i++) {
+            final Map<String, String> attributes = new HashMap<String, String>();
+            attributes.put("ip", "10.0.0." + (i % 10));
+            testRunner.enqueue(new byte[0], attributes);
+        }
+        testRunner.run(1, false, true);
+        final CountMinSketch cms = testRunner.getControllerService("cms", CountMinSketchService.class)
+                .getSketch(SketchConstants.DEFAULT_SKETCH_NAME);
+        // e * 1000000 / 100 rounded up to a power of two; the first check is a tenth of a day away
+        assertEquals(32768, cms.getWidth());
+
+        final UpdateCMS processor = (UpdateCMS) testRunner.getProcessor();
+        // 100 updates in the first thousandth of the period project to 100000, e * 100000 / 100 needs 2719
+        processor.fold(100, 1000000, 1000);
+        assertEquals(4096, cms.getWidth());
+        // 100 updates over the whole period stay within 100 even at the smallest width
+        processor.fold(100, 1000, 1000);
+        assertEquals(64, cms.getWidth());
+
+        testRunner.enqueue(new byte[0], Collections.singletonMap("ip", "10.0.0.1"));
+        testRunner.run(1, true, false);
+        assertEquals(11, cms.getEstimatedCount("10.0.0.1"));
+        assertEquals(101, cms.getTotalCount());
+    }
+
+    @Test
+    public void testDeltaExportAfterFold() throws InitializationException, IOException {
+        final TestRunner export = TestRunners.newTestRunner(ExportCMS.class);
+        export.addControllerService("cms", new StandardCountMinSketchService());
+        export.enableControllerService(export.getControllerService("cms"));
+        export.setProperty(ExportCMS.SKETCH_SERVICE, "cms");
+        export.setProperty(ExportCMS.DELTA, "true");
+        final CountMinSketch cms = export.getControllerService("cms", CountMinSketchService.class)
+                .getOrCreateSketch(SketchConstants.DEFAULT_SKETCH_NAME,
+                        new CountMinSketch.Builder().dimensions(1024, 3).foldable(true));
+        cms.update("10.0.0.1", 2);
+        export.run();
+        cms.update("10.0.0.1", 3);
+        export.run();
+        cms.fold();
+        cms.update("10.0.0.1", 4);
+        export.run();
+
+        export.assertAllFlowFilesTransferred(ExportCMS.REL_SUCCESS, 3);
+        final String[] deltas = { "false", "true", "false" };
+        final int[] widths = { 1024, 1024, 512 };
+        final long[] counts = { 2, 3, 9 };
+        for (int i = 0; i < 3; i++) {
+            final MockFlowFile flowFile = export.getFlowFilesForRelationship(ExportCMS.REL_SUCCESS).get(i);
+            flowFile.assertAttributeEquals("cms.delta", deltas[i]);
+            final ByteArrayInputStream in = new ByteArrayInputStream(flowFile.toByteArray());
+            final SketchCodec.Header header = SketchCodec.readHeader(in);
+            assertEquals(widths[i], header.getWidth());
+            final CountMinSketch received = header.toBuilder().build();
+            final long[] cells = new long[header.getCellCount()];
+            SketchCodec.readCounts(in, header, cells);
+            received.merge(cells);
+            assertEquals(counts[i], received.getEstimatedCount("10.0.0.1"));
+        }
+    }
+
+    @Test
+    public void testDeltaExportAfterRestart() throws InitializationException, IOException {
+        final Path dir = Files.createTempDirectory("sketches");
+        try {
+            final TestRunner export = TestRunners.newTestRunner(ExportCMS.class);
+            export.addControllerService("cms", new StandardCountMinSketchService());
+            export.enableControllerService(export.getControllerService("cms"));
+            export.setProperty(ExportCMS.SKETCH_SERVICE, "cms");
+            export.setProperty(ExportCMS.DELTA, "true");
+            final CountMinSketchService service = export.getControllerService("cms", CountMinSketchService.class);
+            final CountMinSketch.Builder builder = new CountMinSketch.Builder().dimensions(1024, 3)
+                    .persistTo(dir.resolve("persisted" + SketchConstants.SKETCH_FILE_EXTENSION).toFile());
+            export.setProperty(ExportCMS.SKETCH_NAME, "persisted");
+            service.getOrCreateSketch("persisted", builder).update("10.0.0.1", 2);
+            export.run();
+            // the reopened sketch brings its counts back, the deltas continue where they stopped
+            service.removeSketch("persisted");
+            service.getOrCreateSketch("persisted", builder).update("10.0.0.1", 3);
+            export.run();
+
+            export.assertAllFlowFilesTransferred(ExportCMS.REL_SUCCESS, 2);
+            final MockFlowFile second = export.getFlowFilesForRelationship(ExportCMS.REL_SUCCESS).get(1);
+            second.assertAttributeEquals("cms.delta", "true");
+            final ByteArrayInputStream in = new ByteArrayInputStream(second.toByteArray());
+            final SketchCodec.Header header = SketchCodec.readHeader(in);
+            final long[] cells = new long[header.getCellCount()];
+            SketchCodec.readCounts(in, header, cells);
+            final CountMinSketch received = header.toBuilder().build();
+            received.merge(cells);
+            assertEquals(3, received.getEstimatedCount("10.0.0.1"));
+        } finally {
+            for (File file : dir.toFile().listFiles()) {
+                Files.delete(file.toPath());
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testSketchMetrics() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        histogram.record(100, 98);
+        histogram.record(1000, 1);
+        histogram.record(5000, 1);
+        assertEquals(100, histogram.getCount());
+        // upper bounds of the power of two buckets
+        assertEquals(127, histogram.getPercentile(50));
+        assertEquals(1023, histogram.getPercentile(99));
+        assertEquals(8191, histogram.getPercentile(100));
+
+        final CountMinSketch cms = new CountMinSketch.Builder().dimensions(1000, 3).build();
+        cms.update("10.0.0.1", 5);
+        final SketchMetrics metrics = cms.getMetrics();
+        metrics.recordUpdateBatch(10, 1000);
+        metrics.recordUpdateBatch(1, 3000);
+        metrics.recordQueryBatch(0, 500);
+        assertEquals(11, metrics.getUpdates());
+        assertEquals(0, metrics.getQueries());
+        // one sample per batch, its average per key
+        assertEquals(2, metrics.getUpdateBatchLatency().getCount());
+        assertEquals(127, metrics.getUpdateBatchLatency().getPercentile(50));
+        assertEquals(4095, metrics.getUpdateBatchLatency().getPercentile(99));
+
+        final SketchReportingTask task = new SketchReportingTask();
+        final String first = task.report("ips", cms, 0);
+        assertTrue(first, first.startsWith("Sketch ips: N=5, width=1000, error bound=0, fill ratios=["));
+        assertTrue(first, first.contains(
+                "updates=11 (0/s), update latency per key (batch average) p50=127 ns p99=4095 ns"));
+        assertTrue(first, first.endsWith(
+                "queries=0 (0/s), query latency per key (batch average) p50=0 ns p99=0 ns"));
+        metrics.recordUpdateBatch(20, 2000);
+        final String second = task.report("ips", cms, 2000000000L);
+        assertTrue(second, second.contains("updates=31 (10/s)"));
+    }
+
+    @Test
+    public void testConcurrentFold() throws InterruptedException {
+        final CountMinSketch cms = new CountMinSketch.Builder().dimensions(1 << 16, 3).foldable(true).build();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200000; i++) {
+                        cms.update("10.0.0." + (i % 100), 1);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(2);
+            cms.fold();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(256, cms.getWidth());
+        // only sketches built foldable pay for tracking their writers
+        assertTrue(!new CountMinSketch.Builder().dimensions(1 << 16, 3).build().isFoldable());
+        // every row still holds every update
+        long sum = 0;
+        for (long count : cms.getCounts()) {
+            sum += count;
+        }
+        assertEquals(3L * 4 * 200000, sum);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(cms.getEstimatedCount("10.0.0." + i) >= 4 * 2000);
+        }
+    }
+
+    @Test
+    public void testPersistentRestart() throws IOException, InitializationException {
+        final Path dir = Files.createTempDirectory("sketches");
+        final Path seed = Files.createTempFile("seed", ".txt");
+        try {
+            final File file = dir.resolve("restart" + SketchConstants.SKETCH_FILE_EXTENSION).toFile();
+            final CountMinSketch.Builder builder = new CountMinSketch.Builder().dimensions(1000, 3).persistTo(file);
+            final CountMinSketch cms = builder.build();
+            cms.update("10.0.0.1", 2);
+            cms.update("10.0.0.2", 3);
+            cms.checkpoint();
+            final CountMinSketch reopened = builder.build();
+            assertEquals(2, reopened.getEstimatedCount("10.0.0.1"));
+            assertEquals(3, reopened.getEstimatedCount("10.0.0.2"));
+            assertEquals(5, reopened.getTotalCount());
+
+            // a sketch seeded before the restart is not seeded again
+            Files.write(seed, "10.0.0.1\n10.0.0.1\n10.0.0.2\n".getBytes(StandardCharsets.UTF_8));
+            for (int restart = 0; restart < 2; restart++) {
+                init();
+                testRunner.setProperty(UpdateCMS.KEY, "${ip}");
+                testRunner.setProperty(UpdateCMS.SKETCH_NAME, "seeded");
+                testRunner.setProperty(UpdateCMS.PERSISTENCE_DIRECTORY, dir.toString());
+                testRunner.setProperty(UpdateCMS.LOAD_FILE, seed.toString());
+                testRunner.enqueue(new byte[0], Collections.singletonMap("ip", "10.0.0.1"));
+                testRunner.run();
+                testRunner.assertAllFlowFilesTransferred(UpdateCMS.REL_SUCCESS, 1);
+            }
+            final CountMinSketch seeded = testRunner.getControllerService("cms", CountMinSketchService.class)
+                    .getSketch("seeded");
+            assertEquals(4, seeded.getEstimatedCount("10.0.0.1"));
+            assertEquals(1, seeded.getEstimatedCount("10.0.0.2"));
+            assertEquals(5, seeded.getTotalCount());
+        } finally {
+            Files.delete(seed);
+            for (File file : dir.toFile().listFiles()) {
+                Files.delete(file.toPath());
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testWindows() {
+        final AtomicLong now = new AtomicLong();
+        final LongSupplier clock = new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return now.get();
+            }
+        };
+        // a single window resets every duration
+        final CountMinSketch tumbling = new CountMinSketch.Builder().dimensions(1000, 3).windows(1, 500).clock(clock)
+                .build();
+        tumbling.update("10.0.0.1", 2);
+        now.set(499);
+        assertEquals(2, tumbling.getEstimatedCount("10.0.0.1"));
+        now.set(500);
+        assertEquals(0, tumbling.getEstimatedCount("10.0.0.1"));
+        tumbling.update("10.0.0.1", 1);
+        assertEquals(1, tumbling.getEstimatedCount("10.0.0.1"));
+
+        now.set(0);
+        final CountMinSketch cms = new CountMinSketch.Builder().dimensions(1000, 3).windows(2, 500).decay(0.5)
+                .topK(2).clock(clock).build();
+        cms.update("10.0.0.1", 4);
+        cms.update("10.0.0.2", 2);
+        now.set(500);
+        cms.update("10.0.0.1", 2);
+        // 2 + 0.5 * 4, and 0.5 * 2
+        assertEquals(4, cms.getEstimatedCount("10.0.0.1"));
+        assertEquals(1, cms.getEstimatedCount("10.0.0.2"));
+        assertEquals(2, cms.getEstimatedCount("10.0.0.1", 1));
+        assertEquals(0, cms.getEstimatedCount("10.0.0.2", 1));
+        // the heavy hitters were re-estimated on rotation rather than dropped
+        List<Map.Entry<String, Long>> top = cms.getHeavyHitters().getTop();
+        assertEquals(2, top.size());
+        assertEquals("10.0.0.1", top.get(0).getKey());
+        assertEquals(4L, (long) top.get(0).getValue());
+        assertEquals("10.0.0.2", top.get(1).getKey());
+        assertEquals(1L, (long) top.get(1).getValue());
+
+        now.set(1000);
+        // the first window aged out
+        assertEquals(1, cms.getEstimatedCount("10.0.0.1"));
+        assertEquals(0, cms.getEstimatedCount("10.0.0.2"));
+        top = cms.getHeavyHitters().getTop();
+        assertEquals(1, top.size());
+        assertEquals("10.0.0.1", top.get(0).getKey());
+        assertEquals(1L, (long) top.get(0).getValue());
+
+        // windows that ended while nothing happened are all skipped at once
+        now.set(10000);
+        assertEquals(0, cms.getEstimatedCount("10.0.0.1"));
+        assertEquals(0, cms.getHeavyHitters().getTop().size());
+    }
+
+    @Test
+    public void testOffHeapStorage() throws InterruptedException {
+        for (CountMinSketch.Layout layout : CountMinSketch.Layout.values()) {
+            final CountMinSketch.Builder builder = new CountMinSketch.Builder().dimensions(256, 4).layout(layout);
+            final CountMinSketch heap = builder.storage(CountMinSketch.Storage.HEAP).build();
+            final CountMinSketch offHeap = builder.storage(CountMinSketch.Storage.OFF_HEAP).build();
+            final Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 100000; i++) {
+                            heap.update("10.0.0." + (i % 1000), 1 + i % 3);
+                            offHeap.update("10.0.0." + (i % 1000), 1 + i % 3);
+                        }
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertArrayEquals(layout.name(), heap.getCounts(), offHeap.getCounts());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(heap.getEstimatedCount("10.0.0." + i), offHeap.getEstimatedCount("10.0.0." + i));
+            }
+            assertEquals(heap.getTotalCount(), offHeap.getTotalCount());
+
+            // conservative updates raise cells instead of adding to them
+            final CountMinSketch conservativeHeap = builder.storage(CountMinSketch.Storage.HEAP).conservative(true)
+                    .build();
+            final CountMinSketch conservativeOffHeap = builder.storage(CountMinSketch.Storage.OFF_HEAP).build();
+            builder.conservative(false);
+            for (int i = 0; i < 100000; i++) {
+                conservativeHeap.update("10.0.0." + (i * 7 % 1000), 1 + i % 3);
+                conservativeOffHeap.update("10.0.0." + (i * 7 % 1000), 1 + i % 3);
+            }
+            assertArrayEquals(layout.name(), conservativeHeap.getCounts(), conservativeOffHeap.getCounts());
+        }
+
+        // direct, heap and foreign-order buffers all behave the same
+        final ByteOrder foreign = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? ByteOrder.BIG_ENDIAN
+                : ByteOrder.LITTLE_ENDIAN;
+        final BufferCounters[] counters = { new BufferCounters(64),
+                new BufferCounters(ByteBuffer.allocate(64 * 8), 64),
+                new BufferCounters(ByteBuffer.allocateDirect(64 * 8).order(foreign), 64) };
+        for (BufferCounters c : counters) {
+            assertEquals(5, c.add(3, 5));
+            assertEquals(7, c.add(3, 2));
+            assertEquals(7, c.raise(3, 4));
+            assertEquals(9, c.raise(3, 9));
+            assertEquals(9, c.get(3));
+            assertEquals(0, c.get(63));
+            c.clear();
+            assertEquals(0, c.get(3));
+        }
+    }
 }